@@ -0,0 +1,77 @@
+// $Id$
+package com.kvs.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+
+import com.kvs.KeyValueStore;
+
+/**
+ * Helpers shared by the benchmarks to create, fill and remove stores.
+ */
+
+final class BenchmarkStores {
+
+    // keys added with one multiAdd while filling a store.
+    private static final int FILL_BATCH_SIZE = 1000;
+
+    private BenchmarkStores() {
+    }
+
+    static Path createDirectory() throws IOException {
+        return Files.createTempDirectory("kvs-bench");
+    }
+
+    static void deleteDirectory(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    static String key(int i) {
+        return "key" + i;
+    }
+
+    /*
+     * A small JSON document, about the size of a typical value.
+     */
+    static JSONObject value(int i) {
+        JSONObject value = new JSONObject();
+        value.put("id", i);
+        value.put("name", "customer-" + i);
+        value.put("email", "customer-" + i + "@example.com");
+        value.put("status", i % 10 == 0 ? "inactive" : "active");
+        value.put("balance", i * 7 % 10000);
+        return value;
+    }
+
+    /*
+     * Adds the keys from 'from' (inclusive) to 'to' (exclusive).
+     */
+    static void fill(KeyValueStore store, int from, int to) throws IOException {
+        Map<String, JSONObject> batch = new LinkedHashMap<>();
+        for (int i = from; i < to; i++) {
+            batch.put(key(i), value(i));
+            if (batch.size() == FILL_BATCH_SIZE) {
+                store.multiAdd(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            store.multiAdd(batch);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+// $Id$
+package com.kvs.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvs.KeyValueStore;
+import com.kvs.store.StoreOptions;
+
+/**
+ * Duration of a compaction of a store where a part of the keys have been
+ * deleted. Every iteration compacts a freshly filled store.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompactionBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int keys;
+
+    @Param({ "10", "50", "90" })
+    public int deletedPercent;
+
+    private Path dir;
+    private KeyValueStore store;
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        dir = BenchmarkStores.createDirectory();
+        // unthrottled, and never compacted in the background before the
+        // measured compaction.
+        store = new KeyValueStore(dir.toString(),
+                new StoreOptions().setCompactionBytesPerSecond(0).setCompactionGarbageRatio(1));
+        BenchmarkStores.fill(store, 0, keys);
+        for (int i = 0; i < keys; i++) {
+            if (i % 100 < deletedPercent) {
+                store.delete(BenchmarkStores.key(i));
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        store.close();
+        BenchmarkStores.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public void compact() throws IOException {
+        store.compact();
+    }
+
+}
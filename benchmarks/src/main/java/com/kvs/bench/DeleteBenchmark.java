@@ -0,0 +1,68 @@
+// $Id$
+package com.kvs.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvs.KeyValueStore;
+
+/**
+ * Time to delete a batch of existing keys. Every delete needs a key that
+ * exists, so each iteration adds a fresh batch of keys beforehand and then
+ * deletes them one at a time.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = DeleteBenchmark.BATCH_SIZE)
+@Measurement(iterations = 5, batchSize = DeleteBenchmark.BATCH_SIZE)
+@Fork(1)
+public class DeleteBenchmark {
+
+    static final int BATCH_SIZE = 10000;
+
+    private Path dir;
+    private KeyValueStore store;
+    private int added;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        dir = BenchmarkStores.createDirectory();
+        store = new KeyValueStore(dir.toString());
+    }
+
+    @Setup(Level.Iteration)
+    public void fill() throws IOException {
+        next = added;
+        BenchmarkStores.fill(store, added, added + BATCH_SIZE);
+        added += BATCH_SIZE;
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        store.close();
+        BenchmarkStores.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public void delete() throws IOException {
+        store.delete(BenchmarkStores.key(next++));
+    }
+
+}
@@ -0,0 +1,96 @@
+// $Id$
+package com.kvs.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvs.KeyValueStore;
+import com.kvs.store.StoreOptions;
+
+/**
+ * Throughput of a mix of gets of existing keys and adds of new keys, for a
+ * few read ratios, thread counts and numbers of partitions.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MixedBenchmark {
+
+    @Param({ "100000" })
+    public int keys;
+
+    @Param({ "50", "90", "99" })
+    public int readPercent;
+
+    @Param({ "1", "4" })
+    public int partitions;
+
+    private Path dir;
+    private KeyValueStore store;
+    private AtomicInteger next;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        dir = BenchmarkStores.createDirectory();
+        store = new KeyValueStore(dir.toString(), new StoreOptions().setPartitions(partitions));
+        BenchmarkStores.fill(store, 0, keys);
+        next = new AtomicInteger(keys);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        store.close();
+        BenchmarkStores.deleteDirectory(dir);
+    }
+
+    private Object operation() throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextInt(100) < readPercent) {
+            return store.getBytes(BenchmarkStores.key(random.nextInt(keys)));
+        }
+        int i = next.getAndIncrement();
+        store.add(BenchmarkStores.key(i), BenchmarkStores.value(i));
+        return null;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object threads1() throws IOException {
+        return operation();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object threads4() throws IOException {
+        return operation();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object threads16() throws IOException {
+        return operation();
+    }
+
+}
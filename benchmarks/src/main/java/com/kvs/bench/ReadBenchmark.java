@@ -0,0 +1,107 @@
+// $Id$
+package com.kvs.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvs.KeyValueStore;
+import com.kvs.store.StoreOptions;
+
+/**
+ * Throughput of gets of existing keys.
+ *
+ * HOT reads a small set of keys through the value cache. COLD reads keys
+ * spread over the whole store with the cache disabled, so that every get goes
+ * to the segment files. The OS page cache still holds the files, so the reads
+ * are only truly cold if it is dropped before the run.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+    private static final int HOT_KEYS = 1000;
+    private static final long CACHE_SIZE = 64 * 1024 * 1024;
+
+    public enum Access {
+        HOT, COLD
+    }
+
+    @Param({ "100000" })
+    public int keys;
+
+    @Param({ "HOT", "COLD" })
+    public Access access;
+
+    @Param({ "false", "true" })
+    public boolean memoryMapped;
+
+    private Path dir;
+    private KeyValueStore store;
+
+    @State(Scope.Thread)
+    public static class Buffer {
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        dir = BenchmarkStores.createDirectory();
+        StoreOptions options = new StoreOptions().setMemoryMapped(memoryMapped)
+                .setCacheSize(access == Access.HOT ? CACHE_SIZE : 0);
+        store = new KeyValueStore(dir.toString(), options);
+        BenchmarkStores.fill(store, 0, keys);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        store.close();
+        BenchmarkStores.deleteDirectory(dir);
+    }
+
+    private String nextKey() {
+        int bound = access == Access.HOT ? Math.min(HOT_KEYS, keys) : keys;
+        return BenchmarkStores.key(ThreadLocalRandom.current().nextInt(bound));
+    }
+
+    @Benchmark
+    public JSONObject get() throws Exception {
+        return store.get(nextKey());
+    }
+
+    @Benchmark
+    public byte[] getBytes() throws IOException {
+        return store.getBytes(nextKey());
+    }
+
+    @Benchmark
+    public int getIntoBuffer(Buffer target) throws IOException {
+        target.buffer.clear();
+        return store.get(nextKey(), target.buffer);
+    }
+
+}
@@ -0,0 +1,66 @@
+// $Id$
+package com.kvs.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvs.KeyValueStore;
+import com.kvs.store.IndexType;
+import com.kvs.store.StoreOptions;
+
+/**
+ * Time to open an existing store, which is mostly loading its keys, for a few
+ * store sizes and index types. The store is closed again within the measured
+ * time.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StartupBenchmark {
+
+    @Param({ "10000", "100000", "1000000" })
+    public int keys;
+
+    @Param({ "HASH", "PACKED" })
+    public IndexType indexType;
+
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        dir = BenchmarkStores.createDirectory();
+        try (KeyValueStore store = new KeyValueStore(dir.toString())) {
+            BenchmarkStores.fill(store, 0, keys);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        BenchmarkStores.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public void open() throws IOException {
+        new KeyValueStore(dir.toString(), new StoreOptions().setIndexType(indexType)).close();
+    }
+
+}
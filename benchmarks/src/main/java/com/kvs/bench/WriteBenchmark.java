@@ -0,0 +1,74 @@
+// $Id$
+package com.kvs.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvs.KeyValueStore;
+import com.kvs.store.Durability;
+import com.kvs.store.StoreOptions;
+
+/**
+ * Throughput of adding new keys, for each durability setting.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+    @Param({ "OS", "BATCH" })
+    public Durability durability;
+
+    private Path dir;
+    private KeyValueStore store;
+    private final AtomicInteger next = new AtomicInteger();
+    private JSONObject value;
+    private byte[] valueBytes;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        dir = BenchmarkStores.createDirectory();
+        store = new KeyValueStore(dir.toString(), new StoreOptions().setDurability(durability));
+        value = BenchmarkStores.value(1);
+        valueBytes = value.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        store.close();
+        BenchmarkStores.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public void add() throws IOException {
+        store.add(BenchmarkStores.key(next.getAndIncrement()), value);
+    }
+
+    @Benchmark
+    public void addBytes() throws IOException {
+        store.add(BenchmarkStores.key(next.getAndIncrement()), valueBytes);
+    }
+
+}
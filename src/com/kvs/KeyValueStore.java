@@ -1,23 +1,81 @@
 // $Id$
 package com.kvs;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.kvs.index.SecondaryIndex;
+import com.kvs.metrics.MetricsSnapshot;
+import com.kvs.store.CacheStats;
+import com.kvs.store.ChangeListener;
+import com.kvs.store.ChangeRecord;
 import com.kvs.store.StoreDirectory;
+import com.kvs.store.StoreOptions;
 
 /**
  * This is the entry class. It contains the store directory.
  * This class has all the CRD functions that the client can use.
  */
 
-public class KeyValueStore {
+public class KeyValueStore implements Closeable {
 
+    // keys whose values findBy reads at a time.
+    private static final int FIND_CHUNK_SIZE = 256;
+
+    private final File directory;
     private final StoreDirectory storeDir;
+    // the secondary indexes, null if the store has none.
+    private final SecondaryIndex index;
 
     public KeyValueStore(String dir) throws IOException {
-        storeDir = new StoreDirectory(dir);
+        this(dir, new StoreOptions());
+    }
+
+    /*
+     * Opens the store. Its secondary indexes are loaded from the 'indexes'
+     * file if the store has not changed since it was saved, and rebuilt from
+     * a scan of the store otherwise.
+     */
+    public KeyValueStore(String dir, StoreOptions options) throws IOException {
+        List<String> fields = options.getIndexedFields();
+        if (!fields.isEmpty() && options.isReadOnly()) {
+            throw new RuntimeException("Indexes are kept by writable stores only.");
+        }
+        directory = new File(dir);
+        // taken before opening, which can already change the files.
+        String token = fields.isEmpty() ? null : SecondaryIndex.stateToken(directory);
+        storeDir = new StoreDirectory(dir, options);
+        SecondaryIndex loaded = null;
+        if (!fields.isEmpty()) {
+            try {
+                loaded = new SecondaryIndex(fields);
+                if (!loaded.load(directory, token)) {
+                    loaded = new SecondaryIndex(fields);
+                    loaded.build(storeDir.snapshot());
+                }
+                storeDir.addChangeListener(loaded);
+            } catch (IOException | RuntimeException e) {
+                storeDir.close();
+                throw e;
+            }
+        }
+        index = loaded;
     }
 
     public void add(String key, JSONObject value) throws IOException {
@@ -25,22 +83,360 @@ public class KeyValueStore {
     }
 
     public void add(String key, JSONObject value, int ttl) throws IOException {
-        if (key.length() > 32) {
-            throw new RuntimeException("Key size greater than 32 chars.");
+        storeDir.add(key, toValue(key, value), ttl);
+    }
+
+    /*
+     * Adds a value that is already serialised. The bytes are stored as they
+     * are and are not parsed as JSON.
+     */
+    public void add(String key, byte[] value) throws IOException {
+        add(key, ByteBuffer.wrap(value), -1);
+    }
+
+    public void add(String key, byte[] value, int ttl) throws IOException {
+        add(key, ByteBuffer.wrap(value), ttl);
+    }
+
+    /*
+     * Adds the bytes between the buffer's position and limit. The buffer is not
+     * changed.
+     */
+    public void add(String key, ByteBuffer value, int ttl) throws IOException {
+        storeDir.add(key, checkValue(key, value), ttl);
+    }
+
+    /*
+     * Queues the add and returns right away. The future is completed once the
+     * add is written as per the store's durability setting.
+     */
+    public CompletableFuture<Void> addAsync(String key, JSONObject value) {
+        return addAsync(key, value, -1);
+    }
+
+    public CompletableFuture<Void> addAsync(String key, JSONObject value, int ttl) {
+        return storeDir.addAsync(key, toValue(key, value), ttl);
+    }
+
+    /*
+     * The bytes are copied before this returns, so the buffer can be reused
+     * right away.
+     */
+    public CompletableFuture<Void> addAsync(String key, ByteBuffer value, int ttl) {
+        return storeDir.addAsync(key, checkValue(key, value), ttl);
+    }
+
+    /*
+     * Adds all the entries with a single write, either all of them are added
+     * or none if any of the keys already exists.
+     */
+    public void multiAdd(Map<String, JSONObject> entries) throws IOException {
+        multiAdd(entries, -1);
+    }
+
+    public void multiAdd(Map<String, JSONObject> entries, int ttl) throws IOException {
+        Map<String, ByteBuffer> values = new LinkedHashMap<>();
+        for (Map.Entry<String, JSONObject> entry : entries.entrySet()) {
+            values.put(entry.getKey(), toValue(entry.getKey(), entry.getValue()));
         }
-        String val = value.toString();
-        if (val.length() > (16 * 1024)) {
-            throw new RuntimeException("Value size greater than 16KB.");
+        storeDir.multiAdd(values, ttl);
+    }
+
+    public void multiAddBytes(Map<String, byte[]> entries, int ttl) throws IOException {
+        Map<String, ByteBuffer> values = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            values.put(entry.getKey(), checkValue(entry.getKey(), ByteBuffer.wrap(entry.getValue())));
         }
-        storeDir.add(key, val, ttl);
+        storeDir.multiAdd(values, ttl);
+    }
+
+    /*
+     * Adds the value, or replaces the value of the key if it exists, with one
+     * write.
+     */
+    public void put(String key, JSONObject value) throws IOException {
+        put(key, value, -1);
+    }
+
+    public void put(String key, JSONObject value, int ttl) throws IOException {
+        storeDir.put(key, toValue(key, value), ttl);
+    }
+
+    public void put(String key, byte[] value, int ttl) throws IOException {
+        storeDir.put(key, checkValue(key, ByteBuffer.wrap(value)), ttl);
+    }
+
+    public CompletableFuture<Void> putAsync(String key, JSONObject value, int ttl) {
+        return storeDir.putAsync(key, toValue(key, value), ttl);
+    }
+
+    public CompletableFuture<Void> putAsync(String key, ByteBuffer value, int ttl) {
+        return storeDir.putAsync(key, checkValue(key, value), ttl);
+    }
+
+    /*
+     * Replaces the value of the key only if it exists. Returns false, without
+     * writing anything, if it does not.
+     */
+    public boolean replace(String key, JSONObject value, int ttl) throws IOException {
+        return storeDir.replace(key, toValue(key, value), ttl);
+    }
+
+    public boolean replace(String key, byte[] value, int ttl) throws IOException {
+        return storeDir.replace(key, checkValue(key, ByteBuffer.wrap(value)), ttl);
+    }
+
+    /*
+     * Adds the value only if the key does not exist. Unlike add, an existing
+     * key is not an error; it returns false.
+     */
+    public boolean putIfAbsent(String key, JSONObject value, int ttl) throws IOException {
+        return storeDir.putIfAbsent(key, toValue(key, value), ttl);
+    }
+
+    public boolean putIfAbsent(String key, byte[] value, int ttl) throws IOException {
+        return storeDir.putIfAbsent(key, checkValue(key, ByteBuffer.wrap(value)), ttl);
+    }
+
+    /*
+     * Replaces the value of the key only if the current value is similar to
+     * the expected one, ie: has the same fields and values in any order.
+     * Returns false if the key does not exist or has another value.
+     */
+    public boolean compareAndSet(String key, JSONObject expected, JSONObject value, int ttl) throws IOException {
+        ByteBuffer update = toValue(key, value);
+        while (true) {
+            byte[] current = storeDir.multiGet(Collections.singletonList(key)).get(key);
+            if (current == null || !toJSON(current).similar(expected)) {
+                return false;
+            } else if (storeDir.compareAndSet(key, ByteBuffer.wrap(current), update, ttl)) {
+                return true;
+            }
+            // changed since it was read, compare again.
+        }
+    }
+
+    /*
+     * Replaces the value of the key only if the stored bytes are the expected
+     * ones.
+     */
+    public boolean compareAndSet(String key, byte[] expected, byte[] value, int ttl) throws IOException {
+        return storeDir.compareAndSet(key, ByteBuffer.wrap(expected), checkValue(key, ByteBuffer.wrap(value)), ttl);
     }
 
     public void delete(String key) throws IOException {
         storeDir.delete(key);
     }
 
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return storeDir.deleteAsync(key);
+    }
+
+    /*
+     * Deletes all the keys with a single write, none is deleted if any of them
+     * does not exist.
+     */
+    public void multiDelete(Collection<String> keys) throws IOException {
+        storeDir.multiDelete(keys);
+    }
+
     public JSONObject get(String key) throws Exception {
-        return new JSONObject(storeDir.get(key));
+        return toJSON(storeDir.get(key));
+    }
+
+    /*
+     * Gets the value as it is stored, without parsing it.
+     */
+    public byte[] getBytes(String key) throws IOException {
+        return storeDir.get(key);
+    }
+
+    /*
+     * Reads the value into the buffer, from its position, and returns the
+     * value's length. If the value does not fit into the buffer's remaining
+     * space nothing is read; the length tells how large the buffer has to be.
+     */
+    public int get(String key, ByteBuffer target) throws IOException {
+        return storeDir.get(key, target);
+    }
+
+    /*
+     * Gets the values of the given keys that exist, in the order of the keys.
+     */
+    public Map<String, JSONObject> multiGet(Collection<String> keys) throws Exception {
+        Map<String, JSONObject> result = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : storeDir.multiGet(keys).entrySet()) {
+            result.put(entry.getKey(), toJSON(entry.getValue()));
+        }
+        return result;
+    }
+
+    public Map<String, byte[]> multiGetBytes(Collection<String> keys) throws IOException {
+        return storeDir.multiGet(keys);
+    }
+
+    /*
+     * Streams the keys from 'from' (inclusive) to 'to' (exclusive) with their
+     * values, in key order. A null bound leaves that end open. The values are
+     * read lazily as the stream is consumed. The store must be opened with
+     * IndexType.ORDERED.
+     */
+    public Stream<Map.Entry<String, JSONObject>> scan(String from, String to) {
+        return storeDir.scan(from, to).map(KeyValueStore::toJSON);
+    }
+
+    public Stream<Map.Entry<String, byte[]>> scanBytes(String from, String to) {
+        return storeDir.scan(from, to);
+    }
+
+    /*
+     * Streams the keys starting with the prefix with their values, in key
+     * order. The store must be opened with IndexType.ORDERED.
+     */
+    public Stream<Map.Entry<String, JSONObject>> scanPrefix(String prefix) {
+        return storeDir.scanPrefix(prefix).map(KeyValueStore::toJSON);
+    }
+
+    public Stream<Map.Entry<String, byte[]>> scanPrefixBytes(String prefix) {
+        return storeDir.scanPrefix(prefix);
+    }
+
+    /*
+     * Streams the keys whose value has the given value in the indexed field,
+     * and their values, in key order. The field must have been indexed with
+     * StoreOptions.addIndex. The keys are looked up in the index and their
+     * values read a chunk at a time; a value that no longer matches when it
+     * is read is left out.
+     */
+    public Stream<Map.Entry<String, JSONObject>> findBy(String field, Object value) {
+        if (index == null) {
+            throw new RuntimeException("There is no index on " + field + ".");
+        }
+        List<String> keys = index.keys(field, value);
+        String expected = SecondaryIndex.normalize(value);
+        return IntStream.range(0, (keys.size() + FIND_CHUNK_SIZE - 1) / FIND_CHUNK_SIZE)
+                .mapToObj(i -> keys.subList(i * FIND_CHUNK_SIZE, Math.min(keys.size(), (i + 1) * FIND_CHUNK_SIZE)))
+                .flatMap(chunk -> {
+                    try {
+                        return storeDir.multiGet(chunk).entrySet().stream();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .map(KeyValueStore::toJSONOrNull)
+                .filter(entry -> entry != null
+                        && expected.equals(SecondaryIndex.normalize(SecondaryIndex.fieldOf(entry.getValue(), field))));
+    }
+
+    private static Map.Entry<String, JSONObject> toJSONOrNull(Map.Entry<String, byte[]> entry) {
+        try {
+            return toJSON(entry);
+        } catch (JSONException e) {
+            // replaced by a value that is not JSON since it was indexed.
+            return null;
+        }
+    }
+
+    private static Map.Entry<String, JSONObject> toJSON(Map.Entry<String, byte[]> entry) {
+        return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), toJSON(entry.getValue()));
+    }
+
+    private static JSONObject toJSON(byte[] value) {
+        return new JSONObject(new String(value, StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Registers a listener for the adds and deletes written from now on, eg:
+     * to replicate them. See ChangeListener.
+     */
+    public void addChangeListener(ChangeListener listener) throws IOException {
+        storeDir.addChangeListener(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) throws IOException {
+        storeDir.removeChangeListener(listener);
+    }
+
+    /*
+     * Streams all the live keys and their values as adds. The stream is weakly
+     * consistent, so a replica started from it applies the changes made from
+     * the start of the stream after it.
+     */
+    public Stream<ChangeRecord> snapshot() {
+        return storeDir.snapshot();
+    }
+
+    /*
+     * Backs the store up to the directory, which has to be empty, while the
+     * reads and writes go on. The copy holds every write acknowledged before
+     * the call and opens like any store, eg: to restore it; its indexes are
+     * built when it is opened.
+     */
+    public void snapshot(String targetDir) throws IOException {
+        storeDir.snapshot(targetDir);
+    }
+
+    /*
+     * Applies changes streamed from another store, in order and as one write.
+     * Unlike add and delete, an add replaces an existing key and a delete of a
+     * missing key is ignored.
+     */
+    public void applyChanges(List<ChangeRecord> changes) throws IOException {
+        storeDir.applyChanges(changes);
+    }
+
+    /*
+     * Hit, miss and eviction counts of the value cache, to size it.
+     */
+    public CacheStats getCacheStats() {
+        return storeDir.getCacheStats();
+    }
+
+    /*
+     * Latency percentiles of the adds, gets and deletes, lock waits, bytes
+     * written and read, and compaction counts. The same metrics are also
+     * registered as an MXBean, com.kvs:type=Store,dir=<the directory>.
+     */
+    public MetricsSnapshot getMetrics() {
+        return storeDir.getMetrics();
+    }
+
+    /*
+     * Compacts the store now instead of waiting for the background compaction.
+     */
+    public void compact() throws IOException {
+        storeDir.compact();
+        if (index != null) {
+            index.purgeExpired();
+        }
+    }
+
+    /*
+     * Writes out the pending writes and closes the store. The store can be
+     * opened again from the same directory after this.
+     */
+    @Override
+    public void close() throws IOException {
+        if (index == null) {
+            storeDir.close();
+        } else {
+            // saved while the directory is still locked.
+            storeDir.close(() -> index.save(directory, SecondaryIndex.stateToken(directory)));
+        }
+    }
+
+    private static ByteBuffer toValue(String key, JSONObject value) {
+        return checkValue(key, ByteBuffer.wrap(value.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static ByteBuffer checkValue(String key, ByteBuffer value) {
+        if (key.length() > 32) {
+            throw new RuntimeException("Key size greater than 32 chars.");
+        }
+        if (value.remaining() > (16 * 1024)) {
+            throw new RuntimeException("Value size greater than 16KB.");
+        }
+        return value;
     }
 
 }
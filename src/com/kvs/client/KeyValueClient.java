@@ -0,0 +1,332 @@
+// $Id$
+package com.kvs.client;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import com.kvs.protocol.Protocol;
+
+/**
+ * A client of the key value server, with the same operations as
+ * KeyValueStore. The client is thread safe and one connection can be shared
+ * by all the threads of a process.
+ *
+ * Requests are pipelined: the async methods return as soon as the request is
+ * queued, and a sender thread writes everything queued so far with one write,
+ * so many requests share a round trip. A receiver thread reads the responses
+ * and completes the futures of their requests.
+ *
+ * The server closes a connection that sends a request larger than
+ * Protocol.MAX_REQUEST_SIZE, which would fail every request sharing it, so
+ * such a request fails on its own here instead. A client fails every request
+ * of a connection on a response larger than Protocol.MAX_RESPONSE_SIZE, so a
+ * multi get is sent as several requests when its keys do not fit into one
+ * request, or when their values could be too large for one response.
+ */
+
+public class KeyValueClient implements Closeable {
+
+    // requests written with one gathering write.
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+    private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
+    private final Thread sender;
+    private final Thread receiver;
+    private volatile boolean closed;
+
+    public KeyValueClient(String host, int port) throws IOException {
+        this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        this.sender = new Thread(this::send, "kvs-client-sender");
+        this.receiver = new Thread(this::receive, "kvs-client-receiver");
+        sender.setDaemon(true);
+        receiver.setDaemon(true);
+        sender.start();
+        receiver.start();
+    }
+
+    public void add(String key, JSONObject value) throws IOException {
+        add(key, value, -1);
+    }
+
+    public void add(String key, JSONObject value, int ttl) throws IOException {
+        add(key, value.toString().getBytes(StandardCharsets.UTF_8), ttl);
+    }
+
+    public void add(String key, byte[] value) throws IOException {
+        add(key, value, -1);
+    }
+
+    public void add(String key, byte[] value, int ttl) throws IOException {
+        await(addAsync(key, value, ttl));
+    }
+
+    /*
+     * Queues the add and returns right away. The future is completed once the
+     * server has written the add.
+     */
+    public CompletableFuture<Void> addAsync(String key, byte[] value, int ttl) {
+        byte[] keyBytes = Protocol.toBytes(key);
+        int id = nextId.incrementAndGet();
+        ByteBuffer frame = Protocol.frame(Protocol.ADD, id, 2 + keyBytes.length + 4 + 4 + value.length);
+        frame.putShort((short) keyBytes.length).put(keyBytes).putInt(ttl).putInt(value.length).put(value);
+        return call(id, frame).thenApply(payload -> null);
+    }
+
+    public void delete(String key) throws IOException {
+        await(deleteAsync(key));
+    }
+
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return call(Protocol.DELETE, key).thenApply(payload -> null);
+    }
+
+    public JSONObject get(String key) throws IOException {
+        return new JSONObject(new String(getBytes(key), StandardCharsets.UTF_8));
+    }
+
+    public byte[] getBytes(String key) throws IOException {
+        return await(getAsync(key));
+    }
+
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return call(Protocol.GET, key).thenApply(Protocol::getValue);
+    }
+
+    /*
+     * Gets the values of the given keys that exist, in the order of the keys.
+     */
+    public Map<String, byte[]> multiGetBytes(Collection<String> keys) throws IOException {
+        return await(multiGetAsync(keys));
+    }
+
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(Collection<String> keys) {
+        List<CompletableFuture<Map<String, byte[]>>> parts = new ArrayList<>();
+        List<byte[]> keyBytes = new ArrayList<>();
+        int size = 4;
+        // the response if every key exists with a value of the largest size.
+        long responseSize = 4;
+        for (String key : keys) {
+            byte[] bytes = Protocol.toBytes(key);
+            long entrySize = 2 + bytes.length + 4 + Protocol.MAX_VALUE_SIZE;
+            if (!keyBytes.isEmpty() && (Protocol.HEADER_SIZE + size + 2 + bytes.length > Protocol.MAX_REQUEST_SIZE
+                    || Protocol.HEADER_SIZE + responseSize + entrySize > Protocol.MAX_RESPONSE_SIZE)) {
+                parts.add(multiGetAsync(keyBytes, size));
+                keyBytes = new ArrayList<>();
+                size = 4;
+                responseSize = 4;
+            }
+            keyBytes.add(bytes);
+            size += 2 + bytes.length;
+            responseSize += entrySize;
+        }
+        parts.add(multiGetAsync(keyBytes, size));
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, byte[]> values = new LinkedHashMap<>();
+            for (CompletableFuture<Map<String, byte[]>> part : parts) {
+                values.putAll(part.join());
+            }
+            return values;
+        });
+    }
+
+    /*
+     * Sends one multi get request of the keys, whose payload is size bytes.
+     */
+    private CompletableFuture<Map<String, byte[]>> multiGetAsync(List<byte[]> keyBytes, int size) {
+        int id = nextId.incrementAndGet();
+        ByteBuffer frame = Protocol.frame(Protocol.MULTI_GET, id, size);
+        frame.putInt(keyBytes.size());
+        for (byte[] bytes : keyBytes) {
+            frame.putShort((short) bytes.length).put(bytes);
+        }
+        return call(id, frame).thenApply(payload -> {
+            int count = payload.getInt();
+            Map<String, byte[]> values = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                values.put(Protocol.getString(payload), Protocol.getValue(payload));
+            }
+            return values;
+        });
+    }
+
+    private CompletableFuture<ByteBuffer> call(byte op, String key) {
+        byte[] keyBytes = Protocol.toBytes(key);
+        int id = nextId.incrementAndGet();
+        ByteBuffer frame = Protocol.frame(op, id, 2 + keyBytes.length);
+        frame.putShort((short) keyBytes.length).put(keyBytes);
+        return call(id, frame);
+    }
+
+    /*
+     * Queues the request and returns the future of its response's payload.
+     */
+    private CompletableFuture<ByteBuffer> call(int id, ByteBuffer frame) {
+        frame.flip();
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        if (frame.limit() - 4 > Protocol.MAX_REQUEST_SIZE) {
+            future.completeExceptionally(
+                    new RuntimeException("Request is larger than " + Protocol.MAX_REQUEST_SIZE + " bytes."));
+            return future;
+        }
+        pending.put(id, future);
+        queue.add(frame);
+        if (closed) {
+            failPending(new IOException("The connection is closed."));
+        }
+        return future;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /*
+     * Writes everything queued so far with one gathering write.
+     */
+    private void send() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                ByteBuffer last = buffers[buffers.length - 1];
+                while (last.hasRemaining()) {
+                    channel.write(buffers);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // closed.
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /*
+     * Reads the responses and completes their requests.
+     */
+    private void receive() {
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try {
+            while (!closed) {
+                if (channel.read(in) < 0) {
+                    throw new EOFException("The server closed the connection.");
+                }
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < Protocol.HEADER_SIZE || length > Protocol.MAX_RESPONSE_SIZE) {
+                        throw new IOException("Invalid response from the server.");
+                    }
+                    if (in.remaining() < 4 + length) {
+                        if (in.capacity() < 4 + length) {
+                            in = ByteBuffer.allocate(4 + length).put(in);
+                            in.flip();
+                        }
+                        break;
+                    }
+                    in.getInt();
+                    byte status = in.get();
+                    int id = in.getInt();
+                    byte[] payload = new byte[length - Protocol.HEADER_SIZE];
+                    in.get(payload);
+                    complete(id, status, ByteBuffer.wrap(payload));
+                }
+                if (!in.hasRemaining() && in.capacity() > READ_BUFFER_SIZE) {
+                    in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                } else {
+                    in.compact();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void complete(int id, byte status, ByteBuffer payload) {
+        CompletableFuture<ByteBuffer> future = pending.remove(id);
+        if (future == null) {
+            return;
+        }
+        if (status == Protocol.OK) {
+            future.complete(payload);
+        } else {
+            future.completeExceptionally(new RuntimeException(Protocol.getString(payload)));
+        }
+    }
+
+    private void fail(IOException e) {
+        if (!closed) {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ce) {
+                // closing anyway.
+            }
+        }
+        failPending(e);
+    }
+
+    private void failPending(IOException e) {
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<ByteBuffer> future = pending.remove(id);
+            if (future != null) {
+                future.completeExceptionally(e);
+            }
+        }
+        queue.clear();
+    }
+
+    /*
+     * Closes the connection. Requests that have not been answered yet fail.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        sender.interrupt();
+        channel.close();
+        failPending(new IOException("The client is closed."));
+    }
+
+}
@@ -0,0 +1,406 @@
+// $Id$
+package com.kvs.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.kvs.store.ChangeListener;
+import com.kvs.store.ChangeRecord;
+import com.kvs.store.ExpiryClock;
+
+/**
+ * Secondary indexes of a store on fields of its JSON values, eg: "status" or
+ * "address.city", so that the keys with a given value of a field can be found
+ * without reading every value.
+ *
+ * The index listens to the store's changes, so it is updated by every write
+ * batch once it is written. For every indexed field it maps the value of the
+ * field to the keys that have it; only strings, numbers, booleans and null
+ * are indexed, and values that are not JSON objects have no fields. Numbers
+ * are indexed by their decimal value, so 1, 1.0 and 1L are the same value.
+ *
+ * Keys are removed from the index when the store reports that it dropped
+ * them as expired, and lookups skip the expired keys that the store has not
+ * dropped yet by their expiry time, as the store's own reads do.
+ *
+ * On close the index is saved to the 'indexes' file of the store with a token
+ * of the store's files. On open it is loaded from there only if the fields
+ * are the same and the store's files have not changed since; otherwise it is
+ * rebuilt from a scan of the store.
+ */
+
+public class SecondaryIndex implements ChangeListener {
+
+    private static final int MAGIC = 0x4B564958;
+    private static final String FILE_NAME = "indexes";
+
+    private final List<String> fields;
+    // the indexed values of every key, by key.
+    private final ConcurrentHashMap<String, Indexed> entries = new ConcurrentHashMap<>();
+    // for every field, the keys by the indexed value.
+    private final List<ConcurrentHashMap<String, Set<String>>> postings = new ArrayList<>();
+
+    /**
+     * The indexed values of a key, null for a field it does not have.
+     */
+    private static class Indexed {
+
+        private final String[] values;
+        private final int expiryTime;
+
+        private Indexed(String[] values, int expiryTime) {
+            this.values = values;
+            this.expiryTime = expiryTime;
+        }
+
+        private boolean isExpired(int now) {
+            return expiryTime != -1 && now > expiryTime;
+        }
+    }
+
+    public SecondaryIndex(List<String> fields) {
+        this.fields = new ArrayList<>(fields);
+        for (int i = 0; i < fields.size(); i++) {
+            postings.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    public List<String> getFields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    @Override
+    public void onChanges(List<ChangeRecord> changes) {
+        for (ChangeRecord change : changes) {
+            apply(change);
+        }
+    }
+
+    /*
+     * Removes the expired keys, unless they have been written again since.
+     */
+    @Override
+    public void onExpired(List<String> keys) {
+        int now = now();
+        for (String key : keys) {
+            Indexed indexed = entries.get(key);
+            if (indexed != null && indexed.isExpired(now)) {
+                synchronized (this) {
+                    if (entries.get(key) == indexed) {
+                        update(key, null);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Indexes the live keys of a store, eg: a snapshot of it.
+     */
+    public void build(Stream<ChangeRecord> records) {
+        records.forEach(this::apply);
+    }
+
+    private void apply(ChangeRecord change) {
+        if (change.getType() == ChangeRecord.Type.DELETE) {
+            update(change.getKey(), null);
+        } else {
+            update(change.getKey(), new Indexed(valuesOf(change.getValue()), change.getExpiryTime()));
+        }
+    }
+
+    /*
+     * Replaces the indexed values of the key. Synchronized since the writers
+     * of the partitions of a store and the purge can update it at once.
+     */
+    private synchronized void update(String key, Indexed indexed) {
+        Indexed old = indexed != null ? entries.put(key, indexed) : entries.remove(key);
+        for (int i = 0; i < fields.size(); i++) {
+            String oldValue = old != null ? old.values[i] : null;
+            String newValue = indexed != null ? indexed.values[i] : null;
+            if (Objects.equals(oldValue, newValue)) {
+                continue;
+            }
+            if (oldValue != null) {
+                Set<String> keys = postings.get(i).get(oldValue);
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    postings.get(i).remove(oldValue);
+                }
+            }
+            if (newValue != null) {
+                postings.get(i).computeIfAbsent(newValue, v -> ConcurrentHashMap.newKeySet()).add(key);
+            }
+        }
+    }
+
+    /*
+     * The indexed value of every field of the value, or null for fields it
+     * does not have.
+     */
+    private String[] valuesOf(byte[] value) {
+        String[] values = new String[fields.size()];
+        JSONObject json;
+        try {
+            json = new JSONObject(new String(value, StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            // not a JSON object, eg: bytes added as they are.
+            return values;
+        }
+        for (int i = 0; i < fields.size(); i++) {
+            values[i] = normalize(fieldOf(json, fields.get(i)));
+        }
+        return values;
+    }
+
+    /*
+     * The value at the dotted path, or null if the value has no such field.
+     */
+    public static Object fieldOf(JSONObject json, String field) {
+        String[] path = field.split("\\.");
+        JSONObject object = json;
+        for (int i = 0; i < path.length - 1; i++) {
+            object = object.optJSONObject(path[i]);
+            if (object == null) {
+                return null;
+            }
+        }
+        return object.opt(path[path.length - 1]);
+    }
+
+    /*
+     * The indexed form of a field value, which keeps values of different
+     * types apart, or null if such values are not indexed.
+     */
+    public static String normalize(Object value) {
+        if (value == null) {
+            return null;
+        } else if (value == JSONObject.NULL) {
+            return "z";
+        } else if (value instanceof String) {
+            return "s" + value;
+        } else if (value instanceof Boolean) {
+            return "b" + value;
+        } else if (value instanceof Number) {
+            try {
+                return "n" + new BigDecimal(value.toString()).stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+                // NaN or infinite.
+                return "n" + value;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * The unexpired keys whose field has the value, in key order.
+     */
+    public List<String> keys(String field, Object value) {
+        int i = fields.indexOf(field);
+        if (i < 0) {
+            throw new RuntimeException("There is no index on " + field + ".");
+        }
+        String normalized = normalize(value);
+        if (normalized == null) {
+            throw new RuntimeException("Only strings, numbers, booleans and null are indexed.");
+        }
+        Set<String> keys = postings.get(i).get(normalized);
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        int now = now();
+        List<String> found = new ArrayList<>();
+        for (String key : keys) {
+            Indexed indexed = entries.get(key);
+            if (indexed != null && !indexed.isExpired(now)) {
+                found.add(key);
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    /*
+     * Removes the keys that have expired.
+     */
+    public void purgeExpired() {
+        int now = now();
+        for (Map.Entry<String, Indexed> entry : entries.entrySet()) {
+            if (entry.getValue().isExpired(now)) {
+                synchronized (this) {
+                    if (entries.get(entry.getKey()) == entry.getValue()) {
+                        update(entry.getKey(), null);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int now() {
+        return ExpiryClock.currentTime();
+    }
+
+    /*
+     * Loads the index saved in the store's directory if it was saved with the
+     * same fields and token. False if it has to be rebuilt.
+     */
+    public boolean load(File dir, String token) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024));
+        try {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(token)) {
+                return false;
+            }
+            List<String> saved = new ArrayList<>();
+            for (int count = in.readInt(); saved.size() < count;) {
+                saved.add(in.readUTF());
+            }
+            if (!saved.equals(fields)) {
+                return false;
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                String key = readString(in);
+                int expiryTime = in.readInt();
+                String[] values = new String[fields.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.readBoolean() ? readString(in) : null;
+                }
+                update(key, new Indexed(values, expiryTime));
+            }
+            return true;
+        } catch (EOFException e) {
+            // not a complete index.
+            entries.clear();
+            for (Map<String, Set<String>> fieldPostings : postings) {
+                fieldPostings.clear();
+            }
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Saves the index with the token of the store's files. It is written
+     * aside and renamed into place.
+     */
+    public void save(File dir, String token) throws IOException {
+        File newFile = new File(dir, "new" + FILE_NAME);
+        FileOutputStream fileOut = new FileOutputStream(newFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1024 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeUTF(token);
+            out.writeInt(fields.size());
+            for (String field : fields) {
+                out.writeUTF(field);
+            }
+            List<Map.Entry<String, Indexed>> live = new ArrayList<>();
+            int now = now();
+            for (Map.Entry<String, Indexed> entry : entries.entrySet()) {
+                if (!entry.getValue().isExpired(now)) {
+                    live.add(entry);
+                }
+            }
+            out.writeInt(live.size());
+            for (Map.Entry<String, Indexed> entry : live) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().expiryTime);
+                for (String value : entry.getValue().values) {
+                    out.writeBoolean(value != null);
+                    if (value != null) {
+                        writeString(out, value);
+                    }
+                }
+            }
+            out.flush();
+            fileOut.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        Files.move(newFile.toPath(), new File(dir, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // writeUTF is limited to 64KB, a field value is not.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * A digest of the names, lengths and modification times of the store's
+     * files, which changes with every write to the store.
+     */
+    public static String stateToken(File dir) throws IOException {
+        Map<String, File> files = new TreeMap<>();
+        listFiles(dir, "", files);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                String line = file.getKey() + " " + file.getValue().length() + " " + file.getValue().lastModified()
+                        + "\n";
+                digest.update(line.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder token = new StringBuilder();
+            for (byte b : digest.digest()) {
+                token.append(String.format("%02x", b));
+            }
+            return token.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void listFiles(File dir, String prefix, Map<String, File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String name = prefix + child.getName();
+            if (child.isDirectory()) {
+                listFiles(child, name + "/", files);
+            } else if (!Arrays.asList("write.lock", FILE_NAME, "new" + FILE_NAME).contains(child.getName())) {
+                files.put(name, child);
+            }
+        }
+    }
+
+}
@@ -2,38 +2,95 @@
 package com.kvs.lock.file;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
 
 import com.kvs.lock.Lock;
 
 /**
 * Implementation of lock interface which does locking using files.
+*
+* The lock is an exclusive OS lock on the write.lock file, so it is released
+* by the OS when the process dies and a crash does not leave the directory
+* locked. The file itself is left in place: deleting it on unlock would let
+* a process that opened it just before lock the old file while another one
+* locks a new file of the same name.
+*
+* The OS lock belongs to the process, and closing any channel of the file
+* drops it, so a second lock of the same directory within the process is
+* refused before the file is opened again.
 */
 
 public class FileBasedLock implements Lock {
 
+    // lock files held by this process.
+    private static final Set<String> HELD = new HashSet<>();
+
     private final File lockFile;
+    private FileChannel channel;
+    private FileLock fileLock;
 
     public FileBasedLock(File dir) {
         String filePath = String.join("/", dir.getAbsolutePath(), "write.lock");
-        lockFile = new File(filePath);
+        lockFile = new File(filePath).toPath().normalize().toFile();
     }
 
     @Override
-    public boolean lock() {
-        try {
-            if (!lockFile.exists() && lockFile.createNewFile()) {
-                lockFile.deleteOnExit();
-                return true;
+    public synchronized boolean lock() {
+        if (fileLock != null) {
+            return false;
+        }
+        synchronized (HELD) {
+            if (!HELD.add(lockFile.getAbsolutePath())) {
+                return false;
             }
-        } catch (Exception e) {
+        }
+        try {
+            channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            fileLock = channel.tryLock();
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        return false;
+        if (fileLock == null) {
+            closeChannel();
+            return false;
+        }
+        return true;
     }
 
     @Override
-    public boolean unlock() {
-        return lockFile.delete();
+    public synchronized boolean unlock() {
+        if (fileLock == null) {
+            return false;
+        }
+        try {
+            fileLock.release();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            fileLock = null;
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+        synchronized (HELD) {
+            HELD.remove(lockFile.getAbsolutePath());
+        }
     }
 
 }
@@ -0,0 +1,95 @@
+// $Id$
+package com.kvs.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The counts of a latency histogram at a point in time. All the values are in
+ * nanoseconds; a percentile is the largest value of the bucket it falls in.
+ */
+
+public class HistogramSnapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    HistogramSnapshot(long[] counts, long sum, long max) {
+        this.counts = counts;
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        this.count = total;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /*
+     * The counts of this and the other snapshot together, eg: of the
+     * partitions of a store.
+     */
+    public HistogramSnapshot merge(HistogramSnapshot other) {
+        long[] merged = new long[counts.length];
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = counts[i] + other.counts[i];
+        }
+        return new HistogramSnapshot(merged, sum + other.sum, Math.max(max, other.max));
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getP50() {
+        return getValueAtPercentile(50);
+    }
+
+    public long getP90() {
+        return getValueAtPercentile(90);
+    }
+
+    public long getP99() {
+        return getValueAtPercentile(99);
+    }
+
+    public long getP999() {
+        return getValueAtPercentile(99.9);
+    }
+
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.highestValueOf(bucket), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + ", mean=" + micros((long) getMean()) + "us, p50=" + micros(getP50()) + "us, p90="
+                + micros(getP90()) + "us, p99=" + micros(getP99()) + "us, p99.9=" + micros(getP999()) + "us, max="
+                + micros(max) + "us";
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+}
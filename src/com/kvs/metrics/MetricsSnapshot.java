@@ -0,0 +1,153 @@
+// $Id$
+package com.kvs.metrics;
+
+/**
+ * The metrics of a store at a point in time.
+ */
+
+public class MetricsSnapshot {
+
+    private final HistogramSnapshot addLatency;
+    private final HistogramSnapshot getLatency;
+    private final HistogramSnapshot deleteLatency;
+    private final HistogramSnapshot readLockWait;
+    private final HistogramSnapshot writeLockWait;
+    private final HistogramSnapshot queueWait;
+    private final long bytesWritten;
+    private final long bytesRead;
+    private final long compactions;
+    private final long compactionMillis;
+    private final long reclaimedBytes;
+    private final long liveBytes;
+    private final long deadBytes;
+
+    MetricsSnapshot(HistogramSnapshot addLatency, HistogramSnapshot getLatency, HistogramSnapshot deleteLatency,
+            HistogramSnapshot readLockWait, HistogramSnapshot writeLockWait, HistogramSnapshot queueWait,
+            long bytesWritten, long bytesRead, long compactions, long compactionMillis, long reclaimedBytes,
+            long liveBytes, long deadBytes) {
+        this.addLatency = addLatency;
+        this.getLatency = getLatency;
+        this.deleteLatency = deleteLatency;
+        this.readLockWait = readLockWait;
+        this.writeLockWait = writeLockWait;
+        this.queueWait = queueWait;
+        this.bytesWritten = bytesWritten;
+        this.bytesRead = bytesRead;
+        this.compactions = compactions;
+        this.compactionMillis = compactionMillis;
+        this.reclaimedBytes = reclaimedBytes;
+        this.liveBytes = liveBytes;
+        this.deadBytes = deadBytes;
+    }
+
+    /*
+     * The metrics of this and the other snapshot together, eg: of the
+     * partitions of a store.
+     */
+    public MetricsSnapshot merge(MetricsSnapshot other) {
+        return new MetricsSnapshot(addLatency.merge(other.addLatency), getLatency.merge(other.getLatency),
+                deleteLatency.merge(other.deleteLatency), readLockWait.merge(other.readLockWait),
+                writeLockWait.merge(other.writeLockWait), queueWait.merge(other.queueWait),
+                bytesWritten + other.bytesWritten,
+                bytesRead + other.bytesRead, compactions + other.compactions,
+                compactionMillis + other.compactionMillis, reclaimedBytes + other.reclaimedBytes,
+                liveBytes + other.liveBytes, deadBytes + other.deadBytes);
+    }
+
+    /*
+     * Time from queueing an add to its write being acknowledged. Only adds
+     * that are written count, not the rejected or skipped ones.
+     */
+    public HistogramSnapshot getAddLatency() {
+        return addLatency;
+    }
+
+    public HistogramSnapshot getGetLatency() {
+        return getLatency;
+    }
+
+    public HistogramSnapshot getDeleteLatency() {
+        return deleteLatency;
+    }
+
+    /*
+     * Time the gets waited for the store's read lock.
+     */
+    public HistogramSnapshot getReadLockWait() {
+        return readLockWait;
+    }
+
+    /*
+     * Time compaction, the refresh of a read-only store and close waited for
+     * the store's write lock. Writes do not take it; their wait is the queue
+     * wait.
+     */
+    public HistogramSnapshot getWriteLockWait() {
+        return writeLockWait;
+    }
+
+    /*
+     * Time the writes waited in the writer's queue until their batch started
+     * to be written, eg: behind a large batch or a compaction step.
+     */
+    public HistogramSnapshot getQueueWait() {
+        return queueWait;
+    }
+
+    /*
+     * Bytes appended to the keys file and the values segments.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /*
+     * Bytes of value records read from the segments; cache hits read nothing.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getCompactions() {
+        return compactions;
+    }
+
+    public long getCompactionMillis() {
+        return compactionMillis;
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    /*
+     * Bytes of the values segments used by live keys.
+     */
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /*
+     * Bytes of the values segments left behind by deletes, overwrites and
+     * expiries, which compaction would reclaim.
+     */
+    public long getDeadBytes() {
+        return deadBytes;
+    }
+
+    public double getDeadRatio() {
+        long total = liveBytes + deadBytes;
+        return total == 0 ? 0 : (double) deadBytes / total;
+    }
+
+    @Override
+    public String toString() {
+        return "add: " + addLatency + "\nget: " + getLatency + "\ndelete: " + deleteLatency + "\nread lock wait: "
+                + readLockWait + "\nwrite lock wait: " + writeLockWait + "\nqueue wait: " + queueWait
+                + "\nbytes written=" + bytesWritten
+                + ", bytes read=" + bytesRead + "\ncompactions=" + compactions + ", compaction time="
+                + compactionMillis + "ms, reclaimed bytes=" + reclaimedBytes + "\nlive bytes=" + liveBytes
+                + ", dead bytes=" + deadBytes;
+    }
+
+}
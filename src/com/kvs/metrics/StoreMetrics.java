@@ -0,0 +1,196 @@
+// $Id$
+package com.kvs.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of one store. The store records into it on its hot paths, which
+ * only update counters and never allocate, and it is registered as an MXBean
+ * named after the store's directory.
+ *
+ * The sizes of the values segments are not counted here; they are read from
+ * the store when a snapshot is taken.
+ */
+
+public class StoreMetrics implements StoreMetricsMXBean {
+
+    private final LatencyHistogram addLatency = new LatencyHistogram();
+    private final LatencyHistogram getLatency = new LatencyHistogram();
+    private final LatencyHistogram deleteLatency = new LatencyHistogram();
+    private final LatencyHistogram readLockWait = new LatencyHistogram();
+    private final LatencyHistogram writeLockWait = new LatencyHistogram();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder compactionNanos = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+    private final LongSupplier segmentBytes;
+    private final LongSupplier deadBytes;
+    private ObjectName name;
+
+    /*
+     * segmentBytes gives the total size of the values segments and deadBytes
+     * the part of it not used by any live key.
+     */
+    public StoreMetrics(LongSupplier segmentBytes, LongSupplier deadBytes) {
+        this.segmentBytes = segmentBytes;
+        this.deadBytes = deadBytes;
+    }
+
+    public void recordAdd(long nanos) {
+        addLatency.record(nanos);
+    }
+
+    public void recordGet(long nanos) {
+        getLatency.record(nanos);
+    }
+
+    public void recordDelete(long nanos) {
+        deleteLatency.record(nanos);
+    }
+
+    public void recordReadLockWait(long nanos) {
+        readLockWait.record(nanos);
+    }
+
+    public void recordWriteLockWait(long nanos) {
+        writeLockWait.record(nanos);
+    }
+
+    public void recordQueueWait(long nanos) {
+        queueWait.record(nanos);
+    }
+
+    public void recordBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public void recordBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void recordCompaction(long nanos, long reclaimed) {
+        compactions.increment();
+        compactionNanos.add(nanos);
+        reclaimedBytes.add(reclaimed);
+    }
+
+    public MetricsSnapshot snapshot() {
+        long dead = deadBytes.getAsLong();
+        long live = Math.max(0, segmentBytes.getAsLong() - dead);
+        return new MetricsSnapshot(addLatency.snapshot(), getLatency.snapshot(), deleteLatency.snapshot(),
+                readLockWait.snapshot(), writeLockWait.snapshot(), queueWait.snapshot(), bytesWritten.sum(),
+                bytesRead.sum(),
+                compactions.sum(), getCompactionMillis(), reclaimedBytes.sum(), live, dead);
+    }
+
+    /*
+     * Registers the metrics with the platform MBean server under
+     * com.kvs:type=Store,dir=<the store's directory>.
+     */
+    public synchronized void register(String dir) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("com.kvs:type=Store,dir=" + ObjectName.quote(dir));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            name = objectName;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void unregister() {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        name = null;
+    }
+
+    @Override
+    public HistogramSnapshot getAddLatency() {
+        return addLatency.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getGetLatency() {
+        return getLatency.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getDeleteLatency() {
+        return deleteLatency.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getReadLockWait() {
+        return readLockWait.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getWriteLockWait() {
+        return writeLockWait.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getQueueWait() {
+        return queueWait.snapshot();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    @Override
+    public long getCompactionMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compactionNanos.sum());
+    }
+
+    @Override
+    public long getReclaimedBytes() {
+        return reclaimedBytes.sum();
+    }
+
+    @Override
+    public long getLiveBytes() {
+        return Math.max(0, segmentBytes.getAsLong() - deadBytes.getAsLong());
+    }
+
+    @Override
+    public long getDeadBytes() {
+        return deadBytes.getAsLong();
+    }
+
+    @Override
+    public double getDeadRatio() {
+        long total = segmentBytes.getAsLong();
+        return total == 0 ? 0 : Math.min(1, (double) deadBytes.getAsLong() / total);
+    }
+
+}
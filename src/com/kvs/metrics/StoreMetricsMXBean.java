@@ -0,0 +1,39 @@
+// $Id$
+package com.kvs.metrics;
+
+/**
+ * The metrics of a store as exposed through JMX. Latencies are in
+ * nanoseconds.
+ */
+
+public interface StoreMetricsMXBean {
+
+    HistogramSnapshot getAddLatency();
+
+    HistogramSnapshot getGetLatency();
+
+    HistogramSnapshot getDeleteLatency();
+
+    HistogramSnapshot getReadLockWait();
+
+    HistogramSnapshot getWriteLockWait();
+
+    HistogramSnapshot getQueueWait();
+
+    long getBytesWritten();
+
+    long getBytesRead();
+
+    long getCompactions();
+
+    long getCompactionMillis();
+
+    long getReclaimedBytes();
+
+    long getLiveBytes();
+
+    long getDeadBytes();
+
+    double getDeadRatio();
+
+}
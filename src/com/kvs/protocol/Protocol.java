@@ -0,0 +1,112 @@
+// $Id$
+package com.kvs.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol spoken between the key value server and its clients.
+ *
+ * Every request and response is a frame: a 4 byte length of the rest of the
+ * frame, a 1 byte operation (for a request) or status (for a response), the
+ * 4 byte id of the request and the payload. A client can send any number of
+ * requests without waiting for their responses. Responses carry the id of
+ * their request and may come back in a different order, eg: a get can be
+ * answered before an add sent ahead of it is written.
+ *
+ * Strings are a 2 byte length and the UTF-8 bytes, values a 4 byte length and
+ * the bytes. The payloads are:
+ *
+ * GET: key -> value
+ * ADD: key, 4 byte ttl, value -> nothing
+ * DELETE: key -> nothing
+ * MULTI_GET: 4 byte count, keys -> 4 byte count, (key, value) of the keys
+ * that exist
+ *
+ * A failed request gets an ERROR response with the message as a string.
+ */
+
+public final class Protocol {
+
+    public static final byte GET = 1;
+    public static final byte ADD = 2;
+    public static final byte DELETE = 3;
+    public static final byte MULTI_GET = 4;
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    // operation or status and the request id, after the frame length.
+    public static final int HEADER_SIZE = 5;
+    // largest value a store takes.
+    public static final int MAX_VALUE_SIZE = 16 * 1024;
+    // largest request a server accepts, room for the largest value.
+    public static final int MAX_REQUEST_SIZE = 1024 * 1024;
+    // largest response a client accepts, for large multi gets.
+    public static final int MAX_RESPONSE_SIZE = 256 * 1024 * 1024;
+
+    private Protocol() {
+    }
+
+    /*
+     * A buffer for a frame with the given payload size, with its header
+     * written. The payload is to be put after it and the buffer flipped.
+     */
+    public static ByteBuffer frame(byte type, int id, int payloadSize) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_SIZE + payloadSize);
+        frame.putInt(HEADER_SIZE + payloadSize);
+        frame.put(type);
+        frame.putInt(id);
+        return frame;
+    }
+
+    public static ByteBuffer ok(int id) {
+        ByteBuffer frame = frame(OK, id, 0);
+        frame.flip();
+        return frame;
+    }
+
+    public static ByteBuffer error(int id, String message) {
+        String text = message == null ? "Request failed." : message;
+        byte[] bytes = toBytes(text.length() > 1024 ? text.substring(0, 1024) : text);
+        ByteBuffer frame = frame(ERROR, id, 2 + bytes.length);
+        frame.putShort((short) bytes.length).put(bytes);
+        frame.flip();
+        return frame;
+    }
+
+    /*
+     * The string's bytes, which have to fit into a 2 byte length.
+     */
+    public static byte[] toBytes(String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new RuntimeException("String is too long.");
+        }
+        return bytes;
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static byte[] getValue(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /*
+     * The value as a slice of the buffer, without copying it.
+     */
+    public static ByteBuffer sliceValue(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        ByteBuffer value = buffer.slice();
+        value.limit(length);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+}
@@ -0,0 +1,121 @@
+// $Id$
+package com.kvs.replication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.kvs.store.ChangeRecord;
+
+/**
+ * The recent changes of a leader, numbered from 1 in the order they were
+ * written, so that a follower can catch up from where it left off.
+ *
+ * The backlog is bounded by the bytes of the values it holds; once it grows
+ * past the bound the oldest quarter is dropped. A follower that needs a
+ * dropped change has to start over from a snapshot.
+ */
+
+class ChangeBacklog {
+
+    static class Entry {
+
+        private final ChangeRecord change;
+        private final long millis;
+
+        private Entry(ChangeRecord change, long millis) {
+            this.change = change;
+            this.millis = millis;
+        }
+
+        ChangeRecord getChange() {
+            return change;
+        }
+
+        /*
+         * When the change was written on the leader.
+         */
+        long getMillis() {
+            return millis;
+        }
+    }
+
+    // a change is counted with this much for its key and framing.
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final long maxBytes;
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    // sequence of entries[0].
+    private long firstSequence = 1;
+    private long bytes;
+
+    ChangeBacklog(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized void append(List<ChangeRecord> changes, long millis) {
+        for (ChangeRecord change : changes) {
+            entries.add(new Entry(change, millis));
+            bytes += sizeOf(change);
+        }
+        if (bytes > maxBytes) {
+            int drop = 0;
+            while (bytes > maxBytes * 3 / 4 && drop < entries.size()) {
+                bytes -= sizeOf(entries.get(drop++).getChange());
+            }
+            entries.subList(0, drop).clear();
+            firstSequence += drop;
+        }
+        notifyAll();
+    }
+
+    private static long sizeOf(ChangeRecord change) {
+        return ENTRY_OVERHEAD + (change.getValue() != null ? change.getValue().length : 0);
+    }
+
+    /*
+     * The sequence of the last change, 0 before the first one.
+     */
+    synchronized long lastSequence() {
+        return firstSequence + entries.size() - 1;
+    }
+
+    /*
+     * Whether the changes after the sequence are all still here.
+     */
+    synchronized boolean hasAfter(long sequence) {
+        return sequence + 1 >= firstSequence && sequence <= lastSequence();
+    }
+
+    /*
+     * Up to max changes from the sequence on, waiting up to the timeout for
+     * one to be written. Null if the changes from the sequence were dropped.
+     */
+    synchronized List<Entry> read(long sequence, int max, long timeoutMillis) throws InterruptedException {
+        if (sequence < firstSequence) {
+            return null;
+        }
+        if (sequence > lastSequence()) {
+            wait(timeoutMillis);
+            if (sequence < firstSequence) {
+                return null;
+            }
+            if (sequence > lastSequence()) {
+                return Collections.emptyList();
+            }
+        }
+        int from = (int) (sequence - firstSequence);
+        return new ArrayList<>(entries.subList(from, Math.min(entries.size(), from + max)));
+    }
+
+    /*
+     * When the change was written, or -1 if it is not here.
+     */
+    synchronized long millisOf(long sequence) {
+        if (sequence < firstSequence || sequence > lastSequence()) {
+            return -1;
+        }
+        return entries.get((int) (sequence - firstSequence)).getMillis();
+    }
+
+}
@@ -0,0 +1,53 @@
+// $Id$
+package com.kvs.replication;
+
+/**
+ * How far a follower of a replication leader is behind it.
+ */
+
+public class FollowerStatus {
+
+    private final String address;
+    private final long ackedSequence;
+    private final long lagRecords;
+    private final long lagMillis;
+
+    FollowerStatus(String address, long ackedSequence, long lagRecords, long lagMillis) {
+        this.address = address;
+        this.ackedSequence = ackedSequence;
+        this.lagRecords = lagRecords;
+        this.lagMillis = lagMillis;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /*
+     * The last change the follower has applied.
+     */
+    public long getAckedSequence() {
+        return ackedSequence;
+    }
+
+    /*
+     * Changes written on the leader that the follower has not applied yet.
+     */
+    public long getLagRecords() {
+        return lagRecords;
+    }
+
+    /*
+     * Age of the oldest change the follower has not applied yet, 0 if it has
+     * applied all of them, -1 if that change is no longer known.
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    @Override
+    public String toString() {
+        return address + ": acked=" + ackedSequence + " lag=" + lagRecords + " records, " + lagMillis + "ms";
+    }
+
+}
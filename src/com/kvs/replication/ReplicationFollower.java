@@ -0,0 +1,310 @@
+// $Id$
+package com.kvs.replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+import com.kvs.KeyValueStore;
+import com.kvs.store.ChangeRecord;
+import com.kvs.store.StoreOptions;
+
+/**
+ * A read-only copy of a store kept up to date by a ReplicationLeader, to
+ * spread the reads of a store over more machines.
+ *
+ * The copy is a store of its own in a replica-N subdirectory of the given
+ * directory. The first time the follower connects, and whenever it has
+ * fallen too far behind to catch up from the leader's backlog, it loads a
+ * snapshot from the leader into a new replica directory and then switches
+ * the reads over to it, so the reads never see a half loaded copy. The
+ * previous copy is deleted after the switch.
+ *
+ * A follower reconnects by itself when the connection is lost. Its copy is
+ * not kept across restarts; a new follower always starts from a snapshot.
+ */
+
+public class ReplicationFollower implements Closeable {
+
+    private static final String REPLICA_PREFIX = "replica-";
+    private static final int SNAPSHOT_BATCH_SIZE = 1024;
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final File dir;
+    private final StoreOptions options;
+    private final InetSocketAddress leader;
+    private final Thread thread;
+    private volatile KeyValueStore store;
+    private File storeDir;
+    private int nextReplica;
+    private Socket socket;
+    private volatile boolean closed;
+
+    // only changed by the follower's thread.
+    private long epoch;
+    private volatile long appliedSequence;
+    private volatile long leaderSequence;
+    // when the follower last had all the leader's changes.
+    private volatile long caughtUpMillis;
+
+    public ReplicationFollower(String dir, String host, int port) throws IOException {
+        this(dir, new StoreOptions(), host, port);
+    }
+
+    public ReplicationFollower(String dir, StoreOptions options, String host, int port) throws IOException {
+        this.dir = new File(dir);
+        this.options = options;
+        this.leader = new InetSocketAddress(host, port);
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        // left over from an earlier run.
+        File[] replicas = this.dir.listFiles((parent, name) -> name.startsWith(REPLICA_PREFIX));
+        if (replicas != null) {
+            for (File replica : replicas) {
+                deleteRecursively(replica);
+            }
+        }
+        this.thread = new Thread(this::run, "kvs-replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public JSONObject get(String key) throws IOException {
+        return new JSONObject(new String(getBytes(key), StandardCharsets.UTF_8));
+    }
+
+    public byte[] getBytes(String key) throws IOException {
+        return current().getBytes(key);
+    }
+
+    public Map<String, byte[]> multiGetBytes(Collection<String> keys) throws IOException {
+        return current().multiGetBytes(keys);
+    }
+
+    private KeyValueStore current() {
+        KeyValueStore current = store;
+        if (current == null) {
+            throw new RuntimeException("The replica is not ready.");
+        }
+        return current;
+    }
+
+    /*
+     * Whether the follower has loaded a copy and can serve reads.
+     */
+    public boolean isReady() {
+        return store != null;
+    }
+
+    /*
+     * The last change of the leader applied here.
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /*
+     * Changes the leader had written, as of its last message, that are not
+     * applied here yet.
+     */
+    public long getLagRecords() {
+        return Math.max(0, leaderSequence - appliedSequence);
+    }
+
+    /*
+     * How long the follower has been missing some of the leader's changes, 0
+     * if it has all of them.
+     */
+    public long getLagMillis() {
+        if (store == null) {
+            return -1;
+        }
+        return getLagRecords() == 0 ? 0 : System.currentTimeMillis() - caughtUpMillis;
+    }
+
+    /*
+     * Connects to the leader and follows it until the follower is closed.
+     */
+    private void run() {
+        // a leader that is down is reported once, not on every retry.
+        boolean reported = false;
+        while (!closed) {
+            try (Socket connection = new Socket()) {
+                synchronized (this) {
+                    if (closed) {
+                        break;
+                    }
+                    socket = connection;
+                }
+                connection.connect(leader);
+                connection.setTcpNoDelay(true);
+                reported = false;
+                follow(new DataInputStream(new BufferedInputStream(connection.getInputStream())),
+                        new DataOutputStream(new BufferedOutputStream(connection.getOutputStream())));
+            } catch (IOException | RuntimeException e) {
+                if (!closed && !reported) {
+                    System.err.println("Replication from " + leader + " stopped: " + e);
+                    reported = true;
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void follow(DataInputStream in, DataOutputStream out) throws IOException {
+        out.writeInt(ReplicationProtocol.MAGIC);
+        out.writeLong(epoch);
+        out.writeLong(appliedSequence);
+        out.flush();
+        byte type = in.readByte();
+        if (type == ReplicationProtocol.SNAPSHOT) {
+            long snapshotEpoch = in.readLong();
+            loadSnapshot(in);
+            epoch = snapshotEpoch;
+        } else if (type == ReplicationProtocol.RESUME) {
+            in.readLong();
+        } else {
+            throw new IOException("Unexpected message " + type + " from the leader.");
+        }
+        List<ChangeRecord> changes = new ArrayList<>();
+        while (!closed) {
+            type = in.readByte();
+            if (type == ReplicationProtocol.CHANGES) {
+                long first = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    changes.add(ReplicationProtocol.readRecord(in));
+                }
+                if (first != appliedSequence + 1) {
+                    throw new IOException("Expected change " + (appliedSequence + 1) + ", got " + first + ".");
+                }
+                store.applyChanges(changes);
+                changes.clear();
+                appliedSequence = first + count - 1;
+                leaderSequence = Math.max(leaderSequence, appliedSequence);
+            } else if (type == ReplicationProtocol.HEARTBEAT) {
+                leaderSequence = in.readLong();
+            } else {
+                throw new IOException("Unexpected message " + type + " from the leader.");
+            }
+            if (appliedSequence >= leaderSequence) {
+                caughtUpMillis = System.currentTimeMillis();
+            }
+            out.writeByte(ReplicationProtocol.ACK);
+            out.writeLong(appliedSequence);
+            out.flush();
+        }
+    }
+
+    /*
+     * Loads the snapshot into a new replica and switches the reads over to
+     * it once it is complete.
+     */
+    private void loadSnapshot(DataInputStream in) throws IOException {
+        File replicaDir = new File(dir, REPLICA_PREFIX + nextReplica++);
+        if (!replicaDir.mkdir()) {
+            throw new IOException("Could not create " + replicaDir);
+        }
+        KeyValueStore replica = new KeyValueStore(replicaDir.getPath(), options);
+        boolean loaded = false;
+        try {
+            List<ChangeRecord> records = new ArrayList<>(SNAPSHOT_BATCH_SIZE);
+            byte type;
+            while ((type = in.readByte()) == ReplicationProtocol.RECORD) {
+                records.add(ReplicationProtocol.readRecord(in));
+                if (records.size() == SNAPSHOT_BATCH_SIZE) {
+                    replica.applyChanges(records);
+                    records.clear();
+                }
+            }
+            if (type != ReplicationProtocol.SNAPSHOT_END) {
+                throw new IOException("Unexpected message " + type + " in the snapshot.");
+            }
+            if (!records.isEmpty()) {
+                replica.applyChanges(records);
+            }
+            long sequence = in.readLong();
+            KeyValueStore previous = store;
+            File previousDir = storeDir;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("The follower is closed.");
+                }
+                store = replica;
+                storeDir = replicaDir;
+                loaded = true;
+            }
+            appliedSequence = sequence;
+            leaderSequence = sequence;
+            caughtUpMillis = System.currentTimeMillis();
+            if (previous != null) {
+                // reads still running on it fail, as on a closed store.
+                discard(previous, previousDir);
+            }
+        } finally {
+            if (!loaded) {
+                discard(replica, replicaDir);
+            }
+        }
+    }
+
+    private static void discard(KeyValueStore replica, File replicaDir) throws IOException {
+        replica.close();
+        deleteRecursively(replicaDir);
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    /*
+     * Stops following the leader and closes the copy. The replica
+     * directories are left for the next follower to clean up.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            if (socket != null) {
+                socket.close();
+            }
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        KeyValueStore current = store;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+// $Id$
+package com.kvs.replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import com.kvs.KeyValueStore;
+import com.kvs.store.ChangeListener;
+import com.kvs.store.ChangeRecord;
+
+/**
+ * Ships the adds and deletes of a store to its followers.
+ *
+ * The store's changes are kept in a backlog as they are written. A follower
+ * that connects for the first time, or has fallen further behind than the
+ * backlog reaches, is first sent a snapshot of the live keys and then the
+ * changes written from the start of the snapshot. Since the snapshot is read
+ * while writes go on, some of those changes may already be in it; applying
+ * them again leaves the same state. A follower that reconnects while the
+ * backlog still has its next change just resumes from it.
+ *
+ * The changes are logical, so compaction on the leader, which only moves
+ * values, does not show up in the stream. Expired keys are not shipped
+ * either; a follower expires them by their expiry time.
+ *
+ * Each follower is served by a thread that sends and one that reads its
+ * acks; a leader is expected to have a few followers, not hundreds.
+ */
+
+public class ReplicationLeader implements Closeable {
+
+    public static final long DEFAULT_BACKLOG_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_CHANGES_PER_MESSAGE = 1024;
+    private static final long HEARTBEAT_MILLIS = 1000;
+
+    private final KeyValueStore store;
+    private final long epoch = UUID.randomUUID().getMostSignificantBits();
+    private final ChangeBacklog backlog;
+    private final ServerSocket serverSocket;
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    private final ChangeListener listener = new ChangeListener() {
+
+        @Override
+        public void onChanges(List<ChangeRecord> changes) {
+            backlog.append(changes, System.currentTimeMillis());
+        }
+
+        @Override
+        public void onExpired(List<String> keys) {
+            // a follower expires the keys by their expiry time itself.
+        }
+    };
+
+    public ReplicationLeader(KeyValueStore store, InetSocketAddress address) throws IOException {
+        this(store, address, DEFAULT_BACKLOG_BYTES);
+    }
+
+    /*
+     * backlogBytes bounds the changes kept for the followers that fall behind
+     * or reconnect. It must also cover the changes written while a snapshot is
+     * sent, or a follower would start over again and again.
+     */
+    public ReplicationLeader(KeyValueStore store, InetSocketAddress address, long backlogBytes) throws IOException {
+        this.store = store;
+        this.backlog = new ChangeBacklog(backlogBytes);
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        store.addChangeListener(listener);
+        this.acceptor = new Thread(this::accept, "kvs-replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /*
+     * The sequence of the last change written.
+     */
+    public long getSequence() {
+        return backlog.lastSequence();
+    }
+
+    public List<FollowerStatus> getFollowers() {
+        List<FollowerStatus> followers = new ArrayList<>();
+        long last = backlog.lastSequence();
+        long now = System.currentTimeMillis();
+        for (Session session : sessions) {
+            long acked = session.acked;
+            long lagMillis = 0;
+            if (acked < last) {
+                long millis = backlog.millisOf(acked + 1);
+                lagMillis = millis < 0 ? -1 : now - millis;
+            }
+            followers.add(new FollowerStatus(session.address, acked, Math.max(0, last - acked), lagMillis));
+        }
+        return followers;
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Session session = new Session(socket);
+                sessions.add(session);
+                session.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /*
+     * Disconnects the followers and stops recording changes. The store stays
+     * open.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Session session : sessions) {
+            session.close();
+        }
+        store.removeChangeListener(listener);
+    }
+
+    /*
+     * A connected follower.
+     */
+    private class Session {
+
+        private final Socket socket;
+        private final String address;
+        private volatile long acked;
+
+        private Session(Socket socket) {
+            this.socket = socket;
+            this.address = socket.getRemoteSocketAddress().toString();
+        }
+
+        private void start() {
+            Thread sender = new Thread(this::run, "kvs-replication-" + address);
+            sender.setDaemon(true);
+            sender.start();
+        }
+
+        private void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                if (in.readInt() != ReplicationProtocol.MAGIC) {
+                    throw new IOException("Not a replication follower.");
+                }
+                long followerEpoch = in.readLong();
+                long applied = in.readLong();
+                long next;
+                if (followerEpoch == epoch && backlog.hasAfter(applied)) {
+                    out.writeByte(ReplicationProtocol.RESUME);
+                    out.writeLong(epoch);
+                    next = applied + 1;
+                } else {
+                    next = sendSnapshot(out);
+                }
+                out.flush();
+                acked = next - 1;
+                Thread ackReader = new Thread(() -> readAcks(in), "kvs-replication-acks-" + address);
+                ackReader.setDaemon(true);
+                ackReader.start();
+                while (!closed) {
+                    List<ChangeBacklog.Entry> entries = backlog.read(next, MAX_CHANGES_PER_MESSAGE, HEARTBEAT_MILLIS);
+                    if (entries == null) {
+                        System.err.println("Replication follower " + address
+                                + " fell behind the backlog, it has to start over.");
+                        break;
+                    }
+                    if (entries.isEmpty()) {
+                        out.writeByte(ReplicationProtocol.HEARTBEAT);
+                        out.writeLong(backlog.lastSequence());
+                    } else {
+                        out.writeByte(ReplicationProtocol.CHANGES);
+                        out.writeLong(next);
+                        out.writeInt(entries.size());
+                        for (ChangeBacklog.Entry entry : entries) {
+                            ReplicationProtocol.writeRecord(out, entry.getChange());
+                        }
+                        next += entries.size();
+                    }
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                // closed.
+            } catch (IOException | UncheckedIOException e) {
+                if (!closed && !(e instanceof SocketException)) {
+                    e.printStackTrace();
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /*
+         * Sends the live keys and returns the sequence of the first change
+         * that is not covered by them.
+         */
+        private long sendSnapshot(DataOutputStream out) throws IOException {
+            // the changes from here on are sent after the snapshot.
+            long start = backlog.lastSequence() + 1;
+            out.writeByte(ReplicationProtocol.SNAPSHOT);
+            out.writeLong(epoch);
+            try (Stream<ChangeRecord> snapshot = store.snapshot()) {
+                Iterator<ChangeRecord> records = snapshot.iterator();
+                while (records.hasNext() && !closed) {
+                    out.writeByte(ReplicationProtocol.RECORD);
+                    ReplicationProtocol.writeRecord(out, records.next());
+                }
+            }
+            out.writeByte(ReplicationProtocol.SNAPSHOT_END);
+            out.writeLong(start - 1);
+            return start;
+        }
+
+        private void readAcks(DataInputStream in) {
+            try {
+                while (true) {
+                    if (in.readByte() != ReplicationProtocol.ACK) {
+                        throw new IOException("Unexpected message from " + address + ".");
+                    }
+                    acked = in.readLong();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void close() {
+            sessions.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+// $Id$
+package com.kvs.replication;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.kvs.store.ChangeRecord;
+
+/**
+ * The messages between a replication leader and its followers.
+ *
+ * A follower starts with HELLO: the magic, the leader epoch and the sequence
+ * it has applied up to. If the leader has the changes after that sequence,
+ * it answers RESUME and goes on from there. Otherwise it sends SNAPSHOT, the
+ * live keys as RECORD messages and SNAPSHOT_END with the sequence the
+ * snapshot starts from. After that the leader sends CHANGES as they are
+ * written and a HEARTBEAT when there are none, and the follower sends an ACK
+ * of the sequence it has applied for each of them.
+ *
+ * A leader epoch identifies one run of a leader, since the sequences start
+ * over when it is restarted.
+ */
+
+final class ReplicationProtocol {
+
+    static final int MAGIC = 0x4B565250;
+
+    static final byte RESUME = 1;
+    static final byte SNAPSHOT = 2;
+    static final byte RECORD = 3;
+    static final byte SNAPSHOT_END = 4;
+    static final byte CHANGES = 5;
+    static final byte HEARTBEAT = 6;
+    static final byte ACK = 7;
+
+    private ReplicationProtocol() {
+    }
+
+    static void writeRecord(DataOutputStream out, ChangeRecord change) throws IOException {
+        out.writeUTF(change.getKey());
+        out.writeInt(change.getExpiryTime());
+        byte[] value = change.getValue();
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    static ChangeRecord readRecord(DataInputStream in) throws IOException {
+        String key = in.readUTF();
+        int expiryTime = in.readInt();
+        int length = in.readInt();
+        if (length < 0) {
+            return ChangeRecord.delete(key);
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return ChangeRecord.add(key, value, expiryTime);
+    }
+
+}
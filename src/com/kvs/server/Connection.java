@@ -0,0 +1,273 @@
+// $Id$
+package com.kvs.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kvs.KeyValueStore;
+import com.kvs.protocol.Protocol;
+
+/**
+ * A client connection of the server.
+ *
+ * The requests read are decoded and started right away, so a client can have
+ * many of them running at once. Their responses are queued as they complete
+ * and written by the event loop with a gathering write. Once a connection
+ * has MAX_IN_FLIGHT requests running, its reads stop until some of them are
+ * answered, so a client that does not read its responses cannot make the
+ * server queue them without limit.
+ */
+
+class Connection {
+
+    private static final int MAX_IN_FLIGHT = 4096;
+    private static final int READ_BUFFER_SIZE = 4096;
+    // responses written with one gathering write.
+    private static final int WRITE_BATCH = 64;
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final KeyValueStore store;
+    // responses completed by any thread, taken by the event loop.
+    private final Queue<ByteBuffer> completed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // only used by the event loop.
+    private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    private volatile boolean closed;
+
+    Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.store = loop.getServer().getStore();
+    }
+
+    /*
+     * Reads what the client has sent and starts the complete requests in it.
+     */
+    void read() {
+        try {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < Protocol.HEADER_SIZE || length > Protocol.MAX_REQUEST_SIZE) {
+                    // not a client of this protocol.
+                    close();
+                    return;
+                }
+                if (in.remaining() < 4 + length) {
+                    if (in.capacity() < 4 + length) {
+                        in = ByteBuffer.allocate(4 + length).put(in);
+                        in.flip();
+                    }
+                    break;
+                }
+                ByteBuffer frame = in.slice();
+                frame.limit(4 + length);
+                frame.position(4);
+                in.position(in.position() + 4 + length);
+                dispatch(frame);
+            }
+            if (!in.hasRemaining() && in.capacity() > READ_BUFFER_SIZE) {
+                in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            } else {
+                in.compact();
+            }
+            if (inFlight.get() >= MAX_IN_FLIGHT) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /*
+     * Starts a request. The frame is a view of the read buffer, so everything
+     * needed from it is copied out before this returns.
+     */
+    private void dispatch(ByteBuffer frame) {
+        byte op = frame.get();
+        int id = frame.getInt();
+        inFlight.incrementAndGet();
+        try {
+            switch (op) {
+                case Protocol.GET: {
+                    String k = Protocol.getString(frame);
+                    read(id, () -> value(id, store.getBytes(k)));
+                    break;
+                }
+                case Protocol.MULTI_GET: {
+                    int count = frame.getInt();
+                    // every key takes at least its 2 byte length.
+                    if (count < 0 || count > frame.remaining() / 2) {
+                        respond(Protocol.error(id, "Invalid key count " + count + "."));
+                        break;
+                    }
+                    List<String> keys = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        keys.add(Protocol.getString(frame));
+                    }
+                    read(id, () -> entries(id, store.multiGetBytes(keys)));
+                    break;
+                }
+                case Protocol.ADD: {
+                    String k = Protocol.getString(frame);
+                    int ttl = frame.getInt();
+                    // the value is copied before addAsync returns.
+                    write(id, store.addAsync(k, Protocol.sliceValue(frame), ttl));
+                    break;
+                }
+                case Protocol.DELETE:
+                    write(id, store.deleteAsync(Protocol.getString(frame)));
+                    break;
+                default:
+                    respond(Protocol.error(id, "Unknown operation " + op + "."));
+            }
+        } catch (RuntimeException e) {
+            respond(Protocol.error(id, e.getMessage()));
+        }
+    }
+
+    private interface Read {
+
+        ByteBuffer run() throws IOException;
+
+    }
+
+    /*
+     * Runs a read on the server's reader threads.
+     */
+    private void read(int id, Read read) {
+        try {
+            loop.getServer().getReaders().execute(() -> {
+                try {
+                    respond(read.run());
+                } catch (IOException | RuntimeException e) {
+                    respond(Protocol.error(id, e.getMessage()));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            respond(Protocol.error(id, "The server is closed."));
+        }
+    }
+
+    private void write(int id, CompletableFuture<Void> future) {
+        future.whenComplete((result, e) -> {
+            if (e == null) {
+                respond(Protocol.ok(id));
+            } else {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                respond(Protocol.error(id, cause.getMessage()));
+            }
+        });
+    }
+
+    private static ByteBuffer value(int id, byte[] value) {
+        ByteBuffer frame = Protocol.frame(Protocol.OK, id, 4 + value.length);
+        frame.putInt(value.length).put(value);
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer entries(int id, Map<String, byte[]> values) {
+        List<byte[]> keys = new ArrayList<>(values.size());
+        int size = 4;
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            byte[] k = Protocol.toBytes(entry.getKey());
+            keys.add(k);
+            size += 2 + k.length + 4 + entry.getValue().length;
+        }
+        ByteBuffer frame = Protocol.frame(Protocol.OK, id, size);
+        frame.putInt(values.size());
+        int i = 0;
+        for (byte[] value : values.values()) {
+            byte[] k = keys.get(i++);
+            frame.putShort((short) k.length).put(k).putInt(value.length).put(value);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /*
+     * Queues a response, from any thread.
+     */
+    private void respond(ByteBuffer response) {
+        inFlight.decrementAndGet();
+        if (!closed) {
+            completed.add(response);
+            loop.ready(this);
+        }
+    }
+
+    /*
+     * Writes the queued responses as far as the socket takes them, and waits
+     * for it to be writable if it does not take them all.
+     */
+    void write() {
+        if (closed) {
+            return;
+        }
+        try {
+            ByteBuffer response;
+            while ((response = completed.poll()) != null) {
+                out.add(response);
+            }
+            ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+            while (!out.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : out) {
+                    if (count == WRITE_BATCH) {
+                        break;
+                    }
+                    batch[count++] = buffer;
+                }
+                channel.write(batch, 0, count);
+                while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                    out.poll();
+                }
+                if (batch[count - 1].hasRemaining()) {
+                    break;
+                }
+            }
+            int ops = SelectionKey.OP_READ;
+            if (!out.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (inFlight.get() >= MAX_IN_FLIGHT) {
+                ops &= ~SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void close() {
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // closing anyway.
+        }
+    }
+
+}
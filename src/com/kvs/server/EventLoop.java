@@ -0,0 +1,151 @@
+// $Id$
+package com.kvs.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A selector thread serving a share of the server's connections.
+ *
+ * Only this thread reads from and writes to its connections. Responses are
+ * made ready by other threads, which queue the connection here and wake the
+ * selector up; a wake up that is already pending is not repeated, so a burst
+ * of responses costs one wake up.
+ */
+
+class EventLoop {
+
+    private final KeyValueServer server;
+    private final Selector selector;
+    private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Thread thread;
+
+    EventLoop(KeyValueServer server, String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    KeyValueServer getServer() {
+        return server;
+    }
+
+    void register(SocketChannel channel) {
+        accepted.add(channel);
+        wakeup();
+    }
+
+    /*
+     * Called when a response has been queued to the connection.
+     */
+    void ready(Connection connection) {
+        ready.add(connection);
+        if (Thread.currentThread() != thread) {
+            wakeup();
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /*
+     * Stops the loop, which closes its connections on the way out. The server
+     * has to be stopped first.
+     */
+    void close() {
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (server.isRunning()) {
+                selector.select();
+                wakeupPending.set(false);
+                registerAccepted();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (RuntimeException | Error e) {
+                        fail(connection, e);
+                    }
+                }
+                Connection connection;
+                while ((connection = ready.poll()) != null) {
+                    try {
+                        connection.write();
+                    } catch (RuntimeException | Error e) {
+                        fail(connection, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeAll();
+        }
+    }
+
+    /*
+     * Closes a connection that failed in a way its own handling does not
+     * cover, eg: out of memory for a request, and keeps serving the others.
+     */
+    private static void fail(Connection connection, Throwable e) {
+        e.printStackTrace();
+        connection.close();
+    }
+
+    private void registerAccepted() throws IOException {
+        SocketChannel channel;
+        while ((channel = accepted.poll()) != null) {
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(this, channel, key));
+        }
+    }
+
+    private void closeAll() {
+        SocketChannel channel;
+        while ((channel = accepted.poll()) != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // closing anyway.
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((Connection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+// $Id$
+package com.kvs.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kvs.KeyValueStore;
+
+/**
+ * A server that shares a store with other processes over TCP, speaking the
+ * protocol described in com.kvs.protocol.Protocol.
+ *
+ * Connections are handled by a few non-blocking event loops, one selector
+ * each, so the number of connections is not bounded by the number of
+ * threads. Adds and deletes go to the store's writer right away and are
+ * answered when they are written. Gets read the disk, so they are run on a
+ * pool of reader threads and do not hold up the event loops.
+ *
+ * The server does not own the store; the caller closes it after the server.
+ */
+
+public class KeyValueServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 7379;
+
+    private final KeyValueStore store;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ExecutorService readers;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    public KeyValueServer(KeyValueStore store, InetSocketAddress address) throws IOException {
+        this(store, address, Runtime.getRuntime().availableProcessors());
+    }
+
+    public KeyValueServer(KeyValueStore store, InetSocketAddress address, int ioThreads) throws IOException {
+        this.store = store;
+        this.readers = Executors.newFixedThreadPool(Math.max(4, ioThreads * 2), daemonThreads("kvs-server-reader-"));
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+        this.loops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new EventLoop(this, "kvs-server-io-" + i);
+        }
+        this.acceptor = new Thread(this::accept, "kvs-server-acceptor");
+        acceptor.start();
+    }
+
+    /*
+     * The port the server listens on, which is useful when it was started on
+     * port 0.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    KeyValueStore getStore() {
+        return store;
+    }
+
+    ExecutorService getReaders() {
+        return readers;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /*
+     * Hands the accepted connections to the event loops in turn.
+     */
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Stops accepting connections and closes the open ones. Requests that are
+     * still being run are not answered, but the writes among them are still
+     * done by the store.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+        readers.shutdown();
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /*
+     * Serves the store in the given directory: <dir> [port].
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: KeyValueServer <store directory> [port]");
+            System.exit(2);
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        KeyValueStore store = new KeyValueStore(args[0]);
+        KeyValueServer server = new KeyValueServer(store, new InetSocketAddress(port));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                store.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+        System.out.println("Key-value server listening on port " + server.getPort());
+    }
+
+}
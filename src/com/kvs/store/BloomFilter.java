@@ -0,0 +1,92 @@
+// $Id$
+package com.kvs.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A bloom filter of the keys of a sorted table, so that a lookup of a key the
+ * table does not have rarely reads the table.
+ *
+ * With 10 bits per key and 7 probes about 1% of the lookups of missing keys
+ * get through. The probes are derived from one 64 bit hash of the key by
+ * double hashing.
+ */
+
+class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int PROBES = 7;
+
+    private final long[] bits;
+    private final long bitCount;
+
+    BloomFilter(long keyCount) {
+        long wanted = Math.max(64, keyCount * BITS_PER_KEY);
+        this.bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (wanted + 63) / 64)];
+        this.bitCount = bits.length * 64L;
+    }
+
+    private BloomFilter(long[] bits) {
+        this.bits = bits;
+        this.bitCount = bits.length * 64L;
+    }
+
+    void add(String key) {
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String key) {
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * FNV-1a over the chars of the key, with a final mix so that the high bits
+     * used by the second probe are as good as the low ones.
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    static BloomFilter readFrom(DataInputStream in) throws IOException {
+        long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits);
+    }
+
+}
@@ -0,0 +1,61 @@
+// $Id$
+package com.kvs.store;
+
+/**
+* A snapshot of the counters of a store's value cache.
+*/
+
+public class CacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long count;
+    private final long size;
+
+    public CacheStats(long hits, long misses, long evictions, long count, long size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.count = count;
+        this.size = size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /*
+     * Number of values in the cache.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /*
+     * Bytes used by the cached values, including an estimate of the per entry
+     * overhead.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + " misses=" + misses + " evictions=" + evictions + " count=" + count + " size=" + size;
+    }
+
+}
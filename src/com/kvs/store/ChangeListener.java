@@ -0,0 +1,26 @@
+// $Id$
+package com.kvs.store;
+
+import java.util.List;
+
+/**
+* Receives the adds and deletes applied to a store, eg: to ship them to
+* replicas.
+*
+* The changes of each write batch are passed once the batch is written, in the
+* order they were applied. The listener is called on the store's writer
+* thread, so it must hand the changes off rather than do slow work itself.
+* Moving values during compaction and the removal of expired keys are not
+* changes; a replica expires keys by their expiry time. The keys a store drops
+* once they have expired are passed to onExpired instead, also on the writer
+* thread; a key may have been written again since, which the listener has to
+* check by its expiry time.
+*/
+
+public interface ChangeListener {
+
+    void onChanges(List<ChangeRecord> changes);
+
+    void onExpired(List<String> keys);
+
+}
@@ -0,0 +1,58 @@
+// $Id$
+package com.kvs.store;
+
+/**
+ * An add or delete applied to a store, as handed to its change listeners and
+ * applied to a replica.
+ *
+ * The value is the value as it was added, not compressed. The expiry time is
+ * absolute, in seconds since the epoch, or -1 if the key does not expire, so
+ * a replica expires the key at the same time as the store it came from.
+ */
+
+public class ChangeRecord {
+
+    public enum Type {
+        ADD, DELETE
+    }
+
+    private final Type type;
+    private final String key;
+    private final byte[] value;
+    private final int expiryTime;
+
+    private ChangeRecord(Type type, String key, byte[] value, int expiryTime) {
+        this.type = type;
+        this.key = key;
+        this.value = value;
+        this.expiryTime = expiryTime;
+    }
+
+    public static ChangeRecord add(String key, byte[] value, int expiryTime) {
+        return new ChangeRecord(Type.ADD, key, value, expiryTime);
+    }
+
+    public static ChangeRecord delete(String key) {
+        return new ChangeRecord(Type.DELETE, key, null, -1);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /*
+     * The value of an add, null for a delete.
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    public int getExpiryTime() {
+        return expiryTime;
+    }
+
+}
@@ -0,0 +1,139 @@
+// $Id$
+package com.kvs.store;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Value reader that keeps the values file open and does positional reads.
+ * 
+ * A positional read does not move the channel's position, so any number of
+ * threads can read through the same channel without blocking each other.
+ */
+
+class ChannelValueReader implements ValueReader {
+
+    // most values fit into this, so the header and value come in one read.
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private final FileChannel channel;
+    private final ValueCodec codec;
+
+    ChannelValueReader(File file, ValueCodec codec) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.codec = codec;
+    }
+
+    @Override
+    public byte[] read(long offset) throws IOException {
+        return read(offset, false);
+    }
+
+    @Override
+    public int read(long offset, ByteBuffer target) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+        readAtLeast(buffer, offset, 4);
+        buffer.flip();
+        int header = buffer.getInt();
+        int len = ValueCodec.lengthOf(header);
+        if (ValueCodec.codecOf(header) != ValueCodec.NONE) {
+            byte[] value = codec.decode(ValueCodec.codecOf(header), readStored(buffer, offset, len, 0));
+            if (value.length <= target.remaining()) {
+                target.put(value);
+            }
+            return value.length;
+        }
+        if (len > target.remaining()) {
+            return len;
+        }
+        int buffered = Math.min(len, buffer.remaining());
+        buffer.limit(buffer.position() + buffered);
+        target.put(buffer);
+        if (buffered < len) {
+            // read the rest straight into the target.
+            ByteBuffer rest = target.duplicate();
+            rest.limit(rest.position() + len - buffered);
+            readAtLeast(rest, offset + 4L + buffered, len - buffered);
+            target.position(rest.position());
+        }
+        return len;
+    }
+
+    @Override
+    public byte[] readRecord(long offset) throws IOException {
+        return read(offset, true);
+    }
+
+    private byte[] read(long offset, boolean wholeRecord) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+        readAtLeast(buffer, offset, 4);
+        buffer.flip();
+        int header = buffer.getInt();
+        int len = ValueCodec.lengthOf(header);
+        byte[] bytes = readStored(buffer, offset, len, wholeRecord ? 4 : 0);
+        if (wholeRecord) {
+            ByteBuffer.wrap(bytes).putInt(header);
+        }
+        return wholeRecord ? bytes : codec.decode(ValueCodec.codecOf(header), bytes);
+    }
+
+    /*
+     * The stored bytes of the record, put after 'start' bytes of room. The
+     * buffer holds the start of the record just after its header.
+     */
+    private byte[] readStored(ByteBuffer buffer, long offset, int len, int start) throws IOException {
+        byte[] bytes = new byte[start + len];
+        int buffered = Math.min(len, buffer.remaining());
+        buffer.get(bytes, start, buffered);
+        if (buffered < len) {
+            // larger than the buffer, read the rest straight into the value.
+            ByteBuffer rest = ByteBuffer.wrap(bytes, start + buffered, len - buffered);
+            readAtLeast(rest, offset + 4L + buffered, rest.remaining());
+        }
+        return bytes;
+    }
+
+    private void readAtLeast(ByteBuffer buffer, long position, int min) throws IOException {
+        int start = buffer.position();
+        while (buffer.position() - start < min) {
+            int read = channel.read(buffer, position + buffer.position() - start);
+            if (read < 0) {
+                throw new EOFException("Value at offset " + position + " is truncated.");
+            }
+        }
+    }
+
+    @Override
+    public void extend(long length) {
+        // reads go to the file whatever its state.
+    }
+
+    @Override
+    public void seal() {
+        // reads go to the file whatever its state.
+    }
+
+    @Override
+    public boolean needsRelease() {
+        return false;
+    }
+
+    @Override
+    public void release() {
+        // nothing is held besides the channel.
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,16 @@
+// $Id$
+package com.kvs.store;
+
+/**
+* Codecs the values can be stored with.
+*/
+
+public enum Compression {
+
+    // values are stored as they are.
+    NONE,
+
+    // values are deflated, with the store's dictionary if it has one.
+    DEFLATE
+
+}
@@ -0,0 +1,19 @@
+// $Id$
+package com.kvs.store;
+
+/**
+* Tells when the written data is forced to the disk.
+*/
+
+public enum Durability {
+
+    // every batch is forced to the disk before its writes are acknowledged.
+    BATCH,
+
+    // written batches are forced to the disk once in every sync interval.
+    INTERVAL,
+
+    // the data is left in the OS buffers and is never forced explicitly.
+    OS
+
+}
@@ -0,0 +1,18 @@
+// $Id$
+package com.kvs.store;
+
+/**
+* Storage engines a data store can be built on.
+*/
+
+public enum Engine {
+
+    // all the keys in memory, the values in an append only log of segments.
+    LOG,
+
+    // an LSM tree: a memtable with a write-ahead log, flushed to sorted
+    // tables that are merged in the background. Only a sparse index and a
+    // bloom filter per table are kept in memory.
+    LSM
+
+}
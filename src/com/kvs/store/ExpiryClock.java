@@ -0,0 +1,43 @@
+// $Id$
+package com.kvs.store;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The current time in seconds, as used for the expiry times of the keys.
+ *
+ * Expiry times only have a precision of one second, so the time is read from
+ * the system clock by a daemon thread a few times a second and a check only
+ * reads a volatile field.
+ */
+
+public final class ExpiryClock {
+
+    private static final long TICK_MILLIS = 100;
+
+    private static volatile int currentTime = readSystemTime();
+
+    static {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kvs-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> currentTime = readSystemTime(), TICK_MILLIS, TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private ExpiryClock() {
+    }
+
+    public static int currentTime() {
+        return currentTime;
+    }
+
+    private static int readSystemTime() {
+        return (int) (System.currentTimeMillis() / 1000);
+    }
+
+}
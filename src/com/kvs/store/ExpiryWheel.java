@@ -0,0 +1,103 @@
+// $Id$
+package com.kvs.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Finds the keys that have expired without looking at the others.
+ *
+ * It is a hashed timing wheel with one slot per second. A key is put in the
+ * slot of the second it expires in; keys expiring more than a turn of the
+ * wheel ahead share the slot and stay in it until their turn comes. Adding a
+ * key and advancing the wheel by a second are O(1) apart from the keys that
+ * are due.
+ *
+ * The wheel holds the latest key added for each name: adding a key again
+ * replaces its old entry, and a deleted key is removed, so the wheel never
+ * holds more than one entry per live key.
+ *
+ * Not thread safe; a data store only uses it from its writer thread.
+ */
+
+class ExpiryWheel {
+
+    // one hour of one second slots.
+    private static final int WHEEL_SIZE = 3600;
+
+    private final List<Map<String, Key>> slots = new ArrayList<>(WHEEL_SIZE);
+    // the slot of every key in the wheel, by name.
+    private final Map<String, Integer> slotOf = new HashMap<>();
+    // the last second the wheel has been advanced to.
+    private int time;
+
+    ExpiryWheel(int time) {
+        this.time = time;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            slots.add(new HashMap<>(0));
+        }
+    }
+
+    /*
+     * Adds a key with an expiry time, replacing the entry of an earlier key of
+     * the same name. A key is expired once the time is past its expiry time,
+     * so it is due at the second after it.
+     */
+    void add(Key key) {
+        remove(key.getKey());
+        if (key.getExpiryTime() == -1) {
+            return;
+        }
+        // a key that is already due is handed out by the next advance.
+        int due = Math.max(key.getExpiryTime() + 1, time + 1);
+        int index = Math.floorMod(due, WHEEL_SIZE);
+        slots.get(index).put(key.getKey(), key);
+        slotOf.put(key.getKey(), index);
+    }
+
+    /*
+     * Removes the entry of the key, eg: when it is deleted.
+     */
+    void remove(String key) {
+        Integer index = slotOf.remove(key);
+        if (index != null) {
+            slots.get(index).remove(key);
+        }
+    }
+
+    /*
+     * Advances the wheel to the given second, handing out the keys that are due
+     * by then.
+     */
+    void advance(int now, Consumer<Key> expired) {
+        int seconds = Math.min(now - time, WHEEL_SIZE);
+        for (int i = 1; i <= seconds; i++) {
+            int index = Math.floorMod(time + i, WHEEL_SIZE);
+            Map<String, Key> slot = slots.get(index);
+            if (slot.isEmpty()) {
+                continue;
+            }
+            // the keys of later turns; a new map also gives back the space of
+            // a slot that had a burst of keys.
+            Map<String, Key> later = new HashMap<>(0);
+            for (Key key : slot.values()) {
+                if (key.getExpiryTime() < now) {
+                    slotOf.remove(key.getKey());
+                    expired.accept(key);
+                } else {
+                    later.put(key.getKey(), key);
+                }
+            }
+            slots.set(index, later);
+        }
+        time = Math.max(time, now);
+    }
+
+    int size() {
+        return slotOf.size();
+    }
+
+}
@@ -1,303 +1,1735 @@
 // $Id$
 package com.kvs.store;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.kvs.metrics.MetricsSnapshot;
+import com.kvs.metrics.StoreMetrics;
 
 /**
  * A file based data store.
  * 
- * Here there are two files - keys & values.
+ * Here there are two kinds of files - keys & values segments.
+ * 
+ * keys file contain the key's name, the segment and offset of it's value, the
+ * size of the value's record and the expiry time. A delete appends a tombstone
+ * record for the key.
+ * 
+ * values segments (values.0, values.1, ...) contain the actual values. New
+ * values are appended to the last segment and once it reaches the segment size
+ * a new segment is started.
+ * 
+ * Only the keys data is kept in memory. For every get, the segment and offset
+ * of the value is obtained and the value is read.
  * 
- * keys file contain the key's name, offset of it's value in the "values" file
- * and the expiry time.
+ * The keys map is also written periodically to a checkpoint file along with
+ * the position of the keys file it covers. On open, the checkpoint is loaded
+ * and only the keys file after that position is replayed.
  * 
- * values file contain the actual value.
+ * Adds and deletes are queued to a group commit writer. Its thread is the only
+ * one that appends to the files, it writes a whole batch of queued writes at
+ * once and updates the keys map after the batch is written. The adds and
+ * deletes of the batch are then passed to the change listeners.
  * 
- * Only the keys data is kept in memory. For every get, the offset of the values
- * file is obtained and the value is read.
+ * Operation latencies, lock waits, the bytes written and read and the
+ * compactions are recorded in the store's metrics, which are also registered
+ * as an MXBean.
+ * 
+ * A store opened read-only has no writer. It follows the keys file of the
+ * process that writes the directory: the records appended since the last
+ * refresh are applied to its keys map, and when compaction has swapped in a
+ * new keys file, the new file is loaded and the segments it removed are
+ * closed. Values are only appended to the segments before their keys, so a
+ * key read from the keys file always points at a complete value.
  */
 
 class FileBasedKeyValueDataStore implements KeyValueDataStore {
 
-    private static final long MAX_LEN = 1024 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "values.";
+    private static final int CHECKPOINT_MAGIC = 0x4B56434B;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final Comparator<Key> RECORD_ORDER = Comparator.comparingInt(Key::getSegment)
+            .thenComparingLong(Key::getOffset);
+    // number of relocations compaction keeps queued at a time.
+    private static final int RELOCATION_BATCH_SIZE = 1024;
+    private static final long EXPIRY_INTERVAL_MILLIS = 1000;
+    // keys whose values are read together by a scan.
+    private static final int SCAN_CHUNK_SIZE = 256;
     private static final ConcurrentHashMap<String, KeyValueDataStore> INSTANCE_MAP = new ConcurrentHashMap<>();
+    // the holder each thread looks the keys of its gets up into.
+    private static final ThreadLocal<KeyLocation> LOCATIONS = ThreadLocal.withInitial(KeyLocation::new);
 
-    private final ConcurrentHashMap<String, Key> keyMap = new ConcurrentHashMap<>();
+    private final KeyIndex keyMap;
     private final String dir;
-    private File keyFile;
-    private File valueFile;
-    private final AtomicBoolean isDeletePerformed = new AtomicBoolean(false);
+    private final StoreOptions options;
+    private final boolean readOnly;
+    private final File keyFile;
+    private final File checkpointFile;
+    // position of the keys file covered by the last checkpoint.
+    private volatile long checkpointPosition = -1;
+    // the keys file followed by a read-only store and how far it was read.
+    private Object keyFileId;
+    private long tailPosition;
+    private final long segmentSize;
+    // cache of the values read, null if the cache is disabled.
+    private final ValueCache cache;
+    // readers of all the segments, by segment id.
+    private final ValueCodec codec;
+    private final ConcurrentHashMap<Integer, ValueReader> readers = new ConcurrentHashMap<>();
+    // append channels and file lengths, only used by the writer thread.
+    private FileChannel keyChannel;
+    private FileChannel valueChannel;
+    private int activeSegment;
+    private long keyFileLength;
+    private long valueFileLength;
+    private final GroupCommitWriter writer;
+    // keys with an expiry time, only used by the writer thread once loaded.
+    private final ExpiryWheel expiryWheel = new ExpiryWheel(ExpiryClock.currentTime());
+    // bytes of every segment that no live key uses, by segment. Changed by
+    // the writer thread, and by compaction when it removes segments.
+    private final ConcurrentHashMap<Integer, Long> deadBytes = new ConcurrentHashMap<>();
+    private final StoreMetrics metrics;
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
 
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // held by compaction and checkpoints, so that close can wait for them.
+    private final Object maintenanceLock = new Object();
+    // the periodic tasks on the shared scheduler, cancelled on close.
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+    private final RateLimiter compactionLimiter;
+    private volatile boolean closed;
+    // set when a failed write could not be undone, no write is made after it.
+    private volatile IOException writeFailure;
 
-    /*
-     * As all the data is written in an append only manner. We have to
-     * periodically remove deleted items from the files. This compaction thread
-     * rewrites the file to remove the deleted items.
-     */
-    private final TimerTask compactionTask = new TimerTask() {
+    private final GroupCommitWriter.BatchHandler batchHandler = new GroupCommitWriter.BatchHandler() {
 
         @Override
-        public void run() {
-            try {
-                compact();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        public void write(List<WriteOp> batch) throws IOException {
+            writeBatch(batch);
+        }
+
+        @Override
+        public void sync() throws IOException {
+            keyChannel.force(false);
+            valueChannel.force(false);
         }
     };
 
-    static KeyValueDataStore getInstance(String dir) throws IOException {
+    static KeyValueDataStore getInstance(String dir, StoreOptions options) throws IOException {
+        if (options.isReadOnly()) {
+            // a reader never shares the instance of the writer.
+            return new FileBasedKeyValueDataStore(dir, options);
+        }
         if (!INSTANCE_MAP.containsKey(dir)) {
-            INSTANCE_MAP.put(dir, new FileBasedKeyValueDataStore(dir));
+            INSTANCE_MAP.put(dir, new FileBasedKeyValueDataStore(dir, options));
         }
         return INSTANCE_MAP.get(dir);
     }
 
-    private FileBasedKeyValueDataStore(String dir) throws IOException {
+    /*
+     * Stops the background tasks, waiting for a running compaction or
+     * checkpoint, then writes and syncs the queued writes and closes the
+     * files. Writes and reads fail after this, and the directory can be
+     * opened again.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (tasks) {
+            for (ScheduledFuture<?> task : tasks) {
+                task.cancel(false);
+            }
+        }
+        synchronized (maintenanceLock) {
+            if (closed) {
+                return;
+            }
+            if (writer != null) {
+                await(writer.close());
+            }
+            lockWrite();
+            try {
+                closed = true;
+                if (!readOnly) {
+                    keyChannel.close();
+                    valueChannel.close();
+                }
+                for (ValueReader reader : readers.values()) {
+                    reader.close();
+                }
+                readers.clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            metrics.unregister();
+            INSTANCE_MAP.remove(dir, this);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new RuntimeException("The store is closed.");
+        }
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new RuntimeException("The store is opened read-only.");
+        }
+    }
+
+    /*
+     * Takes the read lock, recording how long it had to wait for it.
+     */
+    private void lockRead() {
+        if (lock.readLock().tryLock()) {
+            metrics.recordReadLockWait(0);
+            return;
+        }
+        long start = System.nanoTime();
+        lock.readLock().lock();
+        metrics.recordReadLockWait(System.nanoTime() - start);
+    }
+
+    private void lockWrite() {
+        if (lock.writeLock().tryLock()) {
+            metrics.recordWriteLockWait(0);
+            return;
+        }
+        long start = System.nanoTime();
+        lock.writeLock().lock();
+        metrics.recordWriteLockWait(System.nanoTime() - start);
+    }
+
+    private static KeyIndex newKeyIndex(IndexType indexType) {
+        switch (indexType) {
+            case PACKED:
+                return new PackedKeyIndex();
+            case ORDERED:
+                return new OrderedKeyIndex();
+            default:
+                return new HashKeyIndex();
+        }
+    }
+
+    private FileBasedKeyValueDataStore(String dir, StoreOptions options) throws IOException {
         this.dir = dir;
-        this.keyFile = new File(dir + File.separator + "keys");
-        this.valueFile = new File(dir + File.separator + "values");
+        this.options = options;
+        this.readOnly = options.isReadOnly();
+        this.keyFile = new File(dir, "keys");
+        this.checkpointFile = new File(dir, "checkpoint");
+        this.segmentSize = options.getSegmentSize();
+        this.keyMap = newKeyIndex(options.getIndexType());
+        this.cache = options.getCacheSize() > 0 ? new ValueCache(options.getCacheSize()) : null;
+        this.codec = new ValueCodec(options.getCompression(), loadDictionary(options.getCompressionDictionary()));
+        this.compactionLimiter = new RateLimiter(options.getCompactionBytesPerSecond());
+        this.metrics = new StoreMetrics(this::segmentBytes, this::deadBytes);
+        if (readOnly) {
+            openReadOnly();
+            this.writer = null;
+            metrics.register(dir + " (read-only)");
+            // picks up the writes made by the writer of the directory.
+            schedule(this::refresh, options.getRefreshIntervalMillis());
+            return;
+        }
+        if (LegacyFormatMigration.isNeeded(keyFile)) {
+            LegacyFormatMigration.migrate(keyFile, segmentFile(0));
+        }
         loadExistingData();
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(compactionTask, TimeUnit.MINUTES.toMillis(2), TimeUnit.MINUTES.toMillis(2));
+        trackLoadedKeys();
+        openFiles();
+        this.writer = new GroupCommitWriter(dir, batchHandler, options.getDurability(), options.getSyncIntervalMillis(),
+                metrics);
+        metrics.register(dir);
+        // removes the keys from the keys map as they expire.
+        schedule(() -> await(writer.execute(() -> expireKeys())), EXPIRY_INTERVAL_MILLIS);
+        // a snapshot of the keys map, so that a restart only has to replay the
+        // keys written after it.
+        schedule(this::checkpoint, options.getCheckpointIntervalMillis());
+        // as all the data is written in an append only manner, the segments
+        // are rewritten without the deleted items once there are enough.
+        synchronized (tasks) {
+            tasks.add(MaintenanceScheduler.scheduleCompaction(this::needsCompaction, this::compactInBackground));
+        }
+    }
+
+    private void schedule(MaintenanceScheduler.Task task, long intervalMillis) {
+        synchronized (tasks) {
+            tasks.add(MaintenanceScheduler.schedule(task, intervalMillis));
+        }
+    }
+
+    /*
+     * The compression dictionary of the store. The records compressed with it
+     * can only be read with the same dictionary, so it is kept in the store's
+     * directory once given and cannot be changed afterwards.
+     */
+    private byte[] loadDictionary(byte[] given) throws IOException {
+        File file = new File(dir, "dictionary");
+        if (file.exists()) {
+            byte[] dictionary = Files.readAllBytes(file.toPath());
+            if (given != null && !Arrays.equals(given, dictionary)) {
+                throw new RuntimeException("The store has a different compression dictionary.");
+            }
+            return dictionary;
+        }
+        if (given != null && !readOnly) {
+            File newFile = new File(dir, "newdictionary");
+            Files.write(newFile.toPath(), given);
+            Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return given;
     }
 
     /*
-     * Loads all the existing unexpired keys into the memory.
+     * Loads all the existing unexpired keys into the memory. The checkpoint is
+     * loaded first if there is one, and then only the part of the keys file
+     * written after it is replayed. A partly written last record is cut off.
      */
     private void loadExistingData() throws IOException {
         if (keyFile.exists()) {
-            FileInputStream in = new FileInputStream(keyFile);
+            long position = loadCheckpoint();
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(keyFile), READ_BUFFER_SIZE));
+            long validLength;
             try {
-                byte[] bytes = new byte[4];
-                while (in.read(bytes) != -1) {
-                    int offset = getAsInt(bytes);
-                    in.read(bytes);
-                    int ttl = getAsInt(bytes);
-                    in.read(bytes);
-                    int len = getAsInt(bytes);
-                    byte[] keyBytes = new byte[len];
-                    in.read(keyBytes);
-                    String keyStr = new String(keyBytes);
-                    Key key = new Key(keyStr, offset, ttl);
-                    if (!key.isExpired()) {
-                        keyMap.put(keyStr, key);
-                    }
+                in.skipBytes(4);
+                long skipped = 4;
+                while (skipped < position) {
+                    skipped += in.skip(position - skipped);
                 }
+                validLength = position + replayKeys(in);
             } finally {
                 in.close();
             }
+            tailPosition = validLength;
+            if (keyFile.length() > validLength && !readOnly) {
+                FileChannel channel = FileChannel.open(keyFile.toPath(), StandardOpenOption.WRITE);
+                try {
+                    channel.truncate(validLength);
+                } finally {
+                    channel.close();
+                }
+            }
         } else {
-            keyFile.createNewFile();
-            valueFile.createNewFile();
+            persistAllKeys(keyFile, keyMap);
         }
-        System.out.println(keyMap);
     }
 
     /*
-     * Adds a value to the store if it does not exist.
+     * Loads the keys of the checkpoint file and returns the position of the
+     * keys file it covers. Without a usable checkpoint, the whole keys file
+     * after its header has to be replayed.
      */
-    @Override
-    public void add(String key, String value, int ttl) throws IOException {
-        lock.writeLock().lock();
-        try {
-            // check to ensure that file size is not greater than 1GB.
-            long totalLen = keyFile.length() + valueFile.length();
-            if (totalLen > MAX_LEN) {
-                throw new RuntimeException("Total data size has crossed 1GB");
-            }
-            if (keyMap.containsKey(key) && !keyMap.get(key).isExpired()) {
-                throw new RuntimeException("Key already exists.");
-            } else {
-                // first persist the value to get the offset
-                int offset = persistValue(valueFile, value);
-                // set the expiry time based on the TTL
-                int expiryTime = -1;
-                if (ttl > 0) {
-                    int currTime = (int) (System.currentTimeMillis() / 1000);
-                    expiryTime = currTime + ttl;
+    private long loadCheckpoint() throws IOException {
+        if (checkpointFile.exists()) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(checkpointFile), READ_BUFFER_SIZE));
+            try {
+                long position = in.readInt() == CHECKPOINT_MAGIC ? in.readLong() : -1;
+                if (position >= 4 && position <= keyFile.length()) {
+                    replayKeys(in);
+                    this.checkpointPosition = position;
+                    return position;
                 }
-                Key sKey = new Key(key, offset, expiryTime);
-                keyMap.put(key, sKey);
-                // persist the key to the file.
-                persistKey(keyFile, sKey);
+            } catch (EOFException e) {
+                // not a complete checkpoint.
+            } finally {
+                in.close();
             }
-        } finally {
-            lock.writeLock().unlock();
+            System.err.println("Ignoring the checkpoint " + checkpointFile + " since it does not match the keys file.");
+            keyMap.clear();
         }
+        return 4;
     }
 
-    @Override
-    public void delete(String key) throws IOException {
-        lock.writeLock().lock();
-        try {
-            if (!keyMap.containsKey(key)) {
-                throw new RuntimeException("Key does not exist.");
+    /*
+     * Adds the loaded keys that have an expiry time to the expiry wheel, and
+     * works out the bytes of every segment that no loaded key uses.
+     */
+    private void trackLoadedKeys() {
+        Map<Integer, Long> liveBytes = new HashMap<>();
+        for (Key sKey : keyMap) {
+            liveBytes.merge(sKey.getSegment(), (long) sKey.getSize(), Long::sum);
+            expiryWheel.add(sKey);
+        }
+        for (int segment : listSegments()) {
+            long dead = segmentFile(segment).length() - liveBytes.getOrDefault(segment, 0L);
+            if (dead > 0) {
+                deadBytes.put(segment, dead);
             }
-            keyMap.remove(key);
-            // set this as true for compaction to run.
-            isDeletePerformed.set(true);
-            // since we don't know what keys have been deleted, persist all keys
-            persistAllKeys(keyFile, keyMap);
-        } finally {
-            lock.writeLock().unlock();
         }
     }
 
-    @Override
-    public String get(String key) throws IOException {
-        lock.readLock().lock();
-        try {
-            if (!keyMap.containsKey(key)) {
-                throw new RuntimeException("Key does not exist.");
+    private void addDeadBytes(Key sKey) {
+        deadBytes.merge(sKey.getSegment(), (long) sKey.getSize(), Long::sum);
+    }
+
+    private long deadBytes() {
+        long bytes = 0;
+        for (long dead : deadBytes.values()) {
+            bytes += dead;
+        }
+        return bytes;
+    }
+
+    /*
+     * Removes the keys that have expired from the keys map. Runs on the writer
+     * thread, so that it never races with a write of the same key. The key in
+     * the map is checked, since a compaction may have relocated it. The
+     * removed keys are reported to the change listeners.
+     */
+    private Void expireKeys() {
+        List<String> expired = new ArrayList<>();
+        expiryWheel.advance(ExpiryClock.currentTime(), sKey -> {
+            Key current = keyMap.get(sKey.getKey());
+            if (current != null && current.isExpired()) {
+                keyMap.remove(current);
+                addDeadBytes(current);
+                if (cache != null) {
+                    cache.invalidate(current);
+                }
+                expired.add(current.getKey());
             }
-            Key sKey = keyMap.get(key);
-            if (sKey.isExpired()) {
-                throw new RuntimeException("Key does not exist.");
-            } else {
-                return getValue(sKey.getOffset());
+        });
+        if (!expired.isEmpty()) {
+            for (ChangeListener listener : changeListeners) {
+                try {
+                    listener.onExpired(expired);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
             }
-        } finally {
-            lock.readLock().unlock();
         }
+        return null;
+    }
+
+    /*
+     * Applies the key records of the stream to the keys map. Records are
+     * applied in order, so a later record or tombstone overrides an earlier one
+     * for the same key. Returns the length of the complete records read.
+     */
+    private long replayKeys(DataInputStream in) throws IOException {
+        return readKeys(in, key -> {
+            if (key.isTombstone() || key.isExpired()) {
+                keyMap.remove(key.getKey());
+            } else {
+                keyMap.put(key);
+            }
+        });
     }
 
-    private synchronized void persistKey(File file, Key key) throws IOException {
-        FileOutputStream out = new FileOutputStream(file, true);
+    /*
+     * Passes the key records of the stream to the consumer in order and
+     * returns the length of the complete records read.
+     */
+    private static long readKeys(DataInputStream in, Consumer<Key> consumer) throws IOException {
+        long length = 0;
+        byte[] header = new byte[Key.HEADER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(header);
         try {
-            out.write(key.convertToBytes());
-        } finally {
-            out.close();
+            while (true) {
+                in.readFully(header);
+                buffer.clear();
+                int segment = buffer.getInt();
+                long offset = buffer.getLong();
+                int size = buffer.getInt();
+                int ttl = buffer.getInt();
+                byte[] keyBytes = new byte[buffer.getInt()];
+                in.readFully(keyBytes);
+                String keyStr = new String(keyBytes, StandardCharsets.UTF_8);
+                consumer.accept(new Key(keyStr, segment, offset, size, ttl));
+                length += header.length + keyBytes.length;
+            }
+        } catch (EOFException e) {
+            // end of the records.
+        }
+        return length;
+    }
+
+    /*
+     * Writes the keys map to the checkpoint file, if keys have been written
+     * since the last checkpoint. Like the keys file rewrite, the map is written
+     * while writes go on; the changes made after the recorded position are in
+     * the keys file after that position and are replayed on top of it.
+     * 
+     * The checkpoint is written aside and renamed into place.
+     */
+    private void checkpoint() throws IOException {
+        synchronized (maintenanceLock) {
+            if (!closed) {
+                writeCheckpoint();
+            }
         }
     }
 
-    private synchronized void persistAllKeys(File file, Map<String, Key> map) throws IOException {
-        FileOutputStream out = new FileOutputStream(file);
+    private void writeCheckpoint() throws IOException {
+        long position = await(writer.execute(() -> keyFileLength));
+        if (position == checkpointPosition) {
+            return;
+        }
+        File newCheckpointFile = new File(dir, "newcheckpoint");
+        FileOutputStream fileOut = new FileOutputStream(newCheckpointFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, READ_BUFFER_SIZE));
         try {
-            for (Key key : map.values()) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(position);
+            for (Key key : keyMap) {
                 out.write(key.convertToBytes());
             }
+            out.flush();
+            fileOut.getChannel().force(false);
         } finally {
             out.close();
         }
+        Files.move(newCheckpointFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        this.checkpointPosition = position;
     }
 
-    private synchronized int persistValue(File file, String value) throws IOException {
-        FileOutputStream out = new FileOutputStream(file, true);
-        try {
-            long currPos = out.getChannel().position();
-            out.write(getBytes(value.length()));
-            out.write(value.getBytes());
-            return (int) currPos;
-        } finally {
-            out.close();
+    /*
+     * Opens the readers of all the segments and the append channels. The last
+     * segment is the active one.
+     */
+    private void openFiles() throws IOException {
+        int lastSegment = 0;
+        for (int segment : listSegments()) {
+            readers.put(segment, newValueReader(segmentFile(segment)));
+            lastSegment = Math.max(lastSegment, segment);
         }
+        sealBefore(lastSegment);
+        openKeyChannel();
+        openSegment(lastSegment);
     }
 
-    private String getValue(int offset) throws IOException {
-        FileInputStream in = new FileInputStream(valueFile);
-        try {
-            byte[] bytes = new byte[4];
-            in.getChannel().position(offset);
-            in.read(bytes);
-            int len = getAsInt(bytes);
-            byte[] valueBytes = new byte[len];
-            in.read(valueBytes);
-            return new String(valueBytes);
-        } finally {
-            in.close();
+    /*
+     * Loads the keys of a read-only store and opens the readers of its
+     * segments. The keys file is loaded again if compaction swapped it in the
+     * meanwhile, since the checkpoint read may belong to the old one.
+     */
+    private void openReadOnly() throws IOException {
+        if (!keyFile.exists()) {
+            throw new RuntimeException(dir + " has no key-value store to read.");
+        } else if (LegacyFormatMigration.isNeeded(keyFile)) {
+            throw new RuntimeException("The store has to be opened for writes once to update its format.");
+        }
+        Object loadedId;
+        do {
+            keyMap.clear();
+            loadedId = fileId(keyFile);
+            loadExistingData();
+        } while (!Objects.equals(loadedId, fileId(keyFile)));
+        this.keyFileId = loadedId;
+        int lastSegment = 0;
+        for (int segment : listSegments()) {
+            readers.put(segment, newValueReader(segmentFile(segment)));
+            lastSegment = Math.max(lastSegment, segment);
         }
+        // the writer only appends to its last segment.
+        sealBefore(lastSegment);
     }
 
     /*
-     * Gets all the existing keys. For all unexpired keys, the value is written
-     * into the new file. After all values and keys are written to the new ones,
-     * during the post compact ops - files are replaced.
-     * 
-     * All CD ops will wait during compaction. All get ops will wait during post
-     * compaction ops.
+     * Identifies the file by its inode, which a rename over it changes.
      */
-    private void compact() throws IOException {
-        lock.writeLock().lock();
+    private static Object fileId(File file) throws IOException {
         try {
-            if (isCompactionNeeded()) {
-                isDeletePerformed.set(false);
-                Set<String> keys = keyMap.keySet();
-                Map<String, Key> newKeys = new HashMap<>();
-                File newValuesFile = new File(dir + File.separator + "newvalues");
-                newValuesFile.createNewFile();
-                if (newValuesFile.exists()) {
-                    for (String key : keys) {
-                        Key sKey = keyMap.get(key);
-                        if (sKey != null && !sKey.isExpired()) {
-                            int offset = persistValue(newValuesFile, get(key));
-                            Key newKey = new Key(key, offset, sKey.getExpiryTime());
-                            newKeys.put(key, newKey);
-                        }
-                    }
-                    File newKeysFile = new File(dir + File.separator + "newkeys");
-                    newKeysFile.createNewFile();
-                    persistAllKeys(newKeysFile, newKeys);
-                    int oldSize = keyMap.size();
-                    doPostCompactOps(newKeysFile, newValuesFile);
-                    System.out.println("Compaction done. " + (oldSize - keyMap.size()) + " key(s) were removed.");
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Applies the key records the writer has appended since the last refresh,
+     * or loads the whole keys file again if compaction has replaced it.
+     */
+    private void refresh() throws IOException {
+        synchronized (maintenanceLock) {
+            if (closed) {
+                return;
+            }
+            Object id = fileId(keyFile);
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(keyFile.toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                // being swapped, next time.
+                return;
+            }
+            try {
+                if (!Objects.equals(id, fileId(keyFile))) {
+                    // swapped while it was opened, the channel may have either.
+                    return;
+                }
+                if (!Objects.equals(id, keyFileId) || channel.size() < tailPosition) {
+                    reloadKeys(channel);
+                    keyFileId = id;
+                } else if (channel.size() > tailPosition) {
+                    tailKeys(channel);
                 }
+                // the reads map the segments the writer extends.
+                for (ValueReader reader : readers.values()) {
+                    release(reader);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private void tailKeys(FileChannel channel) throws IOException {
+        List<Key> tail = new ArrayList<>();
+        channel.position(tailPosition);
+        long length = readKeys(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel),
+                READ_BUFFER_SIZE)), tail::add);
+        if (!openReaders(tail)) {
+            // a segment of these keys is gone, so a new keys file is on its way.
+            return;
+        }
+        for (Key sKey : tail) {
+            Key existing = keyMap.get(sKey.getKey());
+            if (sKey.isTombstone() || sKey.isExpired()) {
+                keyMap.remove(sKey.getKey());
             } else {
-                System.err.println("Compaction not needed since there are no expired/ deleted keys.");
+                keyMap.put(sKey);
+            }
+            if (existing != null && cache != null) {
+                cache.invalidate(existing);
             }
-        } finally {
-            lock.writeLock().unlock();
         }
+        tailPosition += length;
     }
 
     /*
-     * Replaces the old files with new ones and reopens them.
+     * Loads a keys file written by compaction. The keys map is brought in
+     * line with it key by key rather than replaced, so the scans going on
+     * keep seeing every key. The changed keys are worked out first and then
+     * applied under the write lock together with closing the segments
+     * compaction has removed, so that a get never sees the new state of some
+     * keys and the old state of others.
      */
-    private void doPostCompactOps(File newKeysFile, File newValuesFile) throws IOException {
-        lock.readLock().lock();
+    private void reloadKeys(FileChannel channel) throws IOException {
+        KeyIndex loaded = newKeyIndex(options.getIndexType());
+        channel.position(4);
+        long length = readKeys(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel),
+                READ_BUFFER_SIZE)), key -> {
+                    if (key.isTombstone() || key.isExpired()) {
+                        loaded.remove(key.getKey());
+                    } else {
+                        loaded.put(key);
+                    }
+                });
+        List<Key> keys = new ArrayList<>();
+        for (Key sKey : loaded) {
+            keys.add(sKey);
+        }
+        if (!openReaders(keys)) {
+            return;
+        }
+        List<Key> changed = new ArrayList<>();
+        for (Key sKey : keys) {
+            Key existing = keyMap.get(sKey.getKey());
+            if (existing == null || !existing.isSameRecord(sKey) || existing.getExpiryTime() != sKey.getExpiryTime()) {
+                changed.add(sKey);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (Key sKey : keyMap) {
+            if (loaded.get(sKey.getKey()) == null) {
+                removed.add(sKey.getKey());
+            }
+        }
+        tailPosition = 4 + length;
+        Set<Integer> segments = new HashSet<>(listSegments());
+        lockWrite();
         try {
-            keyFile.delete();
-            valueFile.delete();
-            newKeysFile.renameTo(keyFile);
-            newValuesFile.renameTo(valueFile);
-            this.keyFile = new File(dir + File.separator + "keys");
-            this.valueFile = new File(dir + File.separator + "values");
-            keyMap.clear();
-            loadExistingData();
+            for (Key sKey : changed) {
+                keyMap.put(sKey);
+            }
+            for (String key : removed) {
+                keyMap.remove(key);
+            }
+            for (Iterator<Map.Entry<Integer, ValueReader>> it = readers.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Integer, ValueReader> entry = it.next();
+                if (!segments.contains(entry.getKey())) {
+                    entry.getValue().close();
+                    it.remove();
+                }
+            }
         } finally {
-            lock.readLock().unlock();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Opens the readers of the segments the keys point at that are not open
+     * yet. False if one of them no longer exists.
+     */
+    private boolean openReaders(List<Key> keys) throws IOException {
+        for (Key sKey : keys) {
+            int segment = sKey.getSegment();
+            if (!sKey.isTombstone() && !readers.containsKey(segment)) {
+                File file = segmentFile(segment);
+                if (!file.exists()) {
+                    return false;
+                }
+                readers.put(segment, newValueReader(file));
+                sealBefore(segment);
+            }
         }
+        return true;
     }
 
-    private boolean isCompactionNeeded() {
-        // either delete has to done or any of the keys should have expired.
-        return isDeletePerformed.get() || keyMap.values().stream().anyMatch(Key::isExpired);
+    private void openKeyChannel() throws IOException {
+        this.keyChannel = FileChannel.open(keyFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.keyFileLength = keyChannel.size();
     }
 
-    private static final byte[] getBytes(int value) {
-        byte[] bytes = new byte[4];
-        bytes[0] = (byte) (value >> 24);
-        bytes[1] = (byte) (value >> 16);
-        bytes[2] = (byte) (value >> 8);
-        bytes[3] = (byte) value;
-        return bytes;
+    private void openSegment(int segment) throws IOException {
+        File file = segmentFile(segment);
+        this.valueChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.valueFileLength = valueChannel.size();
+        this.activeSegment = segment;
+        if (!readers.containsKey(segment)) {
+            readers.put(segment, newValueReader(file));
+        }
+    }
+
+    /*
+     * Seals the active segment and starts a new one. The sealed segment is
+     * never written again.
+     */
+    private void rollSegment() throws IOException {
+        valueChannel.force(false);
+        valueChannel.close();
+        ValueReader reader = readers.get(activeSegment);
+        reader.seal();
+        release(reader);
+        openSegment(activeSegment + 1);
+    }
+
+    /*
+     * Frees what the reader no longer uses if that is worth it. A read may
+     * still be using it, so this waits for the write lock.
+     */
+    private void release(ValueReader reader) {
+        if (reader.needsRelease()) {
+            lockWrite();
+            try {
+                reader.release();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /*
+     * Seals the readers of the segments before the given one, which are not
+     * written any more.
+     */
+    private void sealBefore(int segment) {
+        for (Map.Entry<Integer, ValueReader> reader : readers.entrySet()) {
+            if (reader.getKey() < segment) {
+                reader.getValue().seal();
+            }
+        }
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, SEGMENT_PREFIX + segment);
+    }
+
+    private List<Integer> listSegments() {
+        List<Integer> segments = new ArrayList<>();
+        String[] names = new File(dir).list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX)) {
+                    try {
+                        segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment.
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /*
+     * Adds a value to the store if it does not exist.
+     */
+    @Override
+    public void add(String key, ByteBuffer value, int ttl) throws IOException {
+        await(addAsync(key, value, ttl));
+    }
+
+    /*
+     * The value is copied into its record before this returns, so the buffer
+     * can be reused right away.
+     */
+    @Override
+    public CompletableFuture<Void> addAsync(String key, ByteBuffer value, int ttl) {
+        checkWritable();
+        return writer.submit(WriteOp.add(key, codec.encode(value), ttl));
     }
 
-    private static final int getAsInt(byte[] bytes) {
-        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+    /*
+     * Adds all the entries as one group, either all of them are added or none
+     * if any of the keys already exists.
+     */
+    @Override
+    public void multiAdd(Map<String, ByteBuffer> entries, int ttl) throws IOException {
+        await(multiAddAsync(entries, ttl));
+    }
+
+    CompletableFuture<Void> multiAddAsync(Map<String, ByteBuffer> entries, int ttl) {
+        checkWritable();
+        List<WriteOp> ops = new ArrayList<>(entries.size());
+        for (Map.Entry<String, ByteBuffer> entry : entries.entrySet()) {
+            ops.add(WriteOp.add(entry.getKey(), codec.encode(entry.getValue()), ttl));
+        }
+        return writer.submit(WriteOp.group(ops));
+    }
+
+    /*
+     * Adds the value, or replaces it if the key exists. The old record is
+     * left to compaction.
+     */
+    @Override
+    public void put(String key, ByteBuffer value, int ttl) throws IOException {
+        await(putAsync(key, value, ttl));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, ByteBuffer value, int ttl) {
+        checkWritable();
+        return writer.submit(WriteOp.put(key, codec.encode(value), ttl));
+    }
+
+    /*
+     * Replaces the value of the key if it exists. False if it does not.
+     */
+    @Override
+    public boolean replace(String key, ByteBuffer value, int ttl) throws IOException {
+        checkWritable();
+        return submitConditional(WriteOp.replace(key, codec.encode(value), ttl));
+    }
+
+    /*
+     * Adds the value if the key does not exist. False if it does.
+     */
+    @Override
+    public boolean putIfAbsent(String key, ByteBuffer value, int ttl) throws IOException {
+        checkWritable();
+        return submitConditional(WriteOp.putIfAbsent(key, codec.encode(value), ttl));
+    }
+
+    /*
+     * Replaces the value of the key if it is the expected one. The values are
+     * compared on the writer thread, so no write can come in between. False
+     * if the key does not exist or has another value.
+     */
+    @Override
+    public boolean compareAndSet(String key, ByteBuffer expected, ByteBuffer value, int ttl) throws IOException {
+        checkWritable();
+        byte[] expectedValue = new byte[expected.remaining()];
+        expected.duplicate().get(expectedValue);
+        return submitConditional(WriteOp.compareAndSet(key, expectedValue, codec.encode(value), ttl));
+    }
+
+    private boolean submitConditional(WriteOp op) throws IOException {
+        await(writer.submit(op));
+        return op.isApplied();
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        await(deleteAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        checkWritable();
+        return writer.submit(WriteOp.delete(key));
+    }
+
+    /*
+     * Deletes all the keys as one group, none is deleted if any of them does
+     * not exist.
+     */
+    @Override
+    public void multiDelete(Collection<String> keys) throws IOException {
+        await(multiDeleteAsync(keys));
+    }
+
+    CompletableFuture<Void> multiDeleteAsync(Collection<String> keys) {
+        checkWritable();
+        List<WriteOp> ops = new ArrayList<>(keys.size());
+        for (String key : new LinkedHashSet<>(keys)) {
+            ops.add(WriteOp.delete(key));
+        }
+        return writer.submit(WriteOp.group(ops));
+    }
+
+    /*
+     * Applies the changes of the store this one replicates, in order, as one
+     * group. An add replaces the key if it exists and a delete of a key that
+     * does not exist is ignored, so that the changes can be applied again
+     * after a resync.
+     */
+    @Override
+    public void applyChanges(List<ChangeRecord> changes) throws IOException {
+        checkWritable();
+        List<WriteOp> ops = new ArrayList<>(changes.size());
+        for (ChangeRecord change : changes) {
+            byte[] record = change.getType() == ChangeRecord.Type.ADD
+                    ? codec.encode(ByteBuffer.wrap(change.getValue()))
+                    : null;
+            ops.add(WriteOp.replicate(change.getKey(), record, change.getExpiryTime()));
+        }
+        await(writer.submit(WriteOp.group(ops)));
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) throws IOException {
+        checkWritable();
+        // on the writer thread, so that the listener gets whole batches only.
+        await(writer.execute(() -> changeListeners.add(listener)));
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) throws IOException {
+        checkWritable();
+        await(writer.execute(() -> changeListeners.remove(listener)));
+    }
+
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void awaitAll(List<CompletableFuture<Void>> futures) throws IOException {
+        for (CompletableFuture<Void> future : futures) {
+            await(future);
+        }
+        futures.clear();
+    }
+
+    /*
+     * Writes a batch of adds, deletes and relocations. The ops are checked in
+     * order against the keys map and the changes made earlier in the same
+     * batch; the ops of a group are all accepted or all rejected together, and
+     * a conditional put whose condition does not hold is skipped. The
+     * values and keys of the accepted ops are then appended with a single write
+     * per file, and only after that the keys map is updated, so a get never
+     * sees an offset that has not been written yet. A batch that fails is cut
+     * off the files again and none of its ops is applied.
+     */
+    private void writeBatch(List<WriteOp> batch) throws IOException {
+        if (writeFailure != null) {
+            throw new IOException("The store stopped writing after a failed write.", writeFailure);
+        }
+        PendingBatch pending = new PendingBatch();
+        try {
+            applyBatch(batch, pending);
+        } catch (IOException e) {
+            undoWrites(e);
+            throw e;
+        }
+        for (Map.Entry<String, Key> change : pending.changes.entrySet()) {
+            if (change.getValue() == null) {
+                keyMap.remove(change.getKey());
+                expiryWheel.remove(change.getKey());
+            } else {
+                keyMap.put(change.getValue());
+            }
+        }
+        for (Key sKey : pending.added) {
+            expiryWheel.add(sKey);
+        }
+        for (Key sKey : pending.replaced) {
+            addDeadBytes(sKey);
+            if (cache != null) {
+                cache.invalidate(sKey);
+            }
+        }
+        if (!pending.changeRecords.isEmpty()) {
+            for (ChangeListener listener : changeListeners) {
+                try {
+                    listener.onChanges(pending.changeRecords);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /*
+     * Checks and applies the writes of the batch to the pending batch and
+     * writes its records to the files.
+     */
+    private void applyBatch(List<WriteOp> batch, PendingBatch pending) throws IOException {
+        for (WriteOp op : batch) {
+            if (!pending.holds(op)) {
+                op.skip();
+                continue;
+            }
+            List<WriteOp> ops = op.getType() == WriteOp.Type.GROUP ? op.getOps() : Collections.singletonList(op);
+            RuntimeException rejection = null;
+            for (int i = 0; i < ops.size() && rejection == null; i++) {
+                rejection = pending.check(ops.get(i));
+            }
+            if (rejection != null) {
+                op.reject(rejection);
+            } else {
+                for (WriteOp child : ops) {
+                    pending.apply(child);
+                }
+            }
+        }
+        // values first, so that a key record never points past the values.
+        flushValues(pending.values);
+        append(keyChannel, pending.keys);
+        keyFileLength += pending.keys.size();
+    }
+
+    /*
+     * Cuts off whatever a failed batch wrote past the recorded lengths, as the
+     * channels append at the real end of the files and the next batch would
+     * land behind the torn records. If that fails too, the store stops
+     * writing.
+     */
+    private void undoWrites(IOException failure) {
+        try {
+            valueChannel.truncate(valueFileLength);
+            keyChannel.truncate(keyFileLength);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+            writeFailure = failure;
+        }
+    }
+
+    /*
+     * The records of a batch being written and the changes they make.
+     */
+    private class PendingBatch {
+
+        // new key of every key changed by the batch, null if deleted.
+        private final Map<String, Key> changes = new HashMap<>();
+        // records written by the batch, whose values are not in the files yet.
+        private final Map<String, byte[]> records = new HashMap<>();
+        // records that are replaced or deleted by the batch.
+        private final List<Key> replaced = new ArrayList<>();
+        // keys added by the batch.
+        private final List<Key> added = new ArrayList<>();
+        private final ByteArrayOutputStream values = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream keys = new ByteArrayOutputStream();
+        // the adds and deletes for the change listeners, if there are any.
+        private final List<ChangeRecord> changeRecords = new ArrayList<>();
+
+        private Key current(String key) {
+            return changes.containsKey(key) ? changes.get(key) : keyMap.get(key);
+        }
+
+        /*
+         * Whether the condition of a conditional put holds.
+         */
+        private boolean holds(WriteOp op) throws IOException {
+            if (op.getType() != WriteOp.Type.REPLACE && op.getType() != WriteOp.Type.PUT_IF_ABSENT
+                    && op.getType() != WriteOp.Type.COMPARE_AND_SET) {
+                return true;
+            }
+            Key existing = current(op.getKey());
+            boolean live = existing != null && !existing.isExpired();
+            if (op.getType() == WriteOp.Type.PUT_IF_ABSENT) {
+                return !live;
+            } else if (op.getType() == WriteOp.Type.REPLACE || !live) {
+                return live;
+            }
+            byte[] record = records.get(op.getKey());
+            byte[] value = record != null ? codec.decodeRecord(record) : getValue(existing);
+            return Arrays.equals(value, op.getExpectedValue());
+        }
+
+        private RuntimeException check(WriteOp op) {
+            Key existing = current(op.getKey());
+            if (op.getType() == WriteOp.Type.ADD && existing != null && !existing.isExpired()) {
+                return new RuntimeException("Key already exists.");
+            } else if (op.getType() == WriteOp.Type.DELETE && existing == null) {
+                return new RuntimeException("Key does not exist.");
+            }
+            return null;
+        }
+
+        private void apply(WriteOp op) throws IOException {
+            String key = op.getKey();
+            Key existing = current(key);
+            if (op.isPut()) {
+                put(key, op.getRecord(), getExpiryTime(op.getTtl()), existing);
+            } else if (op.getType() == WriteOp.Type.DELETE) {
+                remove(key, existing);
+            } else if (op.getType() == WriteOp.Type.REPLICATE) {
+                if (op.getRecord() != null) {
+                    put(key, op.getRecord(), op.getTtl(), existing);
+                } else if (existing != null) {
+                    remove(key, existing);
+                }
+            } else if (existing != null && existing.isSameRecord(op.getExpected())) {
+                // a relocated key is moved only if it is unchanged since the copy.
+                Key sKey = appendValue(values, key, op.getRecord(), existing.getExpiryTime());
+                keys.write(sKey.convertToBytes());
+                changes.put(key, sKey);
+                records.put(key, op.getRecord());
+                replaced.add(existing);
+            }
+        }
+
+        private void put(String key, byte[] record, int expiryTime, Key existing) throws IOException {
+            Key sKey = appendValue(values, key, record, expiryTime);
+            keys.write(sKey.convertToBytes());
+            changes.put(key, sKey);
+            records.put(key, record);
+            added.add(sKey);
+            if (existing != null) {
+                replaced.add(existing);
+            }
+            if (!changeListeners.isEmpty()) {
+                changeRecords.add(ChangeRecord.add(key, codec.decodeRecord(record), expiryTime));
+            }
+        }
+
+        private void remove(String key, Key existing) throws IOException {
+            keys.write(Key.tombstone(key).convertToBytes());
+            changes.put(key, null);
+            records.remove(key);
+            replaced.add(existing);
+            if (!changeListeners.isEmpty()) {
+                changeRecords.add(ChangeRecord.delete(key));
+            }
+        }
+    }
+
+    /*
+     * Buffers the value's record for the active segment and returns its key.
+     * When the record does not fit into the active segment, the buffered values
+     * are written out and a new segment is started.
+     */
+    private Key appendValue(ByteArrayOutputStream values, String key, byte[] record, int expiryTime) throws IOException {
+        int size = record.length;
+        long length = valueFileLength + values.size();
+        if (length > 0 && length + size > segmentSize) {
+            flushValues(values);
+            rollSegment();
+        }
+        long offset = valueFileLength + values.size();
+        values.write(record);
+        return new Key(key, activeSegment, offset, size, expiryTime);
+    }
+
+    private void flushValues(ByteArrayOutputStream values) throws IOException {
+        append(valueChannel, values);
+        valueFileLength += values.size();
+        values.reset();
+        ValueReader reader = readers.get(activeSegment);
+        reader.extend(valueFileLength);
+        release(reader);
+    }
+
+    private void append(FileChannel channel, ByteArrayOutputStream data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        metrics.recordBytesWritten(data.size());
+    }
+
+    static int getExpiryTime(int ttl) {
+        // set the expiry time based on the TTL
+        int expiryTime = -1;
+        if (ttl > 0) {
+            expiryTime = ExpiryClock.currentTime() + ttl;
+        }
+        return expiryTime;
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        long start = System.nanoTime();
+        lockRead();
+        try {
+            checkOpen();
+            KeyLocation location = liveLocation(key);
+            return copyValue(location.getSegment(), location.getOffset(), location.getSize());
+        } finally {
+            lock.readLock().unlock();
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Reads the value into the buffer and returns its length. Without the cache
+     * an uncompressed value is read from the file straight into the buffer. If
+     * the value does not fit into the buffer nothing is read, and the length
+     * tells how much space it needs.
+     */
+    @Override
+    public int get(String key, ByteBuffer target) throws IOException {
+        long start = System.nanoTime();
+        lockRead();
+        try {
+            checkOpen();
+            KeyLocation location = liveLocation(key);
+            if (cache == null) {
+                metrics.recordBytesRead(location.getSize());
+                return readers.get(location.getSegment()).read(location.getOffset(), target);
+            }
+            byte[] value = getValue(location.getSegment(), location.getOffset(), location.getSize());
+            if (value.length <= target.remaining()) {
+                target.put(value);
+            }
+            return value.length;
+        } finally {
+            lock.readLock().unlock();
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Looks the key up into the location holder of the thread, so that a get
+     * does not allocate a key. The holder is only valid until the thread's
+     * next lookup.
+     */
+    private KeyLocation liveLocation(String key) {
+        KeyLocation location = LOCATIONS.get();
+        if (!keyMap.find(key, location)) {
+            throw new RuntimeException("Key does not exist.");
+        } else if (location.isExpired()) {
+            if (cache != null) {
+                cache.invalidate(location.getSegment(), location.getOffset());
+            }
+            throw new RuntimeException("Key does not exist.");
+        }
+        return location;
+    }
+
+    /*
+     * Gets the values of all the existing keys, in the order of the given keys.
+     * The read lock is taken once and the values are read in the order of
+     * their segment and offset, so that the disk sees sequential reads.
+     */
+    @Override
+    public Map<String, byte[]> multiGet(Collection<String> keys) throws IOException {
+        Map<String, byte[]> values = new HashMap<>();
+        lockRead();
+        try {
+            checkOpen();
+            List<Key> found = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                Key sKey = keyMap.get(key);
+                if (sKey != null && !sKey.isExpired()) {
+                    found.add(sKey);
+                }
+            }
+            found.sort(RECORD_ORDER);
+            for (Key sKey : found) {
+                values.put(sKey.getKey(), copyValue(sKey));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        for (String key : keys) {
+            byte[] value = values.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Streams the keys from 'from' (inclusive) to 'to' (exclusive) and their
+     * values in key order; a null bound leaves that end open. Needs the ordered
+     * index.
+     */
+    @Override
+    public Stream<Map.Entry<String, byte[]>> scan(String from, String to) {
+        return stream(orderedIndex().range(from, to));
+    }
+
+    /*
+     * Streams the keys starting with the prefix and their values in key order.
+     * Needs the ordered index.
+     */
+    @Override
+    public Stream<Map.Entry<String, byte[]>> scanPrefix(String prefix) {
+        return stream(orderedIndex().prefix(prefix));
+    }
+
+    private OrderedKeyIndex orderedIndex() {
+        if (!(keyMap instanceof OrderedKeyIndex)) {
+            throw new RuntimeException("Scans need the ORDERED index type.");
+        }
+        return (OrderedKeyIndex) keyMap;
+    }
+
+    private Stream<Map.Entry<String, byte[]>> stream(Iterator<Key> keys) {
+        return stream(keys, (sKey, value) -> new AbstractMap.SimpleImmutableEntry<>(sKey.getKey(), value));
+    }
+
+    private <T> Stream<T> stream(Iterator<Key> keys, BiFunction<Key, byte[], T> entryOf) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new ScanIterator<>(keys, entryOf),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /*
+     * Streams all the live keys as adds, eg: to start a replica. The stream
+     * is weakly consistent like a scan, so the changes made while it is read
+     * have to be applied after it.
+     */
+    @Override
+    public Stream<ChangeRecord> snapshot() {
+        return stream(keyMap.iterator(), (sKey, value) -> ChangeRecord.add(sKey.getKey(), value, sKey.getExpiryTime()));
+    }
+
+    /*
+     * Copies the store as it is at one point in time into the empty target
+     * directory. The writer thread only records the lengths of the keys file
+     * and the active segment between two batches; the files are put into the
+     * snapshot after that while the writes go on. Compaction and checkpoints
+     * wait for it, so none of the files is removed or replaced meanwhile.
+     */
+    @Override
+    public void snapshot(String targetDir) throws IOException {
+        synchronized (maintenanceLock) {
+            copyFiles(targetDir, await(recordLengths(null)));
+        }
+    }
+
+    /*
+     * Held by compaction and checkpoints, and by a snapshot of the files.
+     */
+    Object getMaintenanceLock() {
+        return maintenanceLock;
+    }
+
+    /*
+     * Records the lengths of the keys file and the active segment between two
+     * batches, which is a point in time of the store. Given a latch, the
+     * writer waits for it after recording, so that the partitions of a store
+     * can be recorded at the same point.
+     */
+    CompletableFuture<long[]> recordLengths(CountDownLatch release) {
+        checkWritable();
+        checkOpen();
+        CompletableFuture<long[]> recorded = new CompletableFuture<>();
+        writer.execute(() -> {
+            recorded.complete(new long[] { keyFileLength, activeSegment, valueFileLength });
+            if (release != null) {
+                release.await();
+            }
+            return null;
+        }).whenComplete((done, e) -> {
+            if (e != null) {
+                recorded.completeExceptionally(e);
+            }
+        });
+        return recorded;
+    }
+
+    /*
+     * Puts the files into the snapshot up to the recorded lengths. The sealed
+     * segments and the checkpoint are never written again and are hard
+     * linked, the keys file and the active segment are copied. Only called
+     * under the maintenance lock.
+     */
+    void copyFiles(String targetDir, long[] lengths) throws IOException {
+        File target = new File(targetDir);
+        for (int segment : listSegments()) {
+            File copy = new File(target, segmentFile(segment).getName());
+            if (segment < lengths[1]) {
+                SnapshotFiles.link(segmentFile(segment), copy);
+            } else if (segment == lengths[1]) {
+                SnapshotFiles.copy(segmentFile(segment), copy, lengths[2]);
+            }
+        }
+        // a checkpoint covers a part of the recorded keys file, if any.
+        if (checkpointFile.exists()) {
+            SnapshotFiles.link(checkpointFile, new File(target, checkpointFile.getName()));
+        }
+        File dictionary = new File(dir, "dictionary");
+        if (dictionary.exists()) {
+            SnapshotFiles.link(dictionary, new File(target, dictionary.getName()));
+        }
+        SnapshotFiles.copy(keyFile, new File(target, keyFile.getName()), lengths[0]);
+    }
+
+    /*
+     * Reads the values of a scan lazily, SCAN_CHUNK_SIZE keys at a time. The
+     * keys of a chunk are taken from the index and their values read under one
+     * read lock, in the order of their segment and offset, and are then
+     * returned in key order. The scan is weakly consistent: it sees the writes
+     * made to the keys not yet reached, and the keys are looked up again under
+     * the lock since the index iterators run ahead of it.
+     */
+    private class ScanIterator<T> implements Iterator<T> {
+
+        private final Iterator<Key> keys;
+        private final BiFunction<Key, byte[], T> entryOf;
+        private final ArrayDeque<T> chunk = new ArrayDeque<>();
+
+        private ScanIterator(Iterator<Key> keys, BiFunction<Key, byte[], T> entryOf) {
+            this.keys = keys;
+            this.entryOf = entryOf;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (chunk.isEmpty() && keys.hasNext()) {
+                fill();
+            }
+            return !chunk.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunk.poll();
+        }
+
+        private void fill() {
+            lockRead();
+            try {
+                checkOpen();
+                List<Key> found = new ArrayList<>(SCAN_CHUNK_SIZE);
+                while (found.size() < SCAN_CHUNK_SIZE && keys.hasNext()) {
+                    // the index may have handed out the key before a compaction
+                    // moved its record, so it is looked up again.
+                    Key sKey = keyMap.get(keys.next().getKey());
+                    if (sKey != null && !sKey.isExpired()) {
+                        found.add(sKey);
+                    }
+                }
+                List<Key> byRecord = new ArrayList<>(found);
+                byRecord.sort(RECORD_ORDER);
+                Map<Key, byte[]> values = new IdentityHashMap<>();
+                for (Key sKey : byRecord) {
+                    values.put(sKey, copyValue(sKey));
+                }
+                for (Key sKey : found) {
+                    chunk.add(entryOf.apply(sKey, values.get(sKey)));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    private void persistAllKeys(File file, Iterable<Key> keys) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            out.write(getBytes(Key.KEYS_FILE_MAGIC));
+            for (Key key : keys) {
+                out.write(key.convertToBytes());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private ValueReader newValueReader(File file) throws IOException {
+        return options.isMemoryMapped() ? new MappedValueReader(file, codec) : new ChannelValueReader(file, codec);
+    }
+
+    /*
+     * Reads the value of the key, from the cache if it is there.
+     */
+    private byte[] getValue(Key key) throws IOException {
+        return getValue(key.getSegment(), key.getOffset(), key.getSize());
+    }
+
+    private byte[] getValue(int segment, long offset, int size) throws IOException {
+        if (cache == null) {
+            metrics.recordBytesRead(size);
+            return readers.get(segment).read(offset);
+        }
+        byte[] value = cache.get(segment, offset);
+        if (value == null) {
+            metrics.recordBytesRead(size);
+            value = readers.get(segment).read(offset);
+            cache.put(segment, offset, value);
+        }
+        return value;
+    }
+
+    /*
+     * The value of the key for a caller, which must not get the cached array
+     * since it could change it.
+     */
+    private byte[] copyValue(Key key) throws IOException {
+        return copyValue(key.getSegment(), key.getOffset(), key.getSize());
+    }
+
+    private byte[] copyValue(int segment, long offset, int size) throws IOException {
+        byte[] value = getValue(segment, offset, size);
+        return cache != null ? value.clone() : value;
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        return cache != null ? cache.getStats() : new CacheStats(0, 0, 0, 0, 0);
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+        return metrics.snapshot();
+    }
+
+    private long segmentBytes() {
+        long bytes = 0;
+        for (int segment : listSegments()) {
+            bytes += segmentFile(segment).length();
+        }
+        return bytes;
+    }
+
+    /*
+     * Compacts the segments that have deleted or expired data, while reads and
+     * writes go on. The bytes of every segment that no live key uses are
+     * counted as the writes and expiries leave them behind, so it is known
+     * without a scan which segments have garbage.
+     * 
+     * The live values of such a segment are copied and queued to the writer as
+     * relocations, at no more than the compaction rate. A relocation moves the
+     * value to the active segment only if the key still points at the copied
+     * record, so a key that is written or deleted during the copy keeps its
+     * new state and nothing is lost. The keys file is then rewritten from the
+     * keys map, and the records appended to the old keys file in the meanwhile
+     * are caught up before it is swapped. Finally the compacted segments are
+     * removed under the write lock, which only waits for the gets that are
+     * reading them.
+     */
+    @Override
+    public void compact() throws IOException {
+        checkWritable();
+        synchronized (maintenanceLock) {
+            checkOpen();
+            compactSegments(true);
+        }
+    }
+
+    /*
+     * Whether the garbage has reached the garbage ratio of the segments, or
+     * the segments have outgrown the disk threshold and there is garbage to
+     * free.
+     */
+    private boolean needsCompaction() {
+        long dead = deadBytes();
+        if (closed || dead <= 0) {
+            return false;
+        }
+        long total = segmentBytes();
+        long threshold = options.getCompactionDiskThreshold();
+        return dead >= options.getCompactionGarbageRatio() * total || threshold > 0 && total > threshold;
+    }
+
+    private void compactInBackground() throws IOException {
+        synchronized (maintenanceLock) {
+            if (!closed) {
+                compactSegments(false);
+            }
+        }
+    }
+
+    /*
+     * Compacts every segment with garbage if all is set, otherwise only the
+     * ones whose share of garbage is at least the garbage ratio, or all of
+     * them if the garbage is spread so thin that none is.
+     */
+    private void compactSegments(boolean all) throws IOException {
+        long start = System.nanoTime();
+        // the expired keys are garbage too.
+        await(writer.execute(() -> expireKeys()));
+        // the active segment and its length at the time the scan starts.
+        long[] active = await(writer.execute(() -> new long[] { activeSegment, valueFileLength }));
+        Set<Integer> withGarbage = new HashSet<>();
+        Set<Integer> compacted = new HashSet<>();
+        for (int segment : listSegments()) {
+            long dead = deadBytes.getOrDefault(segment, 0L);
+            if (segment <= active[0] && dead > 0) {
+                withGarbage.add(segment);
+                long length = segment == active[0] ? active[1] : segmentFile(segment).length();
+                if (dead >= options.getCompactionGarbageRatio() * length) {
+                    compacted.add(segment);
+                }
+            }
+        }
+        if (all || compacted.isEmpty()) {
+            compacted = withGarbage;
+        }
+        if (compacted.isEmpty()) {
+            System.err.println("Compaction not needed since there are no expired/ deleted keys.");
+            return;
+        }
+        if (compacted.contains((int) active[0])) {
+            // the active segment has garbage too, seal it to compact it.
+            await(writer.execute(() -> {
+                if (activeSegment == active[0]) {
+                    rollSegment();
+                }
+                return null;
+            }));
+        }
+        List<CompletableFuture<Void>> relocations = new ArrayList<>();
+        for (Key sKey : keyMap) {
+            if (compacted.contains(sKey.getSegment())) {
+                compactionLimiter.acquire(sKey.getSize());
+                // the record is moved as it is, without decompressing it.
+                byte[] record = readers.get(sKey.getSegment()).readRecord(sKey.getOffset());
+                relocations.add(writer.submit(WriteOp.relocate(sKey, record)));
+                if (relocations.size() == RELOCATION_BATCH_SIZE) {
+                    awaitAll(relocations);
+                }
+            }
+        }
+        awaitAll(relocations);
+        rewriteKeys();
+        long freed = 0;
+        lockWrite();
+        try {
+            for (int segment : compacted) {
+                ValueReader reader = readers.remove(segment);
+                if (reader != null) {
+                    reader.close();
+                }
+                freed += segmentFile(segment).length();
+                segmentFile(segment).delete();
+                // no key points into the segment any more.
+                deadBytes.remove(segment);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        metrics.recordCompaction(System.nanoTime() - start, freed);
+        System.out.println("Compaction done. " + compacted.size() + " segment(s) were compacted, " + freed
+                + " byte(s) were freed.");
+    }
+
+    /*
+     * Replaces the keys file with one having only the live keys. The new file
+     * is written from the keys map while the writes go on. Every change made
+     * after the recorded position is also in the old file's tail, so copying
+     * that tail over on the writer thread brings the new file up to date.
+     */
+    private void rewriteKeys() throws IOException {
+        long position = await(writer.execute(() -> keyFileLength));
+        File newKeysFile = new File(dir, "newkeys");
+        persistAllKeys(newKeysFile, keyMap);
+        await(writer.execute(() -> {
+            FileChannel newKeys = FileChannel.open(newKeysFile.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            FileChannel oldKeys = FileChannel.open(keyFile.toPath(), StandardOpenOption.READ);
+            try {
+                long copied = 0;
+                while (copied < keyFileLength - position) {
+                    copied += oldKeys.transferTo(position + copied, keyFileLength - position - copied, newKeys);
+                }
+                // the relocated values have to be on the disk before the keys.
+                valueChannel.force(false);
+                newKeys.force(false);
+            } finally {
+                oldKeys.close();
+                newKeys.close();
+            }
+            // the checkpoint's position is only valid for the old keys file.
+            checkpointFile.delete();
+            checkpointPosition = -1;
+            keyChannel.close();
+            Files.move(newKeysFile.toPath(), keyFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            openKeyChannel();
+            return null;
+        }));
+    }
+
+    private static final byte[] getBytes(int value) {
+        byte[] bytes = new byte[4];
+        bytes[0] = (byte) (value >> 24);
+        bytes[1] = (byte) (value >> 16);
+        bytes[2] = (byte) (value >> 8);
+        bytes[3] = (byte) value;
+        return bytes;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,207 @@
+// $Id$
+package com.kvs.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.kvs.metrics.StoreMetrics;
+
+/**
+ * Single writer stage of a data store.
+ * 
+ * Writes from all the client threads are queued here. The writer thread takes
+ * everything that has been queued so far as one batch and hands it over to the
+ * batch handler, which writes the whole batch with one write per file. The
+ * batch is then forced to the disk as per the durability setting and the
+ * futures of its writes are completed.
+ * 
+ * Tasks can also be run on the writer thread. A task runs after every write
+ * queued before it has been written, and no write runs while it does.
+ * 
+ * The latency of an add or delete that is written, from being queued to being
+ * acknowledged, is recorded in the store's metrics, and so is the time every
+ * write waits in the queue before its batch is written.
+ * 
+ * Closing the writer writes and syncs everything queued before the close, and
+ * fails whatever is queued after it.
+ */
+
+class GroupCommitWriter {
+
+    interface BatchHandler {
+
+        void write(List<WriteOp> batch) throws IOException;
+
+        void sync() throws IOException;
+
+    }
+
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private final BlockingQueue<WriteOp> queue = new LinkedBlockingQueue<>();
+    private final BatchHandler handler;
+    private final Durability durability;
+    private final long syncIntervalNanos;
+    private final StoreMetrics metrics;
+    // only used by the writer thread.
+    private boolean running = true;
+    private volatile boolean stopped;
+
+    GroupCommitWriter(String name, BatchHandler handler, Durability durability, long syncIntervalMillis,
+            StoreMetrics metrics) {
+        this.handler = handler;
+        this.metrics = metrics;
+        this.durability = durability;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        Thread thread = new Thread(this::run, "kvs-writer-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    CompletableFuture<Void> submit(WriteOp op) {
+        queue.add(op);
+        if (stopped) {
+            rejectQueued();
+        }
+        return op.getFuture();
+    }
+
+    <T> CompletableFuture<T> execute(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        WriteOp op = WriteOp.task(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        op.getFuture().whenComplete((result, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e);
+            }
+        });
+        submit(op);
+        return future;
+    }
+
+    /*
+     * Stops the writer once the writes queued so far are written and synced.
+     */
+    CompletableFuture<Void> close() {
+        return execute(() -> {
+            running = false;
+            handler.sync();
+            return null;
+        });
+    }
+
+    private void run() {
+        List<WriteOp> drained = new ArrayList<>();
+        List<WriteOp> batch = new ArrayList<>();
+        long lastSync = System.nanoTime();
+        boolean unsynced = false;
+        while (running) {
+            try {
+                WriteOp first;
+                if (unsynced) {
+                    // wake up in time for the next interval sync even if idle.
+                    long wait = lastSync + syncIntervalNanos - System.nanoTime();
+                    first = queue.poll(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+                } else {
+                    first = queue.take();
+                }
+                if (first != null) {
+                    drained.add(first);
+                    queue.drainTo(drained, MAX_BATCH_SIZE - 1);
+                    for (WriteOp op : drained) {
+                        if (!running) {
+                            // queued after the close.
+                            op.getFuture().completeExceptionally(closed());
+                        } else if (op.getType() == WriteOp.Type.TASK) {
+                            // the writes queued before the task go first.
+                            writeBatch(batch);
+                            op.getTask().run();
+                        } else {
+                            batch.add(op);
+                        }
+                    }
+                    writeBatch(batch);
+                    drained.clear();
+                    unsynced = durability == Durability.INTERVAL;
+                }
+                if (unsynced && System.nanoTime() - lastSync >= syncIntervalNanos) {
+                    sync();
+                    lastSync = System.nanoTime();
+                    unsynced = false;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        stopped = true;
+        rejectQueued();
+    }
+
+    private void rejectQueued() {
+        WriteOp op;
+        while ((op = queue.poll()) != null) {
+            op.getFuture().completeExceptionally(closed());
+        }
+    }
+
+    private static RuntimeException closed() {
+        return new RuntimeException("The store is closed.");
+    }
+
+    private void writeBatch(List<WriteOp> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        for (WriteOp op : batch) {
+            metrics.recordQueueWait(start - op.getStartNanos());
+        }
+        try {
+            handler.write(batch);
+            if (durability == Durability.BATCH) {
+                handler.sync();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (WriteOp op : batch) {
+                op.getFuture().completeExceptionally(e);
+            }
+            batch.clear();
+            return;
+        }
+        long now = System.nanoTime();
+        for (WriteOp op : batch) {
+            op.complete();
+            // skipped and rejected ops wrote nothing, they would only flatter the latencies.
+            if (!op.isApplied()) {
+                continue;
+            }
+            if (op.isPut()) {
+                metrics.recordAdd(now - op.getStartNanos());
+            } else if (op.getType() == WriteOp.Type.DELETE) {
+                metrics.recordDelete(now - op.getStartNanos());
+            }
+        }
+        batch.clear();
+    }
+
+    private void sync() {
+        try {
+            handler.sync();
+        } catch (IOException e) {
+            // the writes have already been acknowledged, nobody to report to.
+            e.printStackTrace();
+        }
+    }
+
+}
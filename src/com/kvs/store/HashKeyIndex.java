@@ -0,0 +1,61 @@
+// $Id$
+package com.kvs.store;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* Key index backed by a concurrent hash map of the key objects.
+*/
+
+class HashKeyIndex implements KeyIndex {
+
+    private final ConcurrentHashMap<String, Key> keyMap = new ConcurrentHashMap<>();
+
+    @Override
+    public Key get(String key) {
+        return keyMap.get(key);
+    }
+
+    @Override
+    public boolean find(String key, KeyLocation location) {
+        Key found = keyMap.get(key);
+        if (found == null) {
+            return false;
+        }
+        location.set(found);
+        return true;
+    }
+
+    @Override
+    public void put(Key key) {
+        keyMap.put(key.getKey(), key);
+    }
+
+    @Override
+    public void remove(String key) {
+        keyMap.remove(key);
+    }
+
+    @Override
+    public boolean remove(Key key) {
+        Key existing = keyMap.get(key.getKey());
+        return existing != null && existing.isSameRecord(key) && keyMap.remove(key.getKey(), existing);
+    }
+
+    @Override
+    public int size() {
+        return keyMap.size();
+    }
+
+    @Override
+    public void clear() {
+        keyMap.clear();
+    }
+
+    @Override
+    public Iterator<Key> iterator() {
+        return keyMap.values().iterator();
+    }
+
+}
@@ -0,0 +1,19 @@
+// $Id$
+package com.kvs.store;
+
+/**
+* Kinds of in-memory key index a data store can use.
+*/
+
+public enum IndexType {
+
+    // a concurrent hash map of the key objects.
+    HASH,
+
+    // open addressing over packed arrays, with no objects kept per key.
+    PACKED,
+
+    // a concurrent skip list, which also supports range and prefix scans.
+    ORDERED
+
+}
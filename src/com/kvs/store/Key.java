@@ -1,47 +1,97 @@
 // $Id$
 package com.kvs.store;
 
+import java.nio.charset.StandardCharsets;
+
 /**
 * Class that serialises the key data.
 */
 
 public class Key {
 
+    // first 4 bytes of a keys file, the old format had no header.
+    static final int KEYS_FILE_MAGIC = 0x4B565332;
+
+    // 4B segment, 8B offset, 4B size, 4B expiryTime, 4B keylen, then the
+    // key in UTF-8.
+    static final int HEADER_SIZE = 24;
+
+    // segment of the records that mark a key as deleted.
+    private static final int TOMBSTONE_SEGMENT = -1;
+
     private final String key;
-    private int offset;
+    private final int segment;
+    private final long offset;
+    private final int size;
     private final int expiryTime;
 
-    public Key(String key, int offset, int expiryTime) {
+    /*
+     * segment & offset locate the value's record in the values segments and
+     * size is the length of that record including its header.
+     */
+    public Key(String key, int segment, long offset, int size, int expiryTime) {
         this.key = key;
+        this.segment = segment;
         this.offset = offset;
+        this.size = size;
         this.expiryTime = expiryTime;
     }
 
+    /*
+     * A tombstone is appended to the keys file when a key is deleted. It is
+     * applied while loading the keys and dropped by compaction.
+     */
+    public static Key tombstone(String key) {
+        return new Key(key, TOMBSTONE_SEGMENT, 0, 0, -1);
+    }
+
     public String getKey() {
         return key;
     }
 
-    public int getOffset() {
+    public int getSegment() {
+        return segment;
+    }
+
+    public long getOffset() {
         return offset;
     }
 
+    public int getSize() {
+        return size;
+    }
+
     public int getExpiryTime() {
         return expiryTime;
     }
     
     public byte[] convertToBytes() {
-        int len = key.length();
-        byte[] bytes = new byte[8 + 4 + len]; // 4B for offset, 4B for expiryTime, 4B keylen, key
-        fillBytes(offset, bytes, 0);
-        fillBytes(expiryTime, bytes, 4);
-        fillBytes(len, bytes, 8);
-        System.arraycopy(key.getBytes(), 0, bytes, 12, len);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int len = keyBytes.length;
+        byte[] bytes = new byte[HEADER_SIZE + len];
+        fillBytes(segment, bytes, 0);
+        fillBytes((int) (offset >> 32), bytes, 4);
+        fillBytes((int) offset, bytes, 8);
+        fillBytes(size, bytes, 12);
+        fillBytes(expiryTime, bytes, 16);
+        fillBytes(len, bytes, 20);
+        System.arraycopy(keyBytes, 0, bytes, HEADER_SIZE, len);
         return bytes;
     }
+
+    /*
+     * Segments are never reused, so the segment and offset identify a record.
+     */
+    public boolean isSameRecord(Key other) {
+        return segment == other.segment && offset == other.offset;
+    }
+
+    public boolean isTombstone() {
+        return segment == TOMBSTONE_SEGMENT;
+    }
     
     public boolean isExpired() {
-        int currTime = (int) (System.currentTimeMillis() / 1000);
-        return expiryTime != -1 && currTime > expiryTime;
+        return expiryTime != -1 && ExpiryClock.currentTime() > expiryTime;
     }
 
     private static final void fillBytes(int value, byte[] bytes, int start) {
@@ -53,7 +103,7 @@ public class Key {
     
     @Override
     public String toString() {
-        return key + " " + offset + " " + expiryTime;
+        return key + " " + segment + " " + offset + " " + size + " " + expiryTime;
     }
 
 }
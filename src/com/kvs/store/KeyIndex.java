@@ -0,0 +1,35 @@
+// $Id$
+package com.kvs.store;
+
+/**
+* The in-memory index of the live keys of a data store.
+*
+* Iteration is weakly consistent: a key present when the iteration starts and
+* not removed during it is returned at least once.
+*/
+
+interface KeyIndex extends Iterable<Key> {
+
+    Key get(String key);
+
+    /*
+     * Looks the key up into the given location without allocating anything,
+     * for the gets. False if the key is not in the index.
+     */
+    boolean find(String key, KeyLocation location);
+
+    void put(Key key);
+
+    void remove(String key);
+
+    /*
+     * Removes the key only if it still points to the same record as the given
+     * one.
+     */
+    boolean remove(Key key);
+
+    int size();
+
+    void clear();
+
+}
@@ -0,0 +1,45 @@
+// $Id$
+package com.kvs.store;
+
+/**
+ * Where the record of a key is and when the key expires, as filled in by a
+ * lookup in a key index. A get reuses one holder per thread, so that looking
+ * up a key allocates nothing even with the packed index, which keeps no key
+ * objects.
+ */
+
+final class KeyLocation {
+
+    private int segment;
+    private long offset;
+    private int size;
+    private int expiryTime;
+
+    void set(int segment, long offset, int size, int expiryTime) {
+        this.segment = segment;
+        this.offset = offset;
+        this.size = size;
+        this.expiryTime = expiryTime;
+    }
+
+    void set(Key key) {
+        set(key.getSegment(), key.getOffset(), key.getSize(), key.getExpiryTime());
+    }
+
+    int getSegment() {
+        return segment;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    boolean isExpired() {
+        return expiryTime != -1 && ExpiryClock.currentTime() > expiryTime;
+    }
+
+}
@@ -2,6 +2,14 @@
 package com.kvs.store;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import com.kvs.metrics.MetricsSnapshot;
 
 /**
 * Structure of a key value data store.
@@ -9,11 +17,55 @@ import java.io.IOException;
 
 interface KeyValueDataStore {
     
-    void add(String key, String value, int ttl) throws IOException;
+    void add(String key, ByteBuffer value, int ttl) throws IOException;
+    
+    CompletableFuture<Void> addAsync(String key, ByteBuffer value, int ttl);
+    
+    void multiAdd(Map<String, ByteBuffer> entries, int ttl) throws IOException;
+    
+    void put(String key, ByteBuffer value, int ttl) throws IOException;
+    
+    CompletableFuture<Void> putAsync(String key, ByteBuffer value, int ttl);
+    
+    boolean replace(String key, ByteBuffer value, int ttl) throws IOException;
+    
+    boolean putIfAbsent(String key, ByteBuffer value, int ttl) throws IOException;
+    
+    boolean compareAndSet(String key, ByteBuffer expected, ByteBuffer value, int ttl) throws IOException;
     
     void delete(String key) throws IOException;
     
-    String get(String key) throws IOException;
+    CompletableFuture<Void> deleteAsync(String key);
+    
+    void multiDelete(Collection<String> keys) throws IOException;
+    
+    byte[] get(String key) throws IOException;
+    
+    int get(String key, ByteBuffer target) throws IOException;
+    
+    Map<String, byte[]> multiGet(Collection<String> keys) throws IOException;
+    
+    Stream<Map.Entry<String, byte[]>> scan(String from, String to);
+    
+    Stream<Map.Entry<String, byte[]>> scanPrefix(String prefix);
+    
+    void applyChanges(List<ChangeRecord> changes) throws IOException;
+    
+    void addChangeListener(ChangeListener listener) throws IOException;
+    
+    void removeChangeListener(ChangeListener listener) throws IOException;
+    
+    Stream<ChangeRecord> snapshot();
+    
+    void snapshot(String targetDir) throws IOException;
+    
+    CacheStats getCacheStats();
+    
+    MetricsSnapshot getMetrics();
+    
+    void compact() throws IOException;
+    
+    void close() throws IOException;
     
 }
 
@@ -9,7 +9,13 @@ import java.io.IOException;
 
 public class KeyValueDataStoreManager {
 
-    public static KeyValueDataStore getDataStore(String dir) throws IOException {
-        return FileBasedKeyValueDataStore.getInstance(dir);
+    public static KeyValueDataStore getDataStore(String dir, StoreOptions options) throws IOException {
+        if (LsmKeyValueDataStore.isLsm(dir, options)) {
+            return LsmKeyValueDataStore.getInstance(dir, options);
+        }
+        if (ShardedKeyValueDataStore.isPartitioned(dir, options)) {
+            return ShardedKeyValueDataStore.getInstance(dir, options);
+        }
+        return FileBasedKeyValueDataStore.getInstance(dir, options);
     }
 }
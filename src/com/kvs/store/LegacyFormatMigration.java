@@ -0,0 +1,110 @@
+// $Id$
+package com.kvs.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Moves a store written in the old format to the segmented one.
+ * 
+ * The old format has a single "values" file and a "keys" file without a header
+ * whose records are 4B offset, 4B expiryTime, 4B keylen and the key. The values
+ * file becomes segment 0 as it is and the keys file is rewritten with the live
+ * keys in the new format.
+ * 
+ * The new keys file is written aside and renamed into place at the end, so a
+ * crash in between just runs the migration again on the next open.
+ */
+
+class LegacyFormatMigration {
+
+    private LegacyFormatMigration() {
+    }
+
+    static boolean isNeeded(File keyFile) throws IOException {
+        if (!keyFile.exists()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(keyFile));
+        try {
+            return in.readInt() != Key.KEYS_FILE_MAGIC;
+        } catch (EOFException e) {
+            // an empty keys file is an old store with no keys.
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    static void migrate(File keyFile, File segmentFile) throws IOException {
+        File dir = keyFile.getParentFile();
+        File valueFile = new File(dir, "values");
+        // the values file may have been moved already by an earlier attempt.
+        File legacyValues = valueFile.exists() ? valueFile : segmentFile;
+        Map<String, int[]> keys = readLegacyKeys(keyFile);
+        File newKeysFile = new File(dir, "newkeys");
+        FileChannel values = FileChannel.open(legacyValues.toPath(), StandardOpenOption.READ);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newKeysFile)));
+        try {
+            out.writeInt(Key.KEYS_FILE_MAGIC);
+            ByteBuffer header = ByteBuffer.allocate(4);
+            for (Map.Entry<String, int[]> entry : keys.entrySet()) {
+                int offset = entry.getValue()[0];
+                header.clear();
+                values.read(header, offset);
+                int size = 4 + header.getInt(0);
+                out.write(new Key(entry.getKey(), 0, offset, size, entry.getValue()[1]).convertToBytes());
+            }
+        } finally {
+            out.close();
+            values.close();
+        }
+        if (valueFile.exists()) {
+            Files.move(valueFile.toPath(), segmentFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(newKeysFile.toPath(), keyFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Migrated " + keys.size() + " key(s) to the segmented format.");
+    }
+
+    private static Map<String, int[]> readLegacyKeys(File keyFile) throws IOException {
+        Map<String, int[]> keys = new LinkedHashMap<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(keyFile)));
+        try {
+            while (true) {
+                int offset = in.readInt();
+                int expiryTime = in.readInt();
+                byte[] keyBytes = new byte[in.readInt()];
+                in.readFully(keyBytes);
+                String key = new String(keyBytes);
+                // an offset of -1 is a tombstone.
+                Key legacyKey = new Key(key, 0, offset, 0, expiryTime);
+                if (offset == -1 || legacyKey.isExpired()) {
+                    keys.remove(key);
+                } else {
+                    keys.put(key, new int[] { offset, expiryTime });
+                }
+            }
+        } catch (EOFException e) {
+            // end of the keys, a partly written last record is dropped.
+        } finally {
+            in.close();
+        }
+        return keys;
+    }
+
+}
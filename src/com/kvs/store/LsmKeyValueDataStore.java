@@ -0,0 +1,1286 @@
+// $Id$
+package com.kvs.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
+import com.kvs.metrics.MetricsSnapshot;
+import com.kvs.metrics.StoreMetrics;
+import com.kvs.store.SortedTable.Entry;
+
+/**
+ * A data store built as an LSM tree, for stores with more keys than the heap
+ * can index.
+ *
+ * Writes go to the memtable, a sorted map in memory, and to its write-ahead
+ * log (wal.0, wal.1, ...). Like the file based store, the writes are queued to
+ * a group commit writer, which appends a whole batch to the log as one
+ * checksummed frame, so a group is either replayed whole or not at all.
+ *
+ * Once the memtable reaches the memtable size, a new memtable and log are
+ * started and the full one is written out in the background as a sorted table
+ * (table.0, table.1, ...); its log is removed after that. A delete is kept as
+ * a tombstone entry until it reaches the oldest table.
+ *
+ * The tables are merged size-tiered: the tables of a tier are of about the
+ * same size, and when a tier has TIER_WIDTH of them they are merged into one
+ * table of the next tier. Tiers hold older data the deeper they are, so a get
+ * looks at the memtables, then the tables from the newest to the oldest, and
+ * stops at the first entry of the key. The bloom filter of a table lets a get
+ * skip most of the tables that do not have the key, and its sparse index
+ * points at the one block to read.
+ *
+ * The 'manifest' file lists the tables by tier and the first log that is not
+ * yet in a table; it is written aside and renamed into place whenever the
+ * tables change. On open, tables not in the manifest are left overs of an
+ * interrupted flush or merge and are removed, and the logs are replayed and
+ * written out as a table.
+ */
+
+class LsmKeyValueDataStore implements KeyValueDataStore {
+
+    private static final String WAL_PREFIX = "wal.";
+    private static final String TABLE_PREFIX = "table.";
+    // tables a tier holds before they are merged into the next tier.
+    private static final int TIER_WIDTH = 4;
+    // entries of a scan read under one read lock.
+    private static final int SCAN_CHUNK_SIZE = 256;
+    private static final ConcurrentHashMap<String, KeyValueDataStore> INSTANCE_MAP = new ConcurrentHashMap<>();
+
+    /**
+     * A memtable and the write-ahead log of its entries.
+     */
+    private static class Memtable {
+
+        private final int walId;
+        private final FileChannel wal;
+        private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+        // rough heap size of the entries, only used by the writer thread.
+        private long size;
+
+        private Memtable(int walId, FileChannel wal) {
+            this.walId = walId;
+            this.wal = wal;
+        }
+    }
+
+    private final String dir;
+    private final long memtableSize;
+    private final ValueCodec codec;
+    // cache of the values read from the tables, null if the cache is disabled.
+    private final ValueCache cache;
+    private final StoreMetrics metrics;
+    private final GroupCommitWriter writer;
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+    // runs the flushes and merges one at a time.
+    private final ExecutorService background;
+
+    // the memtable being written and the full one being flushed, if any.
+    private volatile Memtable active;
+    private volatile Memtable flushing;
+    // the flush of the flushing memtable, only used by the writer thread.
+    private CompletableFuture<Void> flush;
+    // the tables by tier, newest first within a tier. Replaced as a whole.
+    private volatile List<List<SortedTable>> tiers = Collections.emptyList();
+    // only used by the background thread once the store is open.
+    private int nextTableId;
+    private int walStart;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // held while compact is queued and while closing.
+    private final Object maintenanceLock = new Object();
+    private volatile boolean closed;
+
+    private final GroupCommitWriter.BatchHandler batchHandler = new GroupCommitWriter.BatchHandler() {
+
+        @Override
+        public void write(List<WriteOp> batch) throws IOException {
+            writeBatch(batch);
+        }
+
+        @Override
+        public void sync() throws IOException {
+            active.wal.force(false);
+        }
+    };
+
+    static KeyValueDataStore getInstance(String dir, StoreOptions options) throws IOException {
+        if (!INSTANCE_MAP.containsKey(dir)) {
+            INSTANCE_MAP.put(dir, new LsmKeyValueDataStore(dir, options));
+        }
+        return INSTANCE_MAP.get(dir);
+    }
+
+    /*
+     * Whether the store in the directory is, or is to be created, an LSM
+     * store. The engine of an existing store cannot be changed.
+     */
+    static boolean isLsm(String dir, StoreOptions options) {
+        boolean lsm = manifestFile(dir).exists();
+        boolean log = new File(dir, "keys").exists() || new File(dir, "partitions").exists();
+        if (lsm && options.getEngine() == Engine.LOG) {
+            throw new RuntimeException("The store was created with the LSM engine.");
+        } else if (log && options.getEngine() == Engine.LSM) {
+            throw new RuntimeException("The store was created with the LOG engine.");
+        }
+        lsm = lsm || !log && options.getEngine() == Engine.LSM;
+        if (lsm && options.getPartitions() > 1) {
+            throw new RuntimeException("Partitions need the LOG engine.");
+        } else if (lsm && options.isReadOnly()) {
+            throw new RuntimeException("Read-only stores need the LOG engine.");
+        }
+        return lsm;
+    }
+
+    private static File manifestFile(String dir) {
+        return new File(dir, "manifest");
+    }
+
+    private LsmKeyValueDataStore(String dir, StoreOptions options) throws IOException {
+        this.dir = dir;
+        this.memtableSize = options.getMemtableSize();
+        this.codec = new ValueCodec(options.getCompression(), loadDictionary(options.getCompressionDictionary()));
+        this.cache = options.getCacheSize() > 0 ? new ValueCache(options.getCacheSize()) : null;
+        this.metrics = new StoreMetrics(this::diskBytes, () -> 0);
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            closeTables(allTables());
+            throw e;
+        }
+        this.background = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "kvs-lsm-" + dir);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer = new GroupCommitWriter(dir, batchHandler, options.getDurability(), options.getSyncIntervalMillis(),
+                metrics);
+        metrics.register(dir);
+        background.execute(this::mergeInBackground);
+    }
+
+    /*
+     * The compression dictionary, kept in the directory like the file based
+     * store does.
+     */
+    private byte[] loadDictionary(byte[] given) throws IOException {
+        File file = new File(dir, "dictionary");
+        if (file.exists()) {
+            byte[] dictionary = Files.readAllBytes(file.toPath());
+            if (given != null && !Arrays.equals(given, dictionary)) {
+                throw new RuntimeException("The store has a different compression dictionary.");
+            }
+            return dictionary;
+        }
+        if (given != null) {
+            File newFile = new File(dir, "newdictionary");
+            Files.write(newFile.toPath(), given);
+            Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return given;
+    }
+
+    /*
+     * Opens the tables of the manifest and removes the files it does not
+     * know. The logs from the manifest's first log on are replayed into a
+     * memtable, which is written out as a table before a new log is started.
+     */
+    private void recover() throws IOException {
+        List<List<SortedTable>> loaded = new ArrayList<>();
+        Set<Integer> known = new HashSet<>();
+        File manifest = manifestFile(dir);
+        if (manifest.exists()) {
+            for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.trim().split(" ");
+                if (fields[0].equals("wal")) {
+                    walStart = Integer.parseInt(fields[1]);
+                } else if (fields[0].equals("table")) {
+                    int tier = Integer.parseInt(fields[1]);
+                    int id = Integer.parseInt(fields[2]);
+                    while (loaded.size() <= tier) {
+                        loaded.add(new ArrayList<>());
+                    }
+                    loaded.get(tier).add(SortedTable.open(id, tableFile(id), metrics));
+                    known.add(id);
+                }
+            }
+            this.tiers = loaded;
+        }
+        new File(dir, "newmanifest").delete();
+        nextTableId = 0;
+        for (int id : listFiles(TABLE_PREFIX)) {
+            if (!known.contains(id)) {
+                tableFile(id).delete();
+            }
+            nextTableId = Math.max(nextTableId, id + 1);
+        }
+        for (int id : known) {
+            nextTableId = Math.max(nextTableId, id + 1);
+        }
+        Memtable replayed = new Memtable(-1, null);
+        int nextWalId = walStart;
+        List<Integer> wals = listFiles(WAL_PREFIX);
+        for (int id : wals) {
+            if (id >= walStart) {
+                replayWal(walFile(id), replayed);
+            }
+            nextWalId = Math.max(nextWalId, id + 1);
+        }
+        if (!replayed.entries.isEmpty()) {
+            int id = nextTableId++;
+            SortedTable table = SortedTable.write(id, tableFile(id), replayed.entries.values().iterator(),
+                    replayed.entries.size(), metrics);
+            this.tiers = withTable(loaded, table, 0);
+        }
+        walStart = nextWalId;
+        writeManifest();
+        for (int id : wals) {
+            walFile(id).delete();
+        }
+        this.active = newMemtable(nextWalId);
+    }
+
+    /*
+     * Applies the frames of the log to the memtable. The log ends at the
+     * first frame that is not complete or does not match its checksum, which
+     * is where a crash cut it off.
+     */
+    private void replayWal(File file, Memtable memtable) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024));
+        try {
+            while (true) {
+                int length = in.readInt();
+                long checksum = in.readInt() & 0xFFFFFFFFL;
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                CRC32 crc = new CRC32();
+                crc.update(frame);
+                if (crc.getValue() != checksum) {
+                    System.err.println("Ignoring the end of " + file + " since it is corrupt.");
+                    break;
+                }
+                DataInputStream entries = new DataInputStream(new ByteArrayInputStream(frame));
+                while (entries.available() > 0) {
+                    Entry entry = SortedTable.readEntry(entries);
+                    memtable.entries.put(entry.getKey(), entry);
+                }
+            }
+        } catch (EOFException e) {
+            // end of the log.
+        } finally {
+            in.close();
+        }
+    }
+
+    private Memtable newMemtable(int walId) throws IOException {
+        FileChannel wal = FileChannel.open(walFile(walId).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return new Memtable(walId, wal);
+    }
+
+    /*
+     * Writes the tables and the first log to replay, aside first and then
+     * renamed into place.
+     */
+    private void writeManifest() throws IOException {
+        writeManifest(dir, walStart, tiers);
+    }
+
+    private static void writeManifest(String dir, int walStart, List<List<SortedTable>> tiers) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("wal ").append(walStart).append('\n');
+        for (int tier = 0; tier < tiers.size(); tier++) {
+            for (SortedTable table : tiers.get(tier)) {
+                manifest.append("table ").append(tier).append(' ').append(table.getId()).append('\n');
+            }
+        }
+        File newFile = new File(dir, "newmanifest");
+        FileOutputStream out = new FileOutputStream(newFile);
+        try {
+            out.write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+            out.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        Files.move(newFile.toPath(), manifestFile(dir).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File walFile(int id) {
+        return new File(dir, WAL_PREFIX + id);
+    }
+
+    private File tableFile(int id) {
+        return new File(dir, TABLE_PREFIX + id);
+    }
+
+    private List<Integer> listFiles(String prefix) {
+        List<Integer> ids = new ArrayList<>();
+        String[] names = new File(dir).list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        ids.add(Integer.parseInt(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // not one of ours.
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /*
+     * Stops the writer, waits for the flush or merge that is running and
+     * closes the files. The memtable is not flushed, its log is replayed on
+     * the next open.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (maintenanceLock) {
+            if (closed) {
+                return;
+            }
+            await(writer.close());
+            background.shutdown();
+            try {
+                background.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            lockWrite();
+            try {
+                closed = true;
+                active.wal.close();
+                if (flushing != null) {
+                    flushing.wal.close();
+                }
+                closeTables(allTables());
+            } finally {
+                lock.writeLock().unlock();
+            }
+            metrics.unregister();
+            INSTANCE_MAP.remove(dir, this);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new RuntimeException("The store is closed.");
+        }
+    }
+
+    private void lockRead() {
+        if (lock.readLock().tryLock()) {
+            metrics.recordReadLockWait(0);
+            return;
+        }
+        long start = System.nanoTime();
+        lock.readLock().lock();
+        metrics.recordReadLockWait(System.nanoTime() - start);
+    }
+
+    private void lockWrite() {
+        if (lock.writeLock().tryLock()) {
+            metrics.recordWriteLockWait(0);
+            return;
+        }
+        long start = System.nanoTime();
+        lock.writeLock().lock();
+        metrics.recordWriteLockWait(System.nanoTime() - start);
+    }
+
+    @Override
+    public void add(String key, ByteBuffer value, int ttl) throws IOException {
+        await(addAsync(key, value, ttl));
+    }
+
+    @Override
+    public CompletableFuture<Void> addAsync(String key, ByteBuffer value, int ttl) {
+        return writer.submit(WriteOp.add(key, codec.encode(value), ttl));
+    }
+
+    @Override
+    public void multiAdd(Map<String, ByteBuffer> entries, int ttl) throws IOException {
+        List<WriteOp> ops = new ArrayList<>(entries.size());
+        for (Map.Entry<String, ByteBuffer> entry : entries.entrySet()) {
+            ops.add(WriteOp.add(entry.getKey(), codec.encode(entry.getValue()), ttl));
+        }
+        await(writer.submit(WriteOp.group(ops)));
+    }
+
+    @Override
+    public void put(String key, ByteBuffer value, int ttl) throws IOException {
+        await(putAsync(key, value, ttl));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, ByteBuffer value, int ttl) {
+        return writer.submit(WriteOp.put(key, codec.encode(value), ttl));
+    }
+
+    @Override
+    public boolean replace(String key, ByteBuffer value, int ttl) throws IOException {
+        return submitConditional(WriteOp.replace(key, codec.encode(value), ttl));
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, ByteBuffer value, int ttl) throws IOException {
+        return submitConditional(WriteOp.putIfAbsent(key, codec.encode(value), ttl));
+    }
+
+    @Override
+    public boolean compareAndSet(String key, ByteBuffer expected, ByteBuffer value, int ttl) throws IOException {
+        byte[] expectedValue = new byte[expected.remaining()];
+        expected.duplicate().get(expectedValue);
+        return submitConditional(WriteOp.compareAndSet(key, expectedValue, codec.encode(value), ttl));
+    }
+
+    private boolean submitConditional(WriteOp op) throws IOException {
+        await(writer.submit(op));
+        return op.isApplied();
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        await(deleteAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return writer.submit(WriteOp.delete(key));
+    }
+
+    @Override
+    public void multiDelete(Collection<String> keys) throws IOException {
+        List<WriteOp> ops = new ArrayList<>(keys.size());
+        for (String key : new LinkedHashSet<>(keys)) {
+            ops.add(WriteOp.delete(key));
+        }
+        await(writer.submit(WriteOp.group(ops)));
+    }
+
+    @Override
+    public void applyChanges(List<ChangeRecord> changes) throws IOException {
+        List<WriteOp> ops = new ArrayList<>(changes.size());
+        for (ChangeRecord change : changes) {
+            byte[] record = change.getType() == ChangeRecord.Type.ADD
+                    ? codec.encode(ByteBuffer.wrap(change.getValue()))
+                    : null;
+            ops.add(WriteOp.replicate(change.getKey(), record, change.getExpiryTime()));
+        }
+        await(writer.submit(WriteOp.group(ops)));
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) throws IOException {
+        await(writer.execute(() -> changeListeners.add(listener)));
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) throws IOException {
+        await(writer.execute(() -> changeListeners.remove(listener)));
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        return FileBasedKeyValueDataStore.await(future);
+    }
+
+    /*
+     * Writes a batch of adds, puts and deletes. The ops are checked like the
+     * file based store does, against the memtables and the tables. The
+     * entries of the accepted ops are appended to the log as one frame and
+     * only then put into the memtable. A full memtable is swapped out before the batch, so
+     * that a failed swap fails the batch before anything is written.
+     */
+    private void writeBatch(List<WriteOp> batch) throws IOException {
+        if (active.size >= memtableSize) {
+            rotate();
+        }
+        Map<String, Entry> changes = new LinkedHashMap<>();
+        List<ChangeRecord> changeRecords = new ArrayList<>();
+        for (WriteOp op : batch) {
+            if (!holds(op, changes)) {
+                op.skip();
+                continue;
+            }
+            List<WriteOp> ops = op.getType() == WriteOp.Type.GROUP ? op.getOps() : Collections.singletonList(op);
+            RuntimeException rejection = null;
+            for (int i = 0; i < ops.size() && rejection == null; i++) {
+                rejection = check(ops.get(i), current(changes, ops.get(i).getKey()));
+            }
+            if (rejection != null) {
+                op.reject(rejection);
+                continue;
+            }
+            for (WriteOp child : ops) {
+                Entry entry = apply(child, current(changes, child.getKey()));
+                if (entry == null) {
+                    continue;
+                }
+                changes.put(child.getKey(), entry);
+                if (!changeListeners.isEmpty()) {
+                    changeRecords.add(entry.isTombstone() ? ChangeRecord.delete(entry.getKey())
+                            : ChangeRecord.add(entry.getKey(), codec.decodeRecord(entry.getRecord()),
+                                    entry.getExpiryTime()));
+                }
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        appendFrame(changes.values());
+        Memtable memtable = active;
+        for (Entry entry : changes.values()) {
+            Entry old = memtable.entries.put(entry.getKey(), entry);
+            memtable.size += entry.memorySize() - (old != null ? old.memorySize() : 0);
+        }
+        if (!changeRecords.isEmpty()) {
+            for (ChangeListener listener : changeListeners) {
+                try {
+                    listener.onChanges(changeRecords);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private Entry current(Map<String, Entry> changes, String key) throws IOException {
+        if (changes.containsKey(key)) {
+            return changes.get(key);
+        }
+        lockRead();
+        try {
+            return find(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Whether the condition of a conditional put holds.
+     */
+    private boolean holds(WriteOp op, Map<String, Entry> changes) throws IOException {
+        if (op.getType() != WriteOp.Type.REPLACE && op.getType() != WriteOp.Type.PUT_IF_ABSENT
+                && op.getType() != WriteOp.Type.COMPARE_AND_SET) {
+            return true;
+        }
+        Entry existing = current(changes, op.getKey());
+        boolean live = existing != null && existing.isLive();
+        if (op.getType() == WriteOp.Type.PUT_IF_ABSENT) {
+            return !live;
+        } else if (op.getType() == WriteOp.Type.REPLACE || !live) {
+            return live;
+        }
+        return Arrays.equals(codec.decodeRecord(existing.getRecord()), op.getExpectedValue());
+    }
+
+    private static RuntimeException check(WriteOp op, Entry existing) {
+        boolean live = existing != null && existing.isLive();
+        if (op.getType() == WriteOp.Type.ADD && live) {
+            return new RuntimeException("Key already exists.");
+        } else if (op.getType() == WriteOp.Type.DELETE && !live) {
+            return new RuntimeException("Key does not exist.");
+        }
+        return null;
+    }
+
+    /*
+     * The entry the op writes, or null if it writes nothing.
+     */
+    private static Entry apply(WriteOp op, Entry existing) {
+        String key = op.getKey();
+        switch (op.getType()) {
+            case ADD:
+            case PUT:
+            case REPLACE:
+            case PUT_IF_ABSENT:
+            case COMPARE_AND_SET:
+                return new Entry(key, op.getRecord(), FileBasedKeyValueDataStore.getExpiryTime(op.getTtl()));
+            case DELETE:
+                return new Entry(key, null, -1);
+            case REPLICATE:
+                if (op.getRecord() != null) {
+                    return new Entry(key, op.getRecord(), op.getTtl());
+                }
+                return existing != null && !existing.isTombstone() ? new Entry(key, null, -1) : null;
+            default:
+                return null;
+        }
+    }
+
+    /*
+     * Appends the entries to the log as a frame of its length, its CRC32 and
+     * the entries.
+     */
+    private void appendFrame(Collection<Entry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        for (Entry entry : entries) {
+            SortedTable.writeEntry(out, entry);
+        }
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(frame.array(), 8, frame.capacity() - 8);
+        frame.putInt(0, frame.capacity() - 8);
+        frame.putInt(4, (int) crc.getValue());
+        while (frame.hasRemaining()) {
+            active.wal.write(frame);
+        }
+        metrics.recordBytesWritten(frame.capacity());
+    }
+
+    /*
+     * Starts a new memtable and log and flushes the full memtable in the
+     * background. Only one memtable is flushed at a time, so the writes wait
+     * here if the previous flush has not finished, and a flush that failed is
+     * tried again.
+     */
+    private void rotate() throws IOException {
+        while (flushing != null) {
+            try {
+                await(flush);
+            } catch (IOException | RuntimeException e) {
+                // reported by the flush, try it again.
+                flush = submit(this::flush);
+                await(flush);
+            }
+        }
+        Memtable next = newMemtable(active.walId + 1);
+        active.wal.force(false);
+        flushing = active;
+        active = next;
+        flush = submit(this::flush);
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        background.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /*
+     * Writes the flushing memtable out as the newest table. The table is
+     * added before the memtable is dropped, so that a get always finds the
+     * entries in one or the other.
+     */
+    private Void flush() throws IOException {
+        Memtable memtable = flushing;
+        try {
+            int id = nextTableId++;
+            SortedTable table = SortedTable.write(id, tableFile(id), memtable.entries.values().iterator(),
+                    memtable.entries.size(), metrics);
+            tiers = withTable(tiers, table, 0);
+            walStart = memtable.walId + 1;
+            writeManifest();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            throw e;
+        }
+        flushing = null;
+        memtable.wal.close();
+        walFile(memtable.walId).delete();
+        mergeTiers();
+        return null;
+    }
+
+    private void mergeInBackground() {
+        try {
+            mergeTiers();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Merges every tier that has TIER_WIDTH tables into the next one.
+     */
+    private void mergeTiers() throws IOException {
+        for (int tier = 0; tier < tiers.size(); tier++) {
+            List<List<SortedTable>> current = tiers;
+            if (current.get(tier).size() >= TIER_WIDTH) {
+                boolean oldest = true;
+                for (int deeper = tier + 1; deeper < current.size(); deeper++) {
+                    oldest &= current.get(deeper).isEmpty();
+                }
+                merge(current.get(tier), tier + 1, oldest);
+            }
+        }
+    }
+
+    /*
+     * Merges the tables, newest first, into one table of the target tier.
+     * Deleted and expired entries can only be dropped when no older table
+     * has the key; the expired keys dropped are reported to the change
+     * listeners.
+     */
+    private long merge(List<SortedTable> tables, int target, boolean oldest) throws IOException {
+        long start = System.nanoTime();
+        List<Iterator<Entry>> sources = new ArrayList<>();
+        long entries = 0;
+        long inputBytes = 0;
+        for (SortedTable table : tables) {
+            sources.add(table.iterator(null));
+            entries += table.getEntryCount();
+            inputBytes += table.size();
+        }
+        Iterator<Entry> merged = new MergeIterator(sources);
+        List<String> expired = new ArrayList<>();
+        if (oldest) {
+            merged = new LiveIterator(merged, changeListeners.isEmpty() ? null : expired);
+        }
+        int id = nextTableId++;
+        SortedTable table = SortedTable.write(id, tableFile(id), merged, entries, metrics);
+        List<List<SortedTable>> next = new ArrayList<>();
+        for (List<SortedTable> tier : tiers) {
+            List<SortedTable> kept = new ArrayList<>(tier);
+            kept.removeAll(tables);
+            next.add(kept);
+        }
+        long outputBytes = 0;
+        if (table.getEntryCount() > 0) {
+            next = withTable(next, table, target);
+            outputBytes = table.size();
+        } else {
+            table.close();
+            tableFile(id).delete();
+        }
+        tiers = next;
+        writeManifest();
+        lockWrite();
+        try {
+            closeTables(tables);
+            for (SortedTable old : tables) {
+                old.getFile().delete();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (!expired.isEmpty()) {
+            reportExpired(expired);
+        }
+        long freed = Math.max(0, inputBytes - outputBytes);
+        metrics.recordCompaction(System.nanoTime() - start, freed);
+        return freed;
+    }
+
+    /*
+     * Hands the expired keys a merge dropped to the change listeners on the
+     * writer thread, like the changes. Not waited for, since the writer may
+     * be waiting for the background thread itself.
+     */
+    private void reportExpired(List<String> expired) {
+        writer.execute(() -> {
+            for (ChangeListener listener : changeListeners) {
+                try {
+                    listener.onExpired(expired);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            return null;
+        });
+    }
+
+    /*
+     * A copy of the tiers with the table added as the newest of the tier.
+     */
+    private static List<List<SortedTable>> withTable(List<List<SortedTable>> current, SortedTable table, int tier) {
+        List<List<SortedTable>> next = new ArrayList<>();
+        for (List<SortedTable> tables : current) {
+            next.add(new ArrayList<>(tables));
+        }
+        while (next.size() <= tier) {
+            next.add(new ArrayList<>());
+        }
+        next.get(tier).add(0, table);
+        return next;
+    }
+
+    /*
+     * All the tables from the newest to the oldest.
+     */
+    private List<SortedTable> allTables() {
+        List<SortedTable> tables = new ArrayList<>();
+        for (List<SortedTable> tier : tiers) {
+            tables.addAll(tier);
+        }
+        return tables;
+    }
+
+    private static void closeTables(List<SortedTable> tables) {
+        for (SortedTable table : tables) {
+            try {
+                table.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * The newest entry of the key, deleted or not, or null if the store has
+     * never had it. Needs the read lock, which keeps the tables open.
+     */
+    private Entry find(String key) throws IOException {
+        Entry entry = active.entries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        Memtable full = flushing;
+        if (full != null && (entry = full.entries.get(key)) != null) {
+            return entry;
+        }
+        for (List<SortedTable> tier : tiers) {
+            for (SortedTable table : tier) {
+                if ((entry = table.get(key)) != null) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Entry liveEntry(String key) throws IOException {
+        Entry entry = find(key);
+        if (entry == null || !entry.isLive()) {
+            throw new RuntimeException("Key does not exist.");
+        }
+        return entry;
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        long start = System.nanoTime();
+        lockRead();
+        try {
+            checkOpen();
+            return copyValue(liveEntry(key));
+        } finally {
+            lock.readLock().unlock();
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public int get(String key, ByteBuffer target) throws IOException {
+        long start = System.nanoTime();
+        lockRead();
+        try {
+            checkOpen();
+            byte[] value = getValue(liveEntry(key));
+            if (value.length <= target.remaining()) {
+                target.put(value);
+            }
+            return value.length;
+        } finally {
+            lock.readLock().unlock();
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> multiGet(Collection<String> keys) throws IOException {
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        lockRead();
+        try {
+            checkOpen();
+            for (String key : keys) {
+                Entry entry = find(key);
+                if (entry != null && entry.isLive()) {
+                    result.put(key, copyValue(entry));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /*
+     * The value of the entry. The cache holds the decoded values of the table
+     * entries, by their table and position; a table is never rewritten, so
+     * they cannot be stale, they are only evicted.
+     */
+    private byte[] getValue(Entry entry) throws IOException {
+        if (cache == null || entry.getTable() < 0 || entry.getOffset() > Integer.MAX_VALUE) {
+            return codec.decodeRecord(entry.getRecord());
+        }
+        byte[] value = cache.get(entry.getTable(), entry.getOffset());
+        if (value == null) {
+            value = codec.decodeRecord(entry.getRecord());
+            cache.put(entry.getTable(), entry.getOffset(), value);
+        }
+        return value;
+    }
+
+    private byte[] copyValue(Entry entry) throws IOException {
+        byte[] value = getValue(entry);
+        return cache != null ? value.clone() : value;
+    }
+
+    /*
+     * Streams the keys from 'from' (inclusive) to 'to' (exclusive) and their
+     * values in key order; a null bound leaves that end open. Every store of
+     * this engine can be scanned.
+     */
+    @Override
+    public Stream<Map.Entry<String, byte[]>> scan(String from, String to) {
+        return stream(from, to, (entry, value) -> new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), value));
+    }
+
+    @Override
+    public Stream<Map.Entry<String, byte[]>> scanPrefix(String prefix) {
+        return scan(prefix, OrderedKeyIndex.successor(prefix));
+    }
+
+    @Override
+    public Stream<ChangeRecord> snapshot() {
+        return stream(null, null, (entry, value) -> ChangeRecord.add(entry.getKey(), value, entry.getExpiryTime()));
+    }
+
+    /*
+     * Copies the store as it is at one point in time into the empty target
+     * directory. The copying runs on the background thread, so no flush or
+     * merge changes the tables or removes a log meanwhile, while the writes
+     * go on. The tables are immutable and are hard linked. The logs of the
+     * memtables are copied up to the length of the active one when the
+     * snapshot starts; a frame cut off there is not replayed, so the copy
+     * ends at a batch. A manifest of the tables is written for the copy.
+     */
+    @Override
+    public void snapshot(String targetDir) throws IOException {
+        CompletableFuture<Void> done;
+        synchronized (maintenanceLock) {
+            checkOpen();
+            done = submit(() -> copyTo(new File(targetDir)));
+        }
+        await(done);
+    }
+
+    private Void copyTo(File target) throws IOException {
+        // a rotation meanwhile only makes this memtable the flushing one, and
+        // then waits for the flush queued behind this task, so its log stays.
+        Memtable current = active;
+        long walLength = current.wal.size();
+        List<List<SortedTable>> tables = tiers;
+        for (List<SortedTable> tier : tables) {
+            for (SortedTable table : tier) {
+                SnapshotFiles.link(table.getFile(), new File(target, table.getFile().getName()));
+            }
+        }
+        for (int id : listFiles(WAL_PREFIX)) {
+            if (id >= walStart && id < current.walId) {
+                // the log of the flushing memtable, which is not written any more.
+                SnapshotFiles.link(walFile(id), new File(target, walFile(id).getName()));
+            } else if (id == current.walId) {
+                SnapshotFiles.copy(walFile(id), new File(target, walFile(id).getName()), walLength);
+            }
+        }
+        File dictionary = new File(dir, "dictionary");
+        if (dictionary.exists()) {
+            SnapshotFiles.link(dictionary, new File(target, dictionary.getName()));
+        }
+        writeManifest(target.getPath(), walStart, tables);
+        return null;
+    }
+
+    private <T> Stream<T> stream(String from, String to, BiFunction<Entry, byte[], T> entryOf) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new ScanIterator<>(from, to, entryOf),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /*
+     * Merges the memtables and the tables from the key on.
+     */
+    private Iterator<Entry> view(String from) {
+        List<Iterator<Entry>> sources = new ArrayList<>();
+        sources.add(tail(active.entries, from));
+        Memtable full = flushing;
+        if (full != null) {
+            sources.add(tail(full.entries, from));
+        }
+        for (SortedTable table : allTables()) {
+            sources.add(table.iterator(from));
+        }
+        return new MergeIterator(sources);
+    }
+
+    private static Iterator<Entry> tail(ConcurrentSkipListMap<String, Entry> entries, String from) {
+        return (from == null ? entries : entries.tailMap(from, true)).values().iterator();
+    }
+
+    /*
+     * Reads a scan SCAN_CHUNK_SIZE entries at a time. Every chunk merges a
+     * fresh view of the memtables and tables under the read lock, from just
+     * after the last key of the previous chunk, so a merge can replace the
+     * tables between two chunks. The scan is weakly consistent like the scans
+     * of the file based store.
+     */
+    private class ScanIterator<T> implements Iterator<T> {
+
+        private final String to;
+        private final BiFunction<Entry, byte[], T> entryOf;
+        private final ArrayDeque<T> chunk = new ArrayDeque<>();
+        private String from;
+        // whether the entry of 'from' was returned by the previous chunk.
+        private boolean resumed;
+        private boolean done;
+
+        private ScanIterator(String from, String to, BiFunction<Entry, byte[], T> entryOf) {
+            this.from = from;
+            this.to = to;
+            this.entryOf = entryOf;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (chunk.isEmpty() && !done) {
+                fill();
+            }
+            return !chunk.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunk.poll();
+        }
+
+        private void fill() {
+            lockRead();
+            try {
+                checkOpen();
+                Iterator<Entry> entries = view(from);
+                int read = 0;
+                while (read < SCAN_CHUNK_SIZE) {
+                    if (!entries.hasNext()) {
+                        done = true;
+                        break;
+                    }
+                    Entry entry = entries.next();
+                    if (resumed && entry.getKey().equals(from)) {
+                        continue;
+                    } else if (to != null && entry.getKey().compareTo(to) >= 0) {
+                        done = true;
+                        break;
+                    }
+                    read++;
+                    from = entry.getKey();
+                    resumed = true;
+                    if (entry.isLive()) {
+                        chunk.add(entryOf.apply(entry, copyValue(entry)));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /*
+     * Merges sources sorted by key into one sorted iterator. When several
+     * sources have a key, the entry of the first of them wins, so the sources
+     * are given newest first.
+     */
+    private static class MergeIterator implements Iterator<Entry> {
+
+        private static class Source {
+
+            private final Iterator<Entry> entries;
+            private final int rank;
+            private Entry head;
+
+            private Source(Iterator<Entry> entries, int rank) {
+                this.entries = entries;
+                this.rank = rank;
+            }
+        }
+
+        private final PriorityQueue<Source> queue = new PriorityQueue<>(
+                Comparator.comparing((Source source) -> source.head.getKey()).thenComparingInt(source -> source.rank));
+
+        private MergeIterator(List<Iterator<Entry>> sources) {
+            for (int i = 0; i < sources.size(); i++) {
+                advance(new Source(sources.get(i), i));
+            }
+        }
+
+        private void advance(Source source) {
+            if (source.entries.hasNext()) {
+                source.head = source.entries.next();
+                queue.add(source);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Entry next() {
+            if (queue.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Source first = queue.poll();
+            Entry entry = first.head;
+            advance(first);
+            while (!queue.isEmpty() && queue.peek().head.getKey().equals(entry.getKey())) {
+                advance(queue.poll());
+            }
+            return entry;
+        }
+    }
+
+    /*
+     * Skips the deleted and expired entries, adding the keys of the expired
+     * ones to the given list unless it is null.
+     */
+    private static class LiveIterator implements Iterator<Entry> {
+
+        private final Iterator<Entry> entries;
+        private final List<String> expired;
+        private Entry next;
+
+        private LiveIterator(Iterator<Entry> entries, List<String> expired) {
+            this.entries = entries;
+            this.expired = expired;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && entries.hasNext()) {
+                Entry entry = entries.next();
+                if (entry.isLive()) {
+                    next = entry;
+                } else if (expired != null && !entry.isTombstone()) {
+                    expired.add(entry.getKey());
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = next;
+            next = null;
+            return entry;
+        }
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        return cache != null ? cache.getStats() : new CacheStats(0, 0, 0, 0, 0);
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+        return metrics.snapshot();
+    }
+
+    private long diskBytes() {
+        long bytes = 0;
+        for (int id : listFiles(TABLE_PREFIX)) {
+            bytes += tableFile(id).length();
+        }
+        for (int id : listFiles(WAL_PREFIX)) {
+            bytes += walFile(id).length();
+        }
+        return bytes;
+    }
+
+    /*
+     * Merges all the tables into one, dropping the deleted and expired
+     * entries. The merge runs on the background thread after the flush or
+     * merge that is running.
+     */
+    @Override
+    public void compact() throws IOException {
+        CompletableFuture<Void> done;
+        synchronized (maintenanceLock) {
+            checkOpen();
+            done = submit(this::mergeAll);
+        }
+        await(done);
+    }
+
+    private Void mergeAll() throws IOException {
+        List<SortedTable> tables = allTables();
+        if (tables.size() > 1 || tables.size() == 1 && tables.get(0).hasGarbage()) {
+            long freed = merge(tables, Math.max(0, tiers.size() - 1), true);
+            System.out.println("Compaction done. " + tables.size() + " table(s) were merged, " + freed
+                    + " byte(s) were freed.");
+        } else {
+            System.err.println("Compaction not needed since there are no expired/ deleted keys.");
+        }
+        return null;
+    }
+
+}
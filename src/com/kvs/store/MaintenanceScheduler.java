@@ -0,0 +1,85 @@
+// $Id$
+package com.kvs.store;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs the periodic tasks of all the open stores, such as expiry, checkpoints
+ * and the refresh of read-only stores, on a few shared daemon threads instead
+ * of a timer thread per store.
+ *
+ * Compactions are run on a thread of their own, one at a time whichever store
+ * they belong to, so that a long compaction neither holds up the other tasks
+ * nor runs at once with the compactions of other stores on the same disk.
+ * Every store is asked every COMPACTION_CHECK_MILLIS whether it needs one.
+ */
+
+final class MaintenanceScheduler {
+
+    private static final int THREADS = 4;
+    private static final long COMPACTION_CHECK_MILLIS = 1000;
+
+    private static final ScheduledExecutorService TASKS = Executors.newScheduledThreadPool(THREADS,
+            task -> daemon(task, "kvs-maintenance"));
+    private static final ExecutorService COMPACTIONS = Executors
+            .newSingleThreadExecutor(task -> daemon(task, "kvs-compaction"));
+
+    private MaintenanceScheduler() {
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /*
+     * Runs the task every interval until the returned future is cancelled.
+     * A task that fails is reported and run again at the next interval.
+     */
+    static ScheduledFuture<?> schedule(Task task, long intervalMillis) {
+        return TASKS.scheduleAtFixedRate(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Queues the compaction whenever needed says so, unless it is already
+     * queued or running. Cancelling the returned future stops the checks.
+     */
+    static ScheduledFuture<?> scheduleCompaction(BooleanSupplier needed, Task compaction) {
+        AtomicBoolean queued = new AtomicBoolean();
+        return schedule(() -> {
+            if (!queued.get() && needed.getAsBoolean() && queued.compareAndSet(false, true)) {
+                COMPACTIONS.execute(() -> {
+                    try {
+                        compaction.run();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        queued.set(false);
+                    }
+                });
+            }
+        }, COMPACTION_CHECK_MILLIS);
+    }
+
+    /**
+     * A task that may throw.
+     */
+    interface Task {
+
+        void run() throws Exception;
+    }
+
+}
@@ -0,0 +1,225 @@
+// $Id$
+package com.kvs.store;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Value reader that maps a values segment into memory. A get is a copy out
+ * of the mapping and does not need any system call. The segment size is
+ * limited to 2GB.
+ *
+ * The segment is mapped in chunks of CHUNK_SIZE bytes. A read only mapping
+ * cannot go beyond the end of the file, so the chunk being written is mapped
+ * up to the length the writer has reported, and mapped again further when a
+ * read needs bytes written since. The mappings replaced this way may still be
+ * in use by a read, so they are kept until the store releases them at a time
+ * no read is going on. Only the few values that cross into the next chunk are
+ * read through the channel.
+ *
+ * The mappings are unmapped on close, so that the file of a segment deleted
+ * by compaction does not stay on disk until they are garbage collected.
+ */
+
+class MappedValueReader implements ValueReader {
+
+    private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+    // replaced mappings that make a release worth the write lock.
+    private static final int RELEASE_THRESHOLD = 16;
+
+    private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+
+    private final FileChannel channel;
+    private final ValueCodec codec;
+    // the mappings of the chunks, null until the chunk is mapped.
+    private final AtomicReferenceArray<MappedByteBuffer> chunks = new AtomicReferenceArray<>(
+            Integer.MAX_VALUE / CHUNK_SIZE + 1);
+    // mappings replaced by larger ones, guarded by this.
+    private final List<MappedByteBuffer> replaced = new ArrayList<>();
+    // bytes of the segment known to be written.
+    private volatile long length;
+    private volatile boolean sealed;
+
+    MappedValueReader(File file, ValueCodec codec) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.codec = codec;
+        this.length = channel.size();
+    }
+
+    @Override
+    public byte[] read(long offset) throws IOException {
+        int header = bytes(offset, 4).getInt();
+        byte[] value = new byte[ValueCodec.lengthOf(header)];
+        bytes(offset + 4, value.length).get(value);
+        return codec.decode(ValueCodec.codecOf(header), value);
+    }
+
+    @Override
+    public int read(long offset, ByteBuffer target) throws IOException {
+        int header = bytes(offset, 4).getInt();
+        int len = ValueCodec.lengthOf(header);
+        if (ValueCodec.codecOf(header) != ValueCodec.NONE) {
+            byte[] value = read(offset);
+            if (value.length <= target.remaining()) {
+                target.put(value);
+            }
+            return value.length;
+        }
+        if (len <= target.remaining()) {
+            target.put(bytes(offset + 4, len));
+        }
+        return len;
+    }
+
+    @Override
+    public byte[] readRecord(long offset) throws IOException {
+        int len = ValueCodec.lengthOf(bytes(offset, 4).getInt());
+        byte[] record = new byte[4 + len];
+        bytes(offset, record.length).get(record);
+        return record;
+    }
+
+    /*
+     * The length bytes at the offset, as a view of the mapping of their chunk,
+     * or read from the file if they cross into the next chunk.
+     */
+    private ByteBuffer bytes(long offset, int length) throws IOException {
+        int index = (int) (offset / CHUNK_SIZE);
+        int start = (int) (offset % CHUNK_SIZE);
+        if (start + length <= CHUNK_SIZE) {
+            MappedByteBuffer chunk = chunks.get(index);
+            if (chunk == null || start + length > chunk.limit()) {
+                chunk = map(index, start + length);
+            }
+            // duplicate so that concurrent readers don't share the position.
+            ByteBuffer view = chunk.duplicate();
+            view.limit(start + length);
+            view.position(start);
+            return view;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Value ending at " + (offset + length) + " is beyond the end of the file.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /*
+     * Maps the chunk as far as the segment is written, which has to be at
+     * least 'end' bytes into it. The length reported by the writer is used
+     * unless the bytes are past it, as in a read-only store whose writer is
+     * another process, where the file is asked for its size.
+     */
+    private synchronized MappedByteBuffer map(int index, int end) throws IOException {
+        MappedByteBuffer chunk = chunks.get(index);
+        if (chunk != null && end <= chunk.limit()) {
+            // mapped by another read in the meanwhile.
+            return chunk;
+        }
+        long start = (long) index * CHUNK_SIZE;
+        if (start + end > length) {
+            length = Math.max(length, channel.size());
+            if (start + end > length) {
+                throw new EOFException("Value ending at " + (start + end) + " is beyond the end of the file.");
+            }
+        }
+        MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, start, Math.min(length - start, CHUNK_SIZE));
+        if (chunk != null) {
+            replaced.add(chunk);
+        }
+        chunks.set(index, mapped);
+        return mapped;
+    }
+
+    @Override
+    public void extend(long length) {
+        this.length = length;
+    }
+
+    @Override
+    public void seal() {
+        sealed = true;
+    }
+
+    @Override
+    public synchronized boolean needsRelease() {
+        // a sealed segment is not mapped again, so nothing more comes.
+        return replaced.size() >= RELEASE_THRESHOLD || sealed && !replaced.isEmpty();
+    }
+
+    @Override
+    public synchronized void release() {
+        for (MappedByteBuffer mapping : replaced) {
+            unmap(mapping);
+        }
+        replaced.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+        release();
+        for (int i = 0; i < chunks.length(); i++) {
+            MappedByteBuffer chunk = chunks.getAndSet(i, null);
+            if (chunk != null) {
+                unmap(chunk);
+            }
+        }
+    }
+
+    private static void unmap(MappedByteBuffer mapping) {
+        if (UNMAPPER != null) {
+            UNMAPPER.accept(mapping);
+        }
+    }
+
+    /*
+     * Unmaps a buffer right away, which the JDK only does through its internal
+     * API: Unsafe.invokeCleaner from Java 9 on, the buffer's cleaner before.
+     * Null if neither can be reached, the mappings are then left to the
+     * garbage collector.
+     */
+    private static Consumer<ByteBuffer> unmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                Object unsafe = theUnsafe.get(null);
+                return buffer -> invoke(invokeCleaner, unsafe, buffer);
+            } catch (NoSuchMethodException e) {
+                Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return buffer -> invoke(clean, invoke(cleaner, buffer));
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Mappings are left to the garbage collector: " + e);
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Could not unmap a value segment.", e);
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+// $Id$
+package com.kvs.store;
+
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+* Key index backed by a concurrent skip list, which keeps the keys sorted so
+* that they can be iterated by range or by prefix.
+*/
+
+class OrderedKeyIndex implements KeyIndex {
+
+    private final ConcurrentSkipListMap<String, Key> keyMap = new ConcurrentSkipListMap<>();
+
+    @Override
+    public Key get(String key) {
+        return keyMap.get(key);
+    }
+
+    @Override
+    public boolean find(String key, KeyLocation location) {
+        Key found = keyMap.get(key);
+        if (found == null) {
+            return false;
+        }
+        location.set(found);
+        return true;
+    }
+
+    @Override
+    public void put(Key key) {
+        keyMap.put(key.getKey(), key);
+    }
+
+    @Override
+    public void remove(String key) {
+        keyMap.remove(key);
+    }
+
+    @Override
+    public boolean remove(Key key) {
+        Key existing = keyMap.get(key.getKey());
+        return existing != null && existing.isSameRecord(key) && keyMap.remove(key.getKey(), existing);
+    }
+
+    @Override
+    public int size() {
+        return keyMap.size();
+    }
+
+    @Override
+    public void clear() {
+        keyMap.clear();
+    }
+
+    @Override
+    public Iterator<Key> iterator() {
+        return keyMap.values().iterator();
+    }
+
+    /*
+     * The keys from 'from' (inclusive) to 'to' (exclusive) in key order; a null
+     * bound leaves that end open.
+     */
+    Iterator<Key> range(String from, String to) {
+        NavigableMap<String, Key> range = keyMap;
+        if (from != null) {
+            range = range.tailMap(from, true);
+        }
+        if (to != null) {
+            range = range.headMap(to, false);
+        }
+        return range.values().iterator();
+    }
+
+    /*
+     * The keys starting with the prefix in key order.
+     */
+    Iterator<Key> prefix(String prefix) {
+        return range(prefix, successor(prefix));
+    }
+
+    /*
+     * The smallest string greater than all the strings starting with the
+     * prefix, or null if there is none.
+     */
+    static String successor(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+}
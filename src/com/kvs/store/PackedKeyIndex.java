@@ -0,0 +1,406 @@
+// $Id$
+package com.kvs.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Key index that keeps no objects per key.
+ *
+ * It is an open addressing hash table with linear probing. Each slot is a
+ * position in a set of parallel primitive arrays holding the key's hash, the
+ * position of the key's bytes in a shared byte arena and the key's segment,
+ * offset, size and expiry time. A lookup compares the looked up string with
+ * the arena bytes directly, so it does not encode the key, and the gets of a
+ * store copy the slot into a location holder rather than build a key object;
+ * key objects are only made for the other lookups and for iteration.
+ *
+ * Changes are made under the write lock of a stamped lock and lookups are
+ * optimistic reads that are retried under the read lock only if a change ran
+ * at the same time. Removed slots are marked deleted rather than emptied, so a
+ * key never moves to another slot until the whole table is rehashed.
+ */
+
+class PackedKeyIndex implements KeyIndex {
+
+    private static final int EMPTY = -1;
+    private static final int DELETED = -2;
+    // slots copied out under one read lock while iterating.
+    private static final int ITERATION_CHUNK = 1024;
+    // key bytes are stored with a one byte length.
+    private static final int MAX_KEY_BYTES = 255;
+
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table = new Table(16, 256);
+
+    private static final class Table {
+
+        private final int mask;
+        private final int[] hashes;
+        private final int[] keyRefs;
+        private final long[] offsets;
+        private final int[] segments;
+        private final int[] sizes;
+        private final int[] expiryTimes;
+        private byte[] arena;
+        private int arenaLength;
+        private int count;
+        private int deleted;
+
+        private Table(int capacity, int arenaCapacity) {
+            this.mask = capacity - 1;
+            this.hashes = new int[capacity];
+            this.keyRefs = new int[capacity];
+            this.offsets = new long[capacity];
+            this.segments = new int[capacity];
+            this.sizes = new int[capacity];
+            this.expiryTimes = new int[capacity];
+            this.arena = new byte[arenaCapacity];
+            Arrays.fill(keyRefs, EMPTY);
+        }
+
+        /*
+         * The slot of the key, or -1. This is also called during optimistic
+         * reads, so it must not fail on a table that is being changed.
+         */
+        private int slotOf(String key, int hash) {
+            byte[] keyBytes = arena;
+            int slot = hash & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                int ref = keyRefs[slot];
+                if (ref == EMPTY) {
+                    return -1;
+                }
+                if (ref >= 0 && hashes[slot] == hash && matches(keyBytes, ref, key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /*
+         * Adds a key that is not in the table and returns its slot.
+         */
+        private int insert(byte[] keyBytes, int hash) {
+            int slot = hash & mask;
+            while (keyRefs[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            if (keyRefs[slot] == DELETED) {
+                deleted--;
+            }
+            if (arenaLength + 1 + keyBytes.length > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + 1 + keyBytes.length));
+            }
+            arena[arenaLength] = (byte) keyBytes.length;
+            System.arraycopy(keyBytes, 0, arena, arenaLength + 1, keyBytes.length);
+            hashes[slot] = hash;
+            keyRefs[slot] = arenaLength;
+            arenaLength += 1 + keyBytes.length;
+            count++;
+            return slot;
+        }
+
+        private void set(int slot, Key key) {
+            offsets[slot] = key.getOffset();
+            segments[slot] = key.getSegment();
+            sizes[slot] = key.getSize();
+            expiryTimes[slot] = key.getExpiryTime();
+        }
+
+        private boolean isSameRecord(int slot, Key key) {
+            return segments[slot] == key.getSegment() && offsets[slot] == key.getOffset();
+        }
+
+        private void delete(int slot) {
+            keyRefs[slot] = DELETED;
+            count--;
+            deleted++;
+        }
+
+        private Key toKey(int slot, String key) {
+            return new Key(key, segments[slot], offsets[slot], sizes[slot], expiryTimes[slot]);
+        }
+
+        private void copyTo(int slot, KeyLocation location) {
+            location.set(segments[slot], offsets[slot], sizes[slot], expiryTimes[slot]);
+        }
+
+        private String keyAt(int slot) {
+            int ref = keyRefs[slot];
+            return new String(arena, ref + 1, arena[ref] & 0xFF, StandardCharsets.UTF_8);
+        }
+
+        private int capacity() {
+            return mask + 1;
+        }
+
+    }
+
+    @Override
+    public Key get(String key) {
+        int hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        Table t = table;
+        int slot = t.slotOf(key, hash);
+        Key found = slot < 0 ? null : t.toKey(slot, key);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                t = table;
+                slot = t.slotOf(key, hash);
+                found = slot < 0 ? null : t.toKey(slot, key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /*
+     * Like get, but copies the slot into the location instead of building a
+     * key, so the lookup allocates nothing.
+     */
+    @Override
+    public boolean find(String key, KeyLocation location) {
+        int hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        Table t = table;
+        int slot = t.slotOf(key, hash);
+        if (slot >= 0) {
+            t.copyTo(slot, location);
+        }
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                t = table;
+                slot = t.slotOf(key, hash);
+                if (slot >= 0) {
+                    t.copyTo(slot, location);
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return slot >= 0;
+    }
+
+    @Override
+    public void put(Key key) {
+        String keyStr = key.getKey();
+        int hash = hash(keyStr);
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int slot = t.slotOf(keyStr, hash);
+            if (slot < 0) {
+                byte[] keyBytes = keyStr.getBytes(StandardCharsets.UTF_8);
+                if (keyBytes.length > MAX_KEY_BYTES) {
+                    throw new RuntimeException("Key size greater than " + MAX_KEY_BYTES + " bytes.");
+                }
+                // keep at least a quarter of the slots empty so probes stay short.
+                if ((t.count + t.deleted + 1) * 4L > t.capacity() * 3L) {
+                    t = rehash(t);
+                }
+                slot = t.insert(keyBytes, hash);
+            }
+            t.set(slot, key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /*
+     * Copies the live keys into a new table, dropping the deleted slots and the
+     * arena bytes of the removed keys. The table is doubled if it would be more
+     * than half full.
+     */
+    private Table rehash(Table old) {
+        int capacity = old.capacity();
+        while ((old.count + 1) * 2L > capacity) {
+            capacity *= 2;
+        }
+        Table t = new Table(capacity, Math.max(old.arenaLength, 256));
+        for (int slot = 0; slot < old.capacity(); slot++) {
+            int ref = old.keyRefs[slot];
+            if (ref >= 0) {
+                byte[] keyBytes = Arrays.copyOfRange(old.arena, ref + 1, ref + 1 + (old.arena[ref] & 0xFF));
+                int newSlot = t.insert(keyBytes, old.hashes[slot]);
+                t.offsets[newSlot] = old.offsets[slot];
+                t.segments[newSlot] = old.segments[slot];
+                t.sizes[newSlot] = old.sizes[slot];
+                t.expiryTimes[newSlot] = old.expiryTimes[slot];
+            }
+        }
+        table = t;
+        return t;
+    }
+
+    @Override
+    public void remove(String key) {
+        int hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int slot = t.slotOf(key, hash);
+            if (slot >= 0) {
+                t.delete(slot);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(Key key) {
+        int hash = hash(key.getKey());
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int slot = t.slotOf(key.getKey(), hash);
+            if (slot >= 0 && t.isSameRecord(slot, key)) {
+                t.delete(slot);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return table.count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            table = new Table(16, 256);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /*
+     * Copies the keys out a chunk of slots at a time. A rehash moves the keys
+     * around, so the iteration starts over on the new table when it sees one;
+     * keys may then be returned twice but none is missed.
+     */
+    @Override
+    public Iterator<Key> iterator() {
+        return new Iterator<Key>() {
+
+            private Table current = table;
+            private int nextSlot = 0;
+            private final ArrayDeque<Key> buffered = new ArrayDeque<>();
+
+            @Override
+            public boolean hasNext() {
+                while (buffered.isEmpty() && nextSlot < current.capacity()) {
+                    fill();
+                }
+                return !buffered.isEmpty();
+            }
+
+            @Override
+            public Key next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return buffered.poll();
+            }
+
+            private void fill() {
+                long stamp = lock.readLock();
+                try {
+                    if (table != current) {
+                        current = table;
+                        nextSlot = 0;
+                    }
+                    int end = Math.min(nextSlot + ITERATION_CHUNK, current.capacity());
+                    for (int slot = nextSlot; slot < end; slot++) {
+                        if (current.keyRefs[slot] >= 0) {
+                            buffered.add(current.toKey(slot, current.keyAt(slot)));
+                        }
+                    }
+                    nextSlot = end;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+        };
+    }
+
+    private static int hash(String key) {
+        // String caches its hash code, so this does not walk the key.
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Compares the UTF-8 bytes of a key in the arena with a string, encoding
+     * the string's chars on the fly. Unpaired surrogates are encoded as '?',
+     * the same as String.getBytes does.
+     */
+    private static boolean matches(byte[] arena, int ref, String key) {
+        if (ref >= arena.length) {
+            return false;
+        }
+        int pos = ref + 1;
+        int end = pos + (arena[ref] & 0xFF);
+        if (end > arena.length) {
+            return false;
+        }
+        int len = key.length();
+        for (int i = 0; i < len; i++) {
+            char c = key.charAt(i);
+            int n;
+            int b0;
+            int b1 = 0;
+            int b2 = 0;
+            int b3 = 0;
+            if (c < 0x80) {
+                n = 1;
+                b0 = c;
+            } else if (c < 0x800) {
+                n = 2;
+                b0 = 0xC0 | c >> 6;
+                b1 = 0x80 | c & 0x3F;
+            } else if (!Character.isSurrogate(c)) {
+                n = 3;
+                b0 = 0xE0 | c >> 12;
+                b1 = 0x80 | c >> 6 & 0x3F;
+                b2 = 0x80 | c & 0x3F;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, key.charAt(++i));
+                n = 4;
+                b0 = 0xF0 | cp >> 18;
+                b1 = 0x80 | cp >> 12 & 0x3F;
+                b2 = 0x80 | cp >> 6 & 0x3F;
+                b3 = 0x80 | cp & 0x3F;
+            } else {
+                n = 1;
+                b0 = '?';
+            }
+            if (end - pos < n || arena[pos] != (byte) b0 || n > 1 && arena[pos + 1] != (byte) b1
+                    || n > 2 && arena[pos + 2] != (byte) b2 || n > 3 && arena[pos + 3] != (byte) b3) {
+                return false;
+            }
+            pos += n;
+        }
+        return pos == end;
+    }
+
+}
@@ -0,0 +1,54 @@
+// $Id$
+package com.kvs.store;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the bytes per second a background task such as compaction reads and
+ * writes, so that it leaves the disk to the foreground reads.
+ *
+ * A token bucket: the bytes are earned at the given rate, up to a tenth of a
+ * second of them, and a caller that takes more than there are sleeps until
+ * they are earned.
+ */
+
+class RateLimiter {
+
+    private final long bytesPerSecond;
+    private final long burst;
+    private long available;
+    private long lastRefill = System.nanoTime();
+
+    /*
+     * A rate of 0 or less does not limit at all.
+     */
+    RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.burst = Math.max(1, bytesPerSecond / 10);
+        this.available = burst;
+    }
+
+    /*
+     * Takes the bytes, sleeping as long as it takes to earn them. Callers are
+     * served one at a time. An interrupt ends the wait early and is kept for
+     * the caller to see.
+     */
+    synchronized void acquire(long bytes) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long earned = (long) ((now - lastRefill) / 1e9 * bytesPerSecond);
+        available = Math.min(burst, available + earned);
+        lastRefill = now;
+        available -= bytes;
+        if (available < 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep((long) (-available * 1e9 / bytesPerSecond));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
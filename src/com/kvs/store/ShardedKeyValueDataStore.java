@@ -0,0 +1,490 @@
+// $Id$
+package com.kvs.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.kvs.metrics.MetricsSnapshot;
+
+/**
+ * A data store split into partitions by the hash of the keys.
+ *
+ * Each partition is a file based data store in its own sub directory
+ * (part-0, part-1, ...), with its own files, lock, writer thread and
+ * compaction, so writes to different partitions do not wait for each other.
+ * The number of partitions is kept in a 'partitions' file and cannot change,
+ * since the partition of a key depends on it.
+ *
+ * multiAdd and multiDelete are applied as a whole within each partition; the
+ * groups of different partitions are written in parallel and one of them can
+ * be rejected while the others are written. Scans merge the ordered streams
+ * of the partitions.
+ */
+
+class ShardedKeyValueDataStore implements KeyValueDataStore {
+
+    private static final String PARTITION_PREFIX = "part-";
+    private static final ConcurrentHashMap<String, KeyValueDataStore> INSTANCE_MAP = new ConcurrentHashMap<>();
+
+    private final String dir;
+    private final FileBasedKeyValueDataStore[] partitions;
+
+    static KeyValueDataStore getInstance(String dir, StoreOptions options) throws IOException {
+        if (options.isReadOnly()) {
+            // a reader never shares the instance of the writer.
+            return new ShardedKeyValueDataStore(dir, options);
+        }
+        if (!INSTANCE_MAP.containsKey(dir)) {
+            INSTANCE_MAP.put(dir, new ShardedKeyValueDataStore(dir, options));
+        }
+        return INSTANCE_MAP.get(dir);
+    }
+
+    /*
+     * Whether the store in the directory is, or is to be created, partitioned.
+     */
+    static boolean isPartitioned(String dir, StoreOptions options) {
+        return partitionsFile(dir).exists() || options.getPartitions() > 1;
+    }
+
+    private ShardedKeyValueDataStore(String dir, StoreOptions options) throws IOException {
+        this.dir = dir;
+        int count = loadPartitions(options.getPartitions(), options.isReadOnly());
+        this.partitions = new FileBasedKeyValueDataStore[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                File partitionDir = new File(dir, PARTITION_PREFIX + i);
+                if (!partitionDir.isDirectory() && !partitionDir.mkdir()) {
+                    throw new IOException("Cannot create the partition directory " + partitionDir);
+                }
+                partitions[i] = (FileBasedKeyValueDataStore) FileBasedKeyValueDataStore
+                        .getInstance(partitionDir.getPath(), options.forPartition(count));
+            }
+        } catch (IOException | RuntimeException e) {
+            closePartitions();
+            throw e;
+        }
+    }
+
+    private static File partitionsFile(String dir) {
+        return new File(dir, "partitions");
+    }
+
+    /*
+     * The number of partitions of the store. A new store saves the given count;
+     * an existing one has to be opened with its own count, or without one.
+     */
+    private int loadPartitions(int given, boolean readOnly) throws IOException {
+        File file = partitionsFile(dir);
+        if (file.exists()) {
+            int count = Integer.parseInt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+            if (given != 0 && given != count) {
+                throw new RuntimeException("The store has " + count + " partitions.");
+            }
+            return count;
+        }
+        if (readOnly) {
+            throw new RuntimeException(dir + " has no key-value store to read.");
+        }
+        if (new File(dir, "keys").exists()) {
+            throw new RuntimeException("The store was created without partitions.");
+        }
+        File newFile = new File(dir, "newpartitions");
+        Files.write(newFile.toPath(), String.valueOf(given).getBytes(StandardCharsets.UTF_8));
+        Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return given;
+    }
+
+    private FileBasedKeyValueDataStore partitionOf(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return partitions[(h & Integer.MAX_VALUE) % partitions.length];
+    }
+
+    /*
+     * Splits the keys by their partition, keeping their order.
+     */
+    private <T> Map<FileBasedKeyValueDataStore, List<T>> split(Collection<T> items, Function<T, String> keyOf) {
+        Map<FileBasedKeyValueDataStore, List<T>> split = new LinkedHashMap<>();
+        for (T item : items) {
+            split.computeIfAbsent(partitionOf(keyOf.apply(item)), p -> new ArrayList<>()).add(item);
+        }
+        return split;
+    }
+
+    @Override
+    public void add(String key, ByteBuffer value, int ttl) throws IOException {
+        partitionOf(key).add(key, value, ttl);
+    }
+
+    @Override
+    public CompletableFuture<Void> addAsync(String key, ByteBuffer value, int ttl) {
+        return partitionOf(key).addAsync(key, value, ttl);
+    }
+
+    @Override
+    public void multiAdd(Map<String, ByteBuffer> entries, int ttl) throws IOException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Map.Entry<FileBasedKeyValueDataStore, List<Map.Entry<String, ByteBuffer>>> part : split(
+                entries.entrySet(), Map.Entry::getKey).entrySet()) {
+            Map<String, ByteBuffer> partEntries = new LinkedHashMap<>();
+            for (Map.Entry<String, ByteBuffer> entry : part.getValue()) {
+                partEntries.put(entry.getKey(), entry.getValue());
+            }
+            futures.add(part.getKey().multiAddAsync(partEntries, ttl));
+        }
+        awaitAll(futures);
+    }
+
+    @Override
+    public void put(String key, ByteBuffer value, int ttl) throws IOException {
+        partitionOf(key).put(key, value, ttl);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, ByteBuffer value, int ttl) {
+        return partitionOf(key).putAsync(key, value, ttl);
+    }
+
+    @Override
+    public boolean replace(String key, ByteBuffer value, int ttl) throws IOException {
+        return partitionOf(key).replace(key, value, ttl);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, ByteBuffer value, int ttl) throws IOException {
+        return partitionOf(key).putIfAbsent(key, value, ttl);
+    }
+
+    @Override
+    public boolean compareAndSet(String key, ByteBuffer expected, ByteBuffer value, int ttl) throws IOException {
+        return partitionOf(key).compareAndSet(key, expected, value, ttl);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        partitionOf(key).delete(key);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return partitionOf(key).deleteAsync(key);
+    }
+
+    @Override
+    public void multiDelete(Collection<String> keys) throws IOException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Map.Entry<FileBasedKeyValueDataStore, List<String>> part : split(keys, key -> key).entrySet()) {
+            futures.add(part.getKey().multiDeleteAsync(part.getValue()));
+        }
+        awaitAll(futures);
+    }
+
+    /*
+     * Waits for all the futures and then throws the first failure, so that no
+     * write is still running when this returns.
+     */
+    private static void awaitAll(List<CompletableFuture<Void>> futures) throws IOException {
+        IOException ioFailure = null;
+        RuntimeException failure = null;
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                FileBasedKeyValueDataStore.await(future);
+            } catch (IOException e) {
+                ioFailure = ioFailure == null ? e : ioFailure;
+            } catch (RuntimeException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (ioFailure != null) {
+            throw ioFailure;
+        } else if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        return partitionOf(key).get(key);
+    }
+
+    @Override
+    public int get(String key, ByteBuffer target) throws IOException {
+        return partitionOf(key).get(key, target);
+    }
+
+    @Override
+    public Map<String, byte[]> multiGet(Collection<String> keys) throws IOException {
+        Map<String, byte[]> values = new HashMap<>();
+        for (Map.Entry<FileBasedKeyValueDataStore, List<String>> part : split(keys, key -> key).entrySet()) {
+            values.putAll(part.getKey().multiGet(part.getValue()));
+        }
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        for (String key : keys) {
+            byte[] value = values.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Stream<Map.Entry<String, byte[]>> scan(String from, String to) {
+        return merge(partition -> partition.scan(from, to));
+    }
+
+    @Override
+    public Stream<Map.Entry<String, byte[]>> scanPrefix(String prefix) {
+        return merge(partition -> partition.scanPrefix(prefix));
+    }
+
+    private Stream<Map.Entry<String, byte[]>> merge(
+            Function<FileBasedKeyValueDataStore, Stream<Map.Entry<String, byte[]>>> scan) {
+        List<Stream<Map.Entry<String, byte[]>>> streams = new ArrayList<>(partitions.length);
+        for (FileBasedKeyValueDataStore partition : partitions) {
+            streams.add(scan.apply(partition));
+        }
+        Stream<Map.Entry<String, byte[]>> merged = StreamSupport.stream(Spliterators
+                .spliteratorUnknownSize(new MergingIterator(streams), Spliterator.ORDERED | Spliterator.NONNULL),
+                false);
+        for (Stream<Map.Entry<String, byte[]>> stream : streams) {
+            merged = merged.onClose(stream::close);
+        }
+        return merged;
+    }
+
+    /*
+     * Merges the key ordered streams of the partitions. A key is in only one
+     * partition, so there are no duplicates to drop.
+     */
+    private static class MergingIterator implements Iterator<Map.Entry<String, byte[]>> {
+
+        private static class Head {
+
+            private final Iterator<Map.Entry<String, byte[]>> rest;
+            private Map.Entry<String, byte[]> entry;
+
+            private Head(Iterator<Map.Entry<String, byte[]>> rest) {
+                this.rest = rest;
+                this.entry = rest.next();
+            }
+        }
+
+        private final List<Stream<Map.Entry<String, byte[]>>> streams;
+        private PriorityQueue<Head> heads;
+
+        private MergingIterator(List<Stream<Map.Entry<String, byte[]>>> streams) {
+            this.streams = streams;
+        }
+
+        /*
+         * The partitions are only read once the merged stream is.
+         */
+        private PriorityQueue<Head> heads() {
+            if (heads == null) {
+                heads = new PriorityQueue<>(Math.max(1, streams.size()),
+                        Comparator.comparing((Head head) -> head.entry.getKey()));
+                for (Stream<Map.Entry<String, byte[]>> stream : streams) {
+                    Iterator<Map.Entry<String, byte[]>> iterator = stream.iterator();
+                    if (iterator.hasNext()) {
+                        heads.add(new Head(iterator));
+                    }
+                }
+            }
+            return heads;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads().isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            Head head = heads().poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, byte[]> entry = head.entry;
+            if (head.rest.hasNext()) {
+                head.entry = head.rest.next();
+                heads.add(head);
+            }
+            return entry;
+        }
+    }
+
+    /*
+     * The changes of each partition are applied in their order; a key is in
+     * one partition only, so the order across partitions does not matter.
+     */
+    @Override
+    public void applyChanges(List<ChangeRecord> changes) throws IOException {
+        for (Map.Entry<FileBasedKeyValueDataStore, List<ChangeRecord>> part : split(changes, ChangeRecord::getKey)
+                .entrySet()) {
+            part.getKey().applyChanges(part.getValue());
+        }
+    }
+
+    /*
+     * The listener is called by the writer of every partition, and so from
+     * several threads.
+     */
+    @Override
+    public void addChangeListener(ChangeListener listener) throws IOException {
+        for (FileBasedKeyValueDataStore partition : partitions) {
+            partition.addChangeListener(listener);
+        }
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) throws IOException {
+        for (FileBasedKeyValueDataStore partition : partitions) {
+            partition.removeChangeListener(listener);
+        }
+    }
+
+    @Override
+    public Stream<ChangeRecord> snapshot() {
+        return Arrays.stream(partitions).flatMap(FileBasedKeyValueDataStore::snapshot);
+    }
+
+    /*
+     * Snapshots every partition into its directory under the target, all at
+     * the same point in time.
+     */
+    @Override
+    public void snapshot(String targetDir) throws IOException {
+        SnapshotFiles.link(partitionsFile(dir), partitionsFile(targetDir));
+        snapshotFrom(0, targetDir);
+    }
+
+    /*
+     * Holds off the compactions and checkpoints of the partitions from the
+     * first one on, then records the lengths of all of them. Every writer
+     * waits after recording until all have, so the lengths are of one point
+     * in time and the writes only wait for the recording. The files are put
+     * into the snapshot after that.
+     */
+    private void snapshotFrom(int first, String targetDir) throws IOException {
+        if (first < partitions.length) {
+            synchronized (partitions[first].getMaintenanceLock()) {
+                snapshotFrom(first + 1, targetDir);
+            }
+            return;
+        }
+        CountDownLatch release = new CountDownLatch(1);
+        long[][] lengths = new long[partitions.length][];
+        try {
+            List<CompletableFuture<long[]>> recorded = new ArrayList<>();
+            for (FileBasedKeyValueDataStore partition : partitions) {
+                recorded.add(partition.recordLengths(release));
+            }
+            for (int i = 0; i < partitions.length; i++) {
+                lengths[i] = FileBasedKeyValueDataStore.await(recorded.get(i));
+            }
+        } finally {
+            release.countDown();
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            File partitionDir = new File(targetDir, PARTITION_PREFIX + i);
+            if (!partitionDir.mkdir()) {
+                throw new IOException("Cannot create the partition directory " + partitionDir);
+            }
+            partitions[i].copyFiles(partitionDir.getPath(), lengths[i]);
+        }
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long count = 0;
+        long size = 0;
+        for (FileBasedKeyValueDataStore partition : partitions) {
+            CacheStats stats = partition.getCacheStats();
+            hits += stats.getHits();
+            misses += stats.getMisses();
+            evictions += stats.getEvictions();
+            count += stats.getCount();
+            size += stats.getSize();
+        }
+        return new CacheStats(hits, misses, evictions, count, size);
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+        MetricsSnapshot metrics = partitions[0].getMetrics();
+        for (int i = 1; i < partitions.length; i++) {
+            metrics = metrics.merge(partitions[i].getMetrics());
+        }
+        return metrics;
+    }
+
+    @Override
+    public void compact() throws IOException {
+        for (FileBasedKeyValueDataStore partition : partitions) {
+            partition.compact();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            closePartitions();
+        } finally {
+            INSTANCE_MAP.remove(dir, this);
+        }
+    }
+
+    /*
+     * Closes all the partitions that were opened, even if one of them fails
+     * to close.
+     */
+    private void closePartitions() throws IOException {
+        IOException failure = null;
+        for (FileBasedKeyValueDataStore partition : partitions) {
+            if (partition == null) {
+                continue;
+            }
+            try {
+                partition.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+// $Id$
+package com.kvs.store;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Puts the files of a store into a snapshot: the files that are never written
+ * again are hard linked, which costs no copying and keeps their data after the
+ * store removes them, and the files still being appended to are copied up to
+ * a recorded length.
+ */
+
+final class SnapshotFiles {
+
+    private SnapshotFiles() {
+    }
+
+    /*
+     * Hard links the file, or copies it if the snapshot is on another file
+     * system or links are not supported. The file must not change any more.
+     */
+    static void link(File from, File to) throws IOException {
+        try {
+            Files.createLink(to.toPath(), from.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            copy(from, to, from.length());
+        }
+    }
+
+    /*
+     * Copies the first length bytes of the file and syncs the copy.
+     */
+    static void copy(File from, File to, long length) throws IOException {
+        FileChannel in = FileChannel.open(from.toPath(), StandardOpenOption.READ);
+        try {
+            FileChannel out = FileChannel.open(to.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                long copied = 0;
+                while (copied < length) {
+                    long count = in.transferTo(copied, length - copied, out);
+                    if (count <= 0) {
+                        throw new EOFException(from + " is shorter than " + length + " bytes.");
+                    }
+                    copied += count;
+                }
+                out.force(false);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,412 @@
+// $Id$
+package com.kvs.store;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.kvs.metrics.StoreMetrics;
+
+/**
+ * An immutable file of entries sorted by key, written by the LSM engine when
+ * it flushes its memtable or merges tables.
+ *
+ * The entries are packed into blocks of about BLOCK_SIZE bytes. Only the
+ * first key and the position of every block, and a bloom filter of the keys,
+ * are kept in memory; a lookup reads the one block that can hold the key.
+ *
+ * File layout: the blocks, the block index, the bloom filter and a fixed size
+ * footer with the positions of the index and the filter. An entry is a 2B key
+ * length, the key in UTF-8, a 4B expiry time, a 4B record length (-1 for a
+ * deleted key) and the value record as it is stored in the values segments.
+ */
+
+class SortedTable {
+
+    private static final int BLOCK_SIZE = 4 * 1024;
+    private static final int FOOTER_SIZE = 40;
+    private static final int MAGIC = 0x4B565354;
+
+    /**
+     * A key's record in a memtable or a table. A null record marks the key as
+     * deleted.
+     */
+    static class Entry {
+
+        private final String key;
+        private final byte[] record;
+        private final int expiryTime;
+        // table and position of the record, for the value cache; -1 in a memtable.
+        private final int table;
+        private final long offset;
+
+        Entry(String key, byte[] record, int expiryTime) {
+            this(key, record, expiryTime, -1, -1);
+        }
+
+        private Entry(String key, byte[] record, int expiryTime, int table, long offset) {
+            this.key = key;
+            this.record = record;
+            this.expiryTime = expiryTime;
+            this.table = table;
+            this.offset = offset;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        byte[] getRecord() {
+            return record;
+        }
+
+        int getExpiryTime() {
+            return expiryTime;
+        }
+
+        int getTable() {
+            return table;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        boolean isTombstone() {
+            return record == null;
+        }
+
+        boolean isExpired() {
+            return expiryTime != -1 && ExpiryClock.currentTime() > expiryTime;
+        }
+
+        boolean isLive() {
+            return record != null && !isExpired();
+        }
+
+        /*
+         * Rough heap cost of the entry in a memtable.
+         */
+        long memorySize() {
+            return 64 + 2L * key.length() + (record != null ? record.length : 0);
+        }
+    }
+
+    private final int id;
+    private final File file;
+    private final FileChannel channel;
+    private final StoreMetrics metrics;
+    private final String[] firstKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final BloomFilter bloom;
+    private final long entryCount;
+    private final long tombstoneCount;
+    // earliest expiry time of the entries, Integer.MAX_VALUE if none expires.
+    private final int minExpiryTime;
+
+    private SortedTable(int id, File file, StoreMetrics metrics) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.metrics = metrics;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < FOOTER_SIZE) {
+                throw new IOException(file + " is not a complete table.");
+            }
+            ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            this.entryCount = footer.getLong();
+            this.tombstoneCount = footer.getLong();
+            this.minExpiryTime = footer.getInt();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a complete table.");
+            }
+            DataInputStream index = stream(indexOffset, (int) (bloomOffset - indexOffset));
+            int blocks = index.readInt();
+            this.firstKeys = new String[blocks];
+            this.blockOffsets = new long[blocks];
+            this.blockLengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                firstKeys[i] = index.readUTF();
+                blockOffsets[i] = index.readLong();
+                blockLengths[i] = index.readInt();
+            }
+            this.bloom = BloomFilter.readFrom(stream(bloomOffset, (int) (size - FOOTER_SIZE - bloomOffset)));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static SortedTable open(int id, File file, StoreMetrics metrics) throws IOException {
+        return new SortedTable(id, file, metrics);
+    }
+
+    /*
+     * Writes the entries, which have to come in key order, to a new table and
+     * opens it. expectedKeys sizes the bloom filter.
+     */
+    static SortedTable write(int id, File file, Iterator<Entry> entries, long expectedKeys, StoreMetrics metrics)
+            throws IOException {
+        BloomFilter bloom = new BloomFilter(expectedKeys);
+        List<String> firstKeys = new ArrayList<>();
+        List<long[]> blocks = new ArrayList<>();
+        long entryCount = 0;
+        long tombstoneCount = 0;
+        int minExpiryTime = Integer.MAX_VALUE;
+        FileOutputStream fileOut = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        try {
+            ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(2 * BLOCK_SIZE);
+            DataOutputStream block = new DataOutputStream(blockBytes);
+            long position = 0;
+            while (entries.hasNext()) {
+                Entry entry = entries.next();
+                if (blockBytes.size() == 0) {
+                    firstKeys.add(entry.getKey());
+                }
+                writeEntry(block, entry);
+                bloom.add(entry.getKey());
+                entryCount++;
+                if (entry.isTombstone()) {
+                    tombstoneCount++;
+                } else if (entry.getExpiryTime() != -1) {
+                    minExpiryTime = Math.min(minExpiryTime, entry.getExpiryTime());
+                }
+                if (blockBytes.size() >= BLOCK_SIZE) {
+                    blocks.add(new long[] { position, blockBytes.size() });
+                    position += blockBytes.size();
+                    blockBytes.writeTo(out);
+                    blockBytes.reset();
+                }
+            }
+            if (blockBytes.size() > 0) {
+                blocks.add(new long[] { position, blockBytes.size() });
+                position += blockBytes.size();
+                blockBytes.writeTo(out);
+            }
+            long indexOffset = position;
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            index.writeInt(blocks.size());
+            for (int i = 0; i < blocks.size(); i++) {
+                index.writeUTF(firstKeys.get(i));
+                index.writeLong(blocks.get(i)[0]);
+                index.writeInt((int) blocks.get(i)[1]);
+            }
+            indexBytes.writeTo(out);
+            long bloomOffset = indexOffset + indexBytes.size();
+            bloom.writeTo(out);
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeLong(entryCount);
+            out.writeLong(tombstoneCount);
+            out.writeInt(minExpiryTime);
+            out.writeInt(MAGIC);
+            out.flush();
+            metrics.recordBytesWritten(fileOut.getChannel().position());
+            fileOut.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        return open(id, file, metrics);
+    }
+
+    static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        out.writeShort(keyBytes.length);
+        out.write(keyBytes);
+        out.writeInt(entry.getExpiryTime());
+        if (entry.isTombstone()) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(entry.getRecord().length);
+            out.write(entry.getRecord());
+        }
+    }
+
+    /*
+     * Reads the next entry of a write-ahead log, throws EOFException at its
+     * end, including a partly written last entry.
+     */
+    static Entry readEntry(DataInputStream in) throws IOException {
+        byte[] keyBytes = new byte[in.readUnsignedShort()];
+        in.readFully(keyBytes);
+        int expiryTime = in.readInt();
+        int length = in.readInt();
+        byte[] record = null;
+        if (length >= 0) {
+            record = new byte[length];
+            in.readFully(record);
+        }
+        return new Entry(new String(keyBytes, StandardCharsets.UTF_8), record, expiryTime);
+    }
+
+    private Entry readEntry(ByteBuffer block, long blockOffset) {
+        byte[] keyBytes = new byte[block.getShort() & 0xFFFF];
+        block.get(keyBytes);
+        int expiryTime = block.getInt();
+        int length = block.getInt();
+        byte[] record = null;
+        long offset = -1;
+        if (length >= 0) {
+            offset = blockOffset + block.position();
+            record = new byte[length];
+            block.get(record);
+        }
+        return new Entry(new String(keyBytes, StandardCharsets.UTF_8), record, expiryTime, id, offset);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getEntryCount() {
+        return entryCount;
+    }
+
+    long getTombstoneCount() {
+        return tombstoneCount;
+    }
+
+    /*
+     * Whether some of the entries are deleted keys or have expired, which a
+     * merge into the oldest tier would drop.
+     */
+    boolean hasGarbage() {
+        return tombstoneCount > 0 || minExpiryTime < ExpiryClock.currentTime();
+    }
+
+    long size() {
+        return file.length();
+    }
+
+    /*
+     * The entry of the key, deleted or not, or null if the table does not
+     * have it.
+     */
+    Entry get(String key) throws IOException {
+        if (!bloom.mightContain(key)) {
+            return null;
+        }
+        int block = blockOf(key);
+        if (block < 0) {
+            return null;
+        }
+        ByteBuffer bytes = readBlock(block);
+        while (bytes.hasRemaining()) {
+            Entry entry = readEntry(bytes, blockOffsets[block]);
+            int order = entry.getKey().compareTo(key);
+            if (order == 0) {
+                return entry;
+            } else if (order > 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * The last block whose first key is not greater than the key, -1 if the
+     * key comes before the first block.
+     */
+    private int blockOf(String key) {
+        int found = Arrays.binarySearch(firstKeys, key);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    /*
+     * The entries from the key on, in key order, a block at a time.
+     */
+    Iterator<Entry> iterator(String from) {
+        return new Iterator<Entry>() {
+
+            private int block = from == null ? 0 : Math.max(0, blockOf(from));
+            private ByteBuffer bytes;
+            private Entry next = advance();
+
+            private Entry advance() {
+                try {
+                    while (true) {
+                        if (bytes == null || !bytes.hasRemaining()) {
+                            if (block >= firstKeys.length) {
+                                return null;
+                            }
+                            bytes = readBlock(block++);
+                        }
+                        Entry entry = readEntry(bytes, blockOffsets[block - 1]);
+                        if (from == null || entry.getKey().compareTo(from) >= 0) {
+                            return entry;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Entry next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry entry = next;
+                next = advance();
+                return entry;
+            }
+        };
+    }
+
+    private ByteBuffer readBlock(int block) throws IOException {
+        metrics.recordBytesRead(blockLengths[block]);
+        return read(blockOffsets[block], blockLengths[block]);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException(file + " is truncated.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private DataInputStream stream(long position, int length) throws IOException {
+        ByteBuffer buffer = read(position, length);
+        return new DataInputStream(new ByteArrayInputStream(buffer.array(), 0, length));
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -1,46 +1,191 @@
 // $Id$
 package com.kvs.store;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 import com.kvs.lock.Lock;
 import com.kvs.lock.file.FileBasedLock;
+import com.kvs.metrics.MetricsSnapshot;
 
 /**
 * The key value store directory class.
 */
 
-public class StoreDirectory {
+public class StoreDirectory implements Closeable {
 
     private final Lock lock;
     private final KeyValueDataStore dataStore;
 
     public StoreDirectory(String dir) throws IOException {
+        this(dir, new StoreOptions());
+    }
+
+    public StoreDirectory(String dir, StoreOptions options) throws IOException {
         File directory = new File(dir);
-        if (directory.isDirectory()) {
-            lock = new FileBasedLock(directory);
-            boolean isLocked = lock.lock();
-            if (!isLocked) {
-                throw new RuntimeException("Lock cannot be obtained for the given key-value store");
-            } else {
-                System.out.println("Key-value store initialized at " + dir);
-            }
-        } else {
+        if (!directory.isDirectory()) {
             throw new RuntimeException(dir + " is not a directory.");
+        } else if (options.isReadOnly()) {
+            // readers do not lock, they share the directory with its writer.
+            lock = null;
+            this.dataStore = KeyValueDataStoreManager.getDataStore(dir, options);
+            System.out.println("Key-value store opened read-only at " + dir);
+            return;
+        }
+        lock = new FileBasedLock(directory);
+        boolean isLocked = lock.lock();
+        if (!isLocked) {
+            throw new RuntimeException("Lock cannot be obtained for the given key-value store");
+        } else {
+            System.out.println("Key-value store initialized at " + dir);
+        }
+        try {
+            this.dataStore = KeyValueDataStoreManager.getDataStore(dir, options);
+        } catch (IOException | RuntimeException e) {
+            lock.unlock();
+            throw e;
         }
-        this.dataStore = KeyValueDataStoreManager.getDataStore(dir);
     }
 
-    public void add(String key, String value, int ttl) throws IOException {
+    public void add(String key, ByteBuffer value, int ttl) throws IOException {
         dataStore.add(key, value, ttl);
     }
 
+    public CompletableFuture<Void> addAsync(String key, ByteBuffer value, int ttl) {
+        return dataStore.addAsync(key, value, ttl);
+    }
+
+    public void multiAdd(Map<String, ByteBuffer> entries, int ttl) throws IOException {
+        dataStore.multiAdd(entries, ttl);
+    }
+
+    public void put(String key, ByteBuffer value, int ttl) throws IOException {
+        dataStore.put(key, value, ttl);
+    }
+
+    public CompletableFuture<Void> putAsync(String key, ByteBuffer value, int ttl) {
+        return dataStore.putAsync(key, value, ttl);
+    }
+
+    public boolean replace(String key, ByteBuffer value, int ttl) throws IOException {
+        return dataStore.replace(key, value, ttl);
+    }
+
+    public boolean putIfAbsent(String key, ByteBuffer value, int ttl) throws IOException {
+        return dataStore.putIfAbsent(key, value, ttl);
+    }
+
+    public boolean compareAndSet(String key, ByteBuffer expected, ByteBuffer value, int ttl) throws IOException {
+        return dataStore.compareAndSet(key, expected, value, ttl);
+    }
+
     public void delete(String key) throws IOException {
         dataStore.delete(key);
     }
 
-    public String get(String key) throws IOException {
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return dataStore.deleteAsync(key);
+    }
+
+    public void multiDelete(Collection<String> keys) throws IOException {
+        dataStore.multiDelete(keys);
+    }
+
+    public byte[] get(String key) throws IOException {
         return dataStore.get(key);
     }
+
+    public int get(String key, ByteBuffer target) throws IOException {
+        return dataStore.get(key, target);
+    }
+
+    public Map<String, byte[]> multiGet(Collection<String> keys) throws IOException {
+        return dataStore.multiGet(keys);
+    }
+
+    public Stream<Map.Entry<String, byte[]>> scan(String from, String to) {
+        return dataStore.scan(from, to);
+    }
+
+    public Stream<Map.Entry<String, byte[]>> scanPrefix(String prefix) {
+        return dataStore.scanPrefix(prefix);
+    }
+
+    public void applyChanges(List<ChangeRecord> changes) throws IOException {
+        dataStore.applyChanges(changes);
+    }
+
+    public void addChangeListener(ChangeListener listener) throws IOException {
+        dataStore.addChangeListener(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) throws IOException {
+        dataStore.removeChangeListener(listener);
+    }
+
+    public Stream<ChangeRecord> snapshot() {
+        return dataStore.snapshot();
+    }
+
+    /*
+     * Writes a copy of the store as it is now to the directory, which is
+     * created if needed and has to be empty. It should be on the same file
+     * system as the store, so that the files that no longer change can be
+     * hard linked instead of copied.
+     */
+    public void snapshot(String targetDir) throws IOException {
+        File target = new File(targetDir);
+        String[] names = target.list();
+        if (names != null && names.length > 0) {
+            throw new RuntimeException(targetDir + " is not empty.");
+        } else if (!target.isDirectory() && !target.mkdirs()) {
+            throw new IOException("Cannot create the snapshot directory " + targetDir);
+        }
+        dataStore.snapshot(target.getPath());
+    }
+
+    public CacheStats getCacheStats() {
+        return dataStore.getCacheStats();
+    }
+
+    public MetricsSnapshot getMetrics() {
+        return dataStore.getMetrics();
+    }
+
+    public void compact() throws IOException {
+        dataStore.compact();
+    }
+
+    /*
+     * Closes the data store and releases the directory's lock.
+     */
+    @Override
+    public void close() throws IOException {
+        close(null);
+    }
+
+    /*
+     * Closes the data store and runs the task before the lock is released,
+     * eg: to save files derived from the closed store that another process
+     * must not see half written.
+     */
+    public void close(Closeable beforeUnlock) throws IOException {
+        try {
+            dataStore.close();
+            if (beforeUnlock != null) {
+                beforeUnlock.close();
+            }
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
 }
@@ -0,0 +1,328 @@
+// $Id$
+package com.kvs.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+* Options that can be given while opening a key value store.
+*/
+
+public class StoreOptions {
+
+    private boolean memoryMapped;
+    private Durability durability = Durability.OS;
+    private long syncIntervalMillis = 1000;
+    private long segmentSize = 256 * 1024 * 1024;
+    private long checkpointIntervalMillis = 5 * 60 * 1000;
+    private IndexType indexType = IndexType.HASH;
+    private long cacheSize;
+    private Compression compression = Compression.NONE;
+    private byte[] compressionDictionary;
+    private int partitions;
+    private boolean readOnly;
+    private long refreshIntervalMillis = 100;
+    private Engine engine;
+    private long memtableSize = 8 * 1024 * 1024;
+    private double compactionGarbageRatio = 0.5;
+    private long compactionDiskThreshold;
+    private long compactionBytesPerSecond = 64 * 1024 * 1024;
+    private final List<String> indexedFields = new ArrayList<>();
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /*
+     * When set, gets are served by copying the value out of a memory mapping
+     * of the values file instead of reading it through the file channel.
+     */
+    public StoreOptions setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /*
+     * When the written data is forced to the disk. Defaults to OS, where the
+     * data is left in the OS buffers.
+     */
+    public StoreOptions setDurability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    public long getSyncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+
+    /*
+     * Interval between two syncs for the INTERVAL durability.
+     */
+    public StoreOptions setSyncIntervalMillis(long syncIntervalMillis) {
+        this.syncIntervalMillis = syncIntervalMillis;
+        return this;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /*
+     * Size after which a new values segment is started. A segment has to fit
+     * into a single memory mapping, so it cannot be larger than 2GB.
+     */
+    public StoreOptions setSegmentSize(long segmentSize) {
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE) {
+            throw new RuntimeException("Segment size should be between 1 byte and 2GB.");
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    public long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    /*
+     * Interval at which the keys are checkpointed, if they have changed.
+     */
+    public StoreOptions setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+        return this;
+    }
+
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    /*
+     * The in-memory key index. PACKED keeps no objects per key, which saves a
+     * lot of heap when there are millions of keys.
+     */
+    public StoreOptions setIndexType(IndexType indexType) {
+        this.indexType = indexType;
+        return this;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /*
+     * Bytes of values kept in the in-process cache. The cache is disabled by
+     * default.
+     */
+    public StoreOptions setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /*
+     * The codec new values are stored with. Values stored with any codec can
+     * be read whatever this is set to.
+     */
+    public StoreOptions setCompression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public byte[] getCompressionDictionary() {
+        return compressionDictionary;
+    }
+
+    /*
+     * Sample data, such as a typical JSON value, that the values are deflated
+     * against. It is saved with the store the first time it is given and has
+     * to stay the same after that.
+     */
+    public StoreOptions setCompressionDictionary(byte[] compressionDictionary) {
+        this.compressionDictionary = compressionDictionary;
+        return this;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /*
+     * Number of partitions a new store is split into by the hash of the keys.
+     * Each partition has its own files, writer thread and compaction, so writes
+     * to different partitions run in parallel. The count is saved with the
+     * store and cannot be changed afterwards; when it is not set, an existing
+     * store opens with its own count and a new one has a single partition.
+     */
+    public StoreOptions setPartitions(int partitions) {
+        if (partitions < 1 || partitions > 1024) {
+            throw new RuntimeException("Partitions should be between 1 and 1024.");
+        }
+        this.partitions = partitions;
+        return this;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /*
+     * Opens an existing store for reads only. Any number of processes can open
+     * a store read-only, next to the one process that writes it; they pick up
+     * its writes by following its keys file. Writes and compaction fail on a
+     * read-only store.
+     */
+    public StoreOptions setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    public long getRefreshIntervalMillis() {
+        return refreshIntervalMillis;
+    }
+
+    /*
+     * How often a read-only store looks for the writes made since it last
+     * looked, which bounds how far behind the writer it is.
+     */
+    public StoreOptions setRefreshIntervalMillis(long refreshIntervalMillis) {
+        if (refreshIntervalMillis <= 0) {
+            throw new RuntimeException("Refresh interval should be positive.");
+        }
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        return this;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /*
+     * The storage engine of a new store. It is saved with the store and
+     * cannot be changed afterwards; when it is not set, an existing store
+     * opens with its own engine and a new one uses LOG.
+     */
+    public StoreOptions setEngine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    public long getMemtableSize() {
+        return memtableSize;
+    }
+
+    /*
+     * Bytes of writes the LSM engine keeps in its memtable before writing
+     * them out as a sorted table.
+     */
+    public StoreOptions setMemtableSize(long memtableSize) {
+        if (memtableSize <= 0) {
+            throw new RuntimeException("Memtable size should be positive.");
+        }
+        this.memtableSize = memtableSize;
+        return this;
+    }
+
+    public double getCompactionGarbageRatio() {
+        return compactionGarbageRatio;
+    }
+
+    /*
+     * Share of the bytes of the segments left behind by deletes, overwrites
+     * and expiries at which the store is compacted in the background, 0.5
+     * by default. Only the segments with at least this share of garbage are
+     * compacted, or all that have any if none has that much.
+     */
+    public StoreOptions setCompactionGarbageRatio(double compactionGarbageRatio) {
+        if (!(compactionGarbageRatio > 0 && compactionGarbageRatio <= 1)) {
+            throw new RuntimeException("Compaction garbage ratio should be above 0 and at most 1.");
+        }
+        this.compactionGarbageRatio = compactionGarbageRatio;
+        return this;
+    }
+
+    public long getCompactionDiskThreshold() {
+        return compactionDiskThreshold;
+    }
+
+    /*
+     * Bytes of segments above which the store is compacted whatever the
+     * garbage ratio, as long as there is some garbage. 0, the default, sets
+     * no such limit.
+     */
+    public StoreOptions setCompactionDiskThreshold(long compactionDiskThreshold) {
+        if (compactionDiskThreshold < 0) {
+            throw new RuntimeException("Compaction disk threshold should not be negative.");
+        }
+        this.compactionDiskThreshold = compactionDiskThreshold;
+        return this;
+    }
+
+    public long getCompactionBytesPerSecond() {
+        return compactionBytesPerSecond;
+    }
+
+    /*
+     * Bytes per second compaction may copy, 64MB by default, so that it does
+     * not starve the gets of the disk. 0 copies as fast as the disk allows.
+     */
+    public StoreOptions setCompactionBytesPerSecond(long compactionBytesPerSecond) {
+        if (compactionBytesPerSecond < 0) {
+            throw new RuntimeException("Compaction rate should not be negative.");
+        }
+        this.compactionBytesPerSecond = compactionBytesPerSecond;
+        return this;
+    }
+
+    public List<String> getIndexedFields() {
+        return Collections.unmodifiableList(indexedFields);
+    }
+
+    /*
+     * Adds a secondary index on a field of the JSON values, a dotted path
+     * such as "address.city", so that KeyValueStore.findBy can look up the
+     * keys by its value. Indexes are kept by writable stores only.
+     */
+    public StoreOptions addIndex(String field) {
+        if (field == null || field.isEmpty()) {
+            throw new RuntimeException("Index field should not be empty.");
+        }
+        if (!indexedFields.contains(field)) {
+            indexedFields.add(field);
+        }
+        return this;
+    }
+
+    /*
+     * The options of one partition of a store, which gets its share of the
+     * cache and of the disk threshold. Compactions run one at a time, so each
+     * partition can have the whole compaction rate.
+     */
+    StoreOptions forPartition(int count) {
+        StoreOptions copy = new StoreOptions();
+        copy.memoryMapped = memoryMapped;
+        copy.durability = durability;
+        copy.syncIntervalMillis = syncIntervalMillis;
+        copy.segmentSize = segmentSize;
+        copy.checkpointIntervalMillis = checkpointIntervalMillis;
+        copy.indexType = indexType;
+        copy.cacheSize = cacheSize / count;
+        copy.compression = compression;
+        copy.compressionDictionary = compressionDictionary;
+        copy.readOnly = readOnly;
+        copy.refreshIntervalMillis = refreshIntervalMillis;
+        copy.engine = engine;
+        copy.memtableSize = memtableSize;
+        copy.compactionGarbageRatio = compactionGarbageRatio;
+        copy.compactionDiskThreshold = compactionDiskThreshold > 0 ? Math.max(1, compactionDiskThreshold / count) : 0;
+        copy.compactionBytesPerSecond = compactionBytesPerSecond;
+        return copy;
+    }
+
+}
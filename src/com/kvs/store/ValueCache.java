@@ -0,0 +1,133 @@
+// $Id$
+package com.kvs.store;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An LRU cache of values bounded by the total bytes, in front of the segment
+ * readers.
+ * 
+ * Values are cached by the location of their record. A segment is never
+ * reused and records are never rewritten in place, so a location always maps
+ * to the same value and an entry can never be stale. Entries whose record is
+ * deleted, expired or moved by compaction are only invalidated to give their
+ * memory back.
+ * 
+ * The cache is split into stripes, each an access ordered map with its own
+ * lock and an equal share of the capacity, so that gets on different keys
+ * rarely contend.
+ */
+
+class ValueCache {
+
+    private static final int STRIPES = 16;
+    // rough cost of a map entry and the boxed location.
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private final class Stripe {
+
+        private final LinkedHashMap<Long, byte[]> values = new LinkedHashMap<>(16, 0.75f, true);
+        private final long capacity;
+        private long size;
+
+        private Stripe(long capacity) {
+            this.capacity = capacity;
+        }
+
+        private synchronized byte[] get(long location) {
+            return values.get(location);
+        }
+
+        private synchronized void put(long location, byte[] value) {
+            long cost = value.length + ENTRY_OVERHEAD;
+            if (cost > capacity) {
+                return;
+            }
+            byte[] old = values.put(location, value);
+            if (old != null) {
+                size -= old.length + ENTRY_OVERHEAD;
+            }
+            size += cost;
+            // the least recently used values are at the head.
+            Iterator<Map.Entry<Long, byte[]>> it = values.entrySet().iterator();
+            while (size > capacity && it.hasNext()) {
+                size -= it.next().getValue().length + ENTRY_OVERHEAD;
+                it.remove();
+                evictions.increment();
+            }
+        }
+
+        private synchronized void invalidate(long location) {
+            byte[] old = values.remove(location);
+            if (old != null) {
+                size -= old.length + ENTRY_OVERHEAD;
+            }
+        }
+    }
+
+    ValueCache(long capacity) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(capacity / STRIPES);
+        }
+    }
+
+    /*
+     * The cached value of the record at the location, or null. The returned
+     * array is shared, it must not be changed.
+     */
+    byte[] get(int segment, long offset) {
+        long location = location(segment, offset);
+        byte[] value = stripe(location).get(location);
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    void put(int segment, long offset, byte[] value) {
+        long location = location(segment, offset);
+        stripe(location).put(location, value);
+    }
+
+    void invalidate(Key key) {
+        invalidate(key.getSegment(), key.getOffset());
+    }
+
+    void invalidate(int segment, long offset) {
+        long location = location(segment, offset);
+        stripe(location).invalidate(location);
+    }
+
+    CacheStats getStats() {
+        long count = 0;
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.values.size();
+                size += stripe.size;
+            }
+        }
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), count, size);
+    }
+
+    private Stripe stripe(long location) {
+        long h = location * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 60)];
+    }
+
+    private static long location(int segment, long offset) {
+        // offsets are below 2GB since a segment is at most that large.
+        return (long) segment << 32 | offset;
+    }
+
+}
@@ -0,0 +1,185 @@
+// $Id$
+package com.kvs.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Turns values into value records and back.
+ *
+ * A record is a four byte header followed by the stored bytes. The low three
+ * bytes of the header are the length of the stored bytes and the high byte is
+ * the codec they are stored with. Records written before compression existed
+ * have a zero high byte, which is the codec of values stored as they are, so
+ * old and new records can be mixed in the same segment.
+ *
+ * A compressed record holds the length of the value followed by the value
+ * deflated without a zlib wrapper. If the store has a dictionary it is used as
+ * the preset dictionary for every record, which helps small JSON values share
+ * the field names they all have. Values are only stored compressed if that
+ * makes them smaller.
+ *
+ * The deflaters and inflaters are kept per thread, so values are compressed
+ * on the threads adding them and not on the writer thread.
+ */
+
+class ValueCodec {
+
+    static final int NONE = 0;
+    static final int DEFLATE = 1;
+    static final int DEFLATE_WITH_DICTIONARY = 2;
+
+    static final int MAX_STORED_LENGTH = 0xFFFFFF;
+    // smaller values hardly compress.
+    private static final int MIN_COMPRESSED_LENGTH = 64;
+
+    private final Compression compression;
+    private final byte[] dictionary;
+    private final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+    private final ThreadLocal<byte[]> buffer = ThreadLocal.withInitial(() -> new byte[4 * 1024]);
+
+    ValueCodec(Compression compression, byte[] dictionary) {
+        this.compression = compression;
+        this.dictionary = dictionary;
+    }
+
+    static int header(int codec, int length) {
+        return codec << 24 | length;
+    }
+
+    static int codecOf(int header) {
+        return header >>> 24;
+    }
+
+    static int lengthOf(int header) {
+        return header & MAX_STORED_LENGTH;
+    }
+
+    /*
+     * The record of the value between the buffer's position and limit,
+     * compressed if the store compresses values and it gets smaller. The
+     * buffer itself is not changed.
+     */
+    byte[] encode(ByteBuffer value) {
+        int length = value.remaining();
+        if (length > MAX_STORED_LENGTH) {
+            throw new RuntimeException("Value size greater than " + MAX_STORED_LENGTH + " bytes.");
+        }
+        if (compression == Compression.DEFLATE && length >= MIN_COMPRESSED_LENGTH) {
+            byte[] record;
+            if (value.hasArray()) {
+                record = deflate(value.array(), value.arrayOffset() + value.position(), length);
+            } else {
+                byte[] bytes = new byte[length];
+                value.duplicate().get(bytes);
+                record = deflate(bytes, 0, length);
+            }
+            if (record != null) {
+                return record;
+            }
+        }
+        byte[] record = new byte[4 + length];
+        putInt(record, 0, header(NONE, length));
+        value.duplicate().get(record, 4, length);
+        return record;
+    }
+
+    /*
+     * The compressed record of the value, or null if it would not be smaller.
+     */
+    private byte[] deflate(byte[] value, int offset, int valueLength) {
+        Deflater d = deflater.get();
+        d.reset();
+        if (dictionary != null) {
+            d.setDictionary(dictionary);
+        }
+        d.setInput(value, offset, valueLength);
+        d.finish();
+        // the record header and the value length come before the data.
+        byte[] out = buffer.get();
+        int length = 8;
+        int limit = Math.min(out.length, 4 + valueLength);
+        while (!d.finished() && length < limit) {
+            length += d.deflate(out, length, limit - length);
+        }
+        if (!d.finished() && out.length < 4 + valueLength) {
+            // the buffer was too small; the value may still get smaller.
+            out = Arrays.copyOf(out, 4 + valueLength);
+            buffer.set(out);
+            while (!d.finished() && length < out.length) {
+                length += d.deflate(out, length, out.length - length);
+            }
+        }
+        if (!d.finished() || length >= 4 + valueLength) {
+            return null;
+        }
+        byte[] record = Arrays.copyOf(out, length);
+        putInt(record, 0, header(dictionary != null ? DEFLATE_WITH_DICTIONARY : DEFLATE, length - 4));
+        putInt(record, 4, valueLength);
+        return record;
+    }
+
+    /*
+     * The value of a whole record, header included.
+     */
+    byte[] decodeRecord(byte[] record) throws IOException {
+        int header = getInt(record, 0);
+        return decode(codecOf(header), Arrays.copyOfRange(record, 4, 4 + lengthOf(header)));
+    }
+
+    /*
+     * The value of the stored bytes of a record.
+     */
+    byte[] decode(int codec, byte[] stored) throws IOException {
+        if (codec == NONE) {
+            return stored;
+        }
+        if (codec != DEFLATE && codec != DEFLATE_WITH_DICTIONARY) {
+            throw new IOException("Unknown value codec " + codec + ".");
+        }
+        Inflater i = inflater.get();
+        i.reset();
+        if (codec == DEFLATE_WITH_DICTIONARY) {
+            if (dictionary == null) {
+                throw new IOException("Value is compressed with a dictionary the store does not have.");
+            }
+            i.setDictionary(dictionary);
+        }
+        i.setInput(stored, 4, stored.length - 4);
+        byte[] value = new byte[getInt(stored, 0)];
+        try {
+            int length = 0;
+            while (length < value.length && !i.finished()) {
+                int inflated = i.inflate(value, length, value.length - length);
+                if (inflated == 0 && (i.needsInput() || i.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != value.length) {
+                throw new IOException("Compressed value is truncated.");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed value is corrupt.", e);
+        }
+        return value;
+    }
+
+    private static void putInt(byte[] bytes, int start, int value) {
+        bytes[start] = (byte) (value >> 24);
+        bytes[start + 1] = (byte) (value >> 16);
+        bytes[start + 2] = (byte) (value >> 8);
+        bytes[start + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] bytes, int start) {
+        return (bytes[start] & 0xFF) << 24 | (bytes[start + 1] & 0xFF) << 16 | (bytes[start + 2] & 0xFF) << 8
+                | bytes[start + 3] & 0xFF;
+    }
+
+}
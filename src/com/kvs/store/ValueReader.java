@@ -0,0 +1,55 @@
+// $Id$
+package com.kvs.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+* Reads the value records from a values file.
+*/
+
+interface ValueReader {
+
+    /*
+     * The value of the record at the offset, decompressed if it is compressed.
+     */
+    byte[] read(long offset) throws IOException;
+
+    /*
+     * Reads the value of the record at the offset into the buffer and returns
+     * its length. If the value does not fit into the buffer's remaining space
+     * nothing is read, and the length tells how much space it needs.
+     */
+    int read(long offset, ByteBuffer target) throws IOException;
+
+    /*
+     * The whole record at the offset as it is stored, header included.
+     */
+    byte[] readRecord(long offset) throws IOException;
+
+    /*
+     * Tells the reader that the segment holds length bytes now. The writer
+     * calls it after every append, before the keys of the values are visible.
+     */
+    void extend(long length);
+
+    /*
+     * Tells the reader that the segment is not written any more.
+     */
+    void seal();
+
+    /*
+     * Whether the reader holds resources it no longer uses, eg: replaced
+     * mappings, that are worth a release.
+     */
+    boolean needsRelease();
+
+    /*
+     * Frees the resources the reader no longer uses. No read of the reader may
+     * be going on, so the store calls it under its write lock.
+     */
+    void release();
+
+    void close() throws IOException;
+
+}
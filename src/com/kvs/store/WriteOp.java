@@ -0,0 +1,193 @@
+// $Id$
+package com.kvs.store;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+* A single add or delete waiting to be written by the group commit writer. A
+* group holds several adds or deletes that are accepted or rejected together.
+*
+* Values are carried as ready to append records, so a value is compressed by
+* the thread adding it.
+*
+* Puts add a key or replace its value. Replaces, put-if-absents and
+* compare-and-sets are conditional puts: when their condition does not hold
+* on the writer thread they are skipped, which is not an error, and nothing is
+* written.
+*
+* A replica applies the changes of the store it follows as replications,
+* which add or delete a key whether or not it exists.
+*
+* Compaction also queues relocations, which move a value to the active segment
+* only if its key has not changed since the value was copied, and tasks, which
+* are run on the writer thread after the writes queued before them.
+*/
+
+class WriteOp {
+
+    enum Type {
+        ADD, DELETE, PUT, REPLACE, PUT_IF_ABSENT, COMPARE_AND_SET, REPLICATE, RELOCATE, GROUP, TASK
+    }
+
+    private final Type type;
+    private final String key;
+    private final byte[] record;
+    private final int ttl;
+    private final Key expected;
+    private final byte[] expectedValue;
+    private final Runnable task;
+    private final List<WriteOp> ops;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    // when the op was queued, for the write latency.
+    private final long startNanos = System.nanoTime();
+    private RuntimeException rejection;
+    private boolean skipped;
+
+    private WriteOp(Type type, String key, byte[] record, int ttl, Key expected, byte[] expectedValue, Runnable task,
+            List<WriteOp> ops) {
+        this.type = type;
+        this.key = key;
+        this.record = record;
+        this.ttl = ttl;
+        this.expected = expected;
+        this.expectedValue = expectedValue;
+        this.task = task;
+        this.ops = ops;
+    }
+
+    static WriteOp add(String key, byte[] record, int ttl) {
+        return new WriteOp(Type.ADD, key, record, ttl, null, null, null, null);
+    }
+
+    static WriteOp delete(String key) {
+        return new WriteOp(Type.DELETE, key, null, -1, null, null, null, null);
+    }
+
+    static WriteOp put(String key, byte[] record, int ttl) {
+        return new WriteOp(Type.PUT, key, record, ttl, null, null, null, null);
+    }
+
+    static WriteOp replace(String key, byte[] record, int ttl) {
+        return new WriteOp(Type.REPLACE, key, record, ttl, null, null, null, null);
+    }
+
+    static WriteOp putIfAbsent(String key, byte[] record, int ttl) {
+        return new WriteOp(Type.PUT_IF_ABSENT, key, record, ttl, null, null, null, null);
+    }
+
+    /*
+     * expectedValue is the value, not the record, since the current record
+     * may be stored with a different codec.
+     */
+    static WriteOp compareAndSet(String key, byte[] expectedValue, byte[] record, int ttl) {
+        return new WriteOp(Type.COMPARE_AND_SET, key, record, ttl, null, expectedValue, null, null);
+    }
+
+    /*
+     * The ttl of a replication is the key's expiry time, and its record is
+     * null for a delete.
+     */
+    static WriteOp replicate(String key, byte[] record, int expiryTime) {
+        return new WriteOp(Type.REPLICATE, key, record, expiryTime, null, null, null, null);
+    }
+
+    static WriteOp relocate(Key expected, byte[] record) {
+        return new WriteOp(Type.RELOCATE, expected.getKey(), record, -1, expected, null, null, null);
+    }
+
+    static WriteOp group(List<WriteOp> ops) {
+        return new WriteOp(Type.GROUP, null, null, -1, null, null, null, ops);
+    }
+
+    static WriteOp task(Runnable task) {
+        return new WriteOp(Type.TASK, null, null, -1, null, null, task, null);
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /*
+     * The value record to append, header included.
+     */
+    byte[] getRecord() {
+        return record;
+    }
+
+    int getTtl() {
+        return ttl;
+    }
+
+    Key getExpected() {
+        return expected;
+    }
+
+    byte[] getExpectedValue() {
+        return expectedValue;
+    }
+
+    /*
+     * Whether the op writes a value for its key, like an add.
+     */
+    boolean isPut() {
+        return type == Type.ADD || type == Type.PUT || type == Type.REPLACE || type == Type.PUT_IF_ABSENT
+                || type == Type.COMPARE_AND_SET;
+    }
+
+    List<WriteOp> getOps() {
+        return ops;
+    }
+
+    Runnable getTask() {
+        return task;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    CompletableFuture<Void> getFuture() {
+        return future;
+    }
+
+    /*
+     * Marks the op as failed, eg: adding a key that already exists. Nothing is
+     * written for a rejected op.
+     */
+    void reject(RuntimeException rejection) {
+        this.rejection = rejection;
+    }
+
+    boolean isRejected() {
+        return rejection != null;
+    }
+
+    /*
+     * Marks a conditional put whose condition does not hold. Its future is
+     * completed normally.
+     */
+    void skip() {
+        this.skipped = true;
+    }
+
+    /*
+     * Whether the op was written, once its future is completed.
+     */
+    boolean isApplied() {
+        return !skipped && rejection == null;
+    }
+
+    void complete() {
+        if (rejection != null) {
+            future.completeExceptionally(rejection);
+        } else {
+            future.complete(null);
+        }
+    }
+
+}
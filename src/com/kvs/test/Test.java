@@ -1,6 +1,8 @@
 // $Id$
 package com.kvs.test;
 
+import java.nio.file.Files;
+
 import org.json.JSONObject;
 
 import com.kvs.KeyValueStore;
@@ -11,14 +13,20 @@ import com.kvs.KeyValueStore;
 
 public class Test {
 
+    /*
+     * The store directory can be given as the first argument, a temporary one
+     * is used otherwise.
+     */
     public static void main(String[] args) throws Exception {
-        KeyValueStore store = new KeyValueStore("/Users/vignesh/kks");
+        String dir = args.length > 0 ? args[0] : Files.createTempDirectory("kvs").toString();
+        KeyValueStore store = new KeyValueStore(dir);
         testAdd(store);
         testDelete(store);
         testDuplicateAdd(store);
         testDeleteNonExistentKey(store);
         testGetNonExistentKey(store);
         testTTL(store);
+        store.close();
         System.exit(1);
     }
 
@@ -0,0 +1,142 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.store.Engine;
+import com.kvs.store.StoreOptions;
+
+/**
+ * multiAdd and multiDelete, which write all of their keys or none, and
+ * multiGet, on both engines.
+ */
+
+public class BatchTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void multiAddIsAllOrNothing() throws Exception {
+        multiAddIsAllOrNothing(Engine.LOG);
+        multiAddIsAllOrNothing(Engine.LSM);
+    }
+
+    @Test
+    public void multiDeleteIsAllOrNothing() throws Exception {
+        multiDeleteIsAllOrNothing(Engine.LOG);
+        multiDeleteIsAllOrNothing(Engine.LSM);
+    }
+
+    @Test
+    public void multiGetKeepsTheOrderOfTheKeys() throws Exception {
+        multiGetKeepsTheOrderOfTheKeys(Engine.LOG);
+        multiGetKeepsTheOrderOfTheKeys(Engine.LSM);
+    }
+
+    private void multiAddIsAllOrNothing(Engine engine) throws Exception {
+        String dir = folder.newFolder().getPath();
+        KeyValueStore store = new KeyValueStore(dir, new StoreOptions().setEngine(engine));
+        try {
+            store.add("k5", new JSONObject().put("i", -5));
+            try {
+                store.multiAdd(entries(0, 10));
+                fail();
+            } catch (RuntimeException e) {
+                assertEquals("Key already exists.", e.getMessage());
+            }
+            assertEquals(1, store.multiGet(keys(0, 10)).size());
+            assertEquals(-5, store.get("k5").getInt("i"));
+
+            store.multiAdd(entries(10, 20));
+            assertEquals(10, store.multiGet(keys(10, 20)).size());
+        } finally {
+            store.close();
+        }
+        // nothing of the failed batch is in the files either.
+        store = new KeyValueStore(dir, new StoreOptions().setEngine(engine));
+        try {
+            Map<String, JSONObject> values = store.multiGet(keys(0, 20));
+            assertEquals(11, values.size());
+            assertEquals(-5, values.get("k5").getInt("i"));
+        } finally {
+            store.close();
+        }
+    }
+
+    private void multiDeleteIsAllOrNothing(Engine engine) throws Exception {
+        String dir = folder.newFolder().getPath();
+        KeyValueStore store = new KeyValueStore(dir, new StoreOptions().setEngine(engine));
+        try {
+            store.multiAdd(entries(0, 10));
+            store.delete("k5");
+            try {
+                store.multiDelete(keys(0, 10));
+                fail();
+            } catch (RuntimeException e) {
+                assertEquals("Key does not exist.", e.getMessage());
+            }
+            assertEquals(9, store.multiGet(keys(0, 10)).size());
+
+            List<String> keys = keys(0, 5);
+            // a key given twice is deleted once.
+            keys.add("k0");
+            store.multiDelete(keys);
+            assertEquals(Arrays.asList("k6", "k7", "k8", "k9"), new ArrayList<>(store.multiGet(keys(0, 10)).keySet()));
+        } finally {
+            store.close();
+        }
+        store = new KeyValueStore(dir, new StoreOptions().setEngine(engine));
+        try {
+            assertEquals(Arrays.asList("k6", "k7", "k8", "k9"), new ArrayList<>(store.multiGet(keys(0, 10)).keySet()));
+        } finally {
+            store.close();
+        }
+    }
+
+    private void multiGetKeepsTheOrderOfTheKeys(Engine engine) throws Exception {
+        KeyValueStore store = new KeyValueStore(folder.newFolder().getPath(), new StoreOptions().setEngine(engine));
+        try {
+            store.multiAdd(entries(0, 10));
+            store.delete("k3");
+            List<String> keys = Arrays.asList("k9", "missing", "k0", "k3", "k5", "k1");
+            Map<String, JSONObject> values = store.multiGet(keys);
+            assertEquals(Arrays.asList("k9", "k0", "k5", "k1"), new ArrayList<>(values.keySet()));
+            for (Map.Entry<String, JSONObject> value : values.entrySet()) {
+                assertEquals(Integer.parseInt(value.getKey().substring(1)), value.getValue().getInt("i"));
+            }
+            assertEquals(0, store.multiGet(Arrays.asList("missing", "k3")).size());
+        } finally {
+            store.close();
+        }
+    }
+
+    private static Map<String, JSONObject> entries(int from, int to) {
+        Map<String, JSONObject> entries = new LinkedHashMap<>();
+        for (int i = from; i < to; i++) {
+            entries.put("k" + i, new JSONObject().put("i", i));
+        }
+        return entries;
+    }
+
+    private static List<String> keys(int from, int to) {
+        List<String> keys = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            keys.add("k" + i);
+        }
+        return keys;
+    }
+
+}
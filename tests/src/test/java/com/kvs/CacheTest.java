@@ -0,0 +1,146 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.store.CacheStats;
+import com.kvs.store.StoreOptions;
+
+/**
+ * The value cache: its counts under a byte bound, and gets that must not be
+ * served from it after the key was written, deleted, expired or moved.
+ */
+
+public class CacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private KeyValueStore store;
+
+    @After
+    public void close() throws Exception {
+        store.close();
+    }
+
+    private void open(long cacheSize) throws Exception {
+        store = new KeyValueStore(folder.newFolder().getPath(),
+                new StoreOptions().setCacheSize(cacheSize).setSegmentSize(4096));
+    }
+
+    private static byte[] value(int i, int length) {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) i);
+        return value;
+    }
+
+    @Test
+    public void cacheIsBoundedByBytes() throws Exception {
+        long cacheSize = 64 * 1024;
+        open(cacheSize);
+        for (int i = 0; i < 200; i++) {
+            store.add("k" + i, value(i, 1000));
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals((byte) i, store.getBytes("k" + i)[0]);
+        }
+        CacheStats stats = store.getCacheStats();
+        assertEquals(0, stats.getHits());
+        assertEquals(200, stats.getMisses());
+        assertTrue(stats.getCount() > 0 && stats.getCount() < 200);
+        assertTrue(stats.getSize() <= cacheSize);
+        assertEquals(200 - stats.getCount(), stats.getEvictions());
+
+        // the last value read is the most recently used one of its stripe.
+        store.getBytes("k199");
+        assertEquals(1, store.getCacheStats().getHits());
+
+        // a value larger than a stripe's share is not cached at all.
+        store.add("large", value(1, 8 * 1024));
+        store.getBytes("large");
+        store.getBytes("large");
+        stats = store.getCacheStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(202, stats.getMisses());
+    }
+
+    @Test
+    public void writtenKeyIsNotReadFromCache() throws Exception {
+        open(1024 * 1024);
+        store.add("a", new JSONObject().put("x", 1));
+        assertEquals(1, store.get("a").getInt("x"));
+        assertEquals(1, store.get("a").getInt("x"));
+        assertStats(1, 1, 1);
+
+        store.put("a", new JSONObject().put("x", 2));
+        assertStats(1, 1, 0);
+        assertEquals(2, store.get("a").getInt("x"));
+        assertStats(1, 2, 1);
+
+        store.delete("a");
+        assertStats(1, 2, 0);
+        assertMissing("a");
+    }
+
+    @Test
+    public void expiredKeyIsNotReadFromCache() throws Exception {
+        open(1024 * 1024);
+        store.add("a", new JSONObject().put("x", 1), 1);
+        assertEquals(1, store.get("a").getInt("x"));
+        assertEquals(1, store.get("a").getInt("x"));
+        assertStats(1, 1, 1);
+        Thread.sleep(2500);
+        assertMissing("a");
+        assertStats(1, 1, 0);
+    }
+
+    @Test
+    public void movedKeyIsNotReadFromCache() throws Exception {
+        open(1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            store.add("k" + i, value(i, 100));
+        }
+        for (int i = 0; i < 100; i++) {
+            store.getBytes("k" + i);
+        }
+        assertStats(0, 100, 100);
+        for (int i = 1; i < 100; i += 2) {
+            store.delete("k" + i);
+        }
+        assertStats(0, 100, 50);
+        // every segment has garbage, so every key left is moved.
+        store.compact();
+        assertStats(0, 100, 0);
+        for (int i = 0; i < 100; i += 2) {
+            assertTrue(Arrays.equals(value(i, 100), store.getBytes("k" + i)));
+        }
+        assertStats(0, 150, 50);
+    }
+
+    private void assertStats(long hits, long misses, long count) {
+        CacheStats stats = store.getCacheStats();
+        assertEquals("hits", hits, stats.getHits());
+        assertEquals("misses", misses, stats.getMisses());
+        assertEquals("count", count, stats.getCount());
+    }
+
+    private void assertMissing(String key) throws Exception {
+        try {
+            store.get(key);
+            fail(key + " should not exist");
+        } catch (RuntimeException e) {
+            assertEquals("Key does not exist.", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.store.Compression;
+import com.kvs.store.IndexType;
+import com.kvs.store.StoreOptions;
+
+/**
+ * A store that crashes after a checkpoint, with deletes, puts and keys with a
+ * time to live written after it. The writes are made by a child JVM that
+ * halts without closing the store, so the next open has to load the
+ * checkpoint and replay the tail of the keys file.
+ */
+
+public class CheckpointRecoveryTest {
+
+    private static final long TIMEOUT_SECONDS = 60;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static StoreOptions options(IndexType indexType, Compression compression) {
+        return new StoreOptions().setIndexType(indexType).setCompression(compression).setSegmentSize(4096)
+                .setCheckpointIntervalMillis(200);
+    }
+
+    @Test
+    public void tailIsReplayedAfterCheckpoint() throws Exception {
+        List<Object[]> runs = new ArrayList<>();
+        for (IndexType indexType : IndexType.values()) {
+            for (Compression compression : Compression.values()) {
+                String dir = folder.newFolder().getPath();
+                Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                        "-cp", System.getProperty("java.class.path"), CheckpointRecoveryTest.class.getName(), dir,
+                        indexType.name(), compression.name()).inheritIO().start();
+                runs.add(new Object[] { dir, indexType, compression, process });
+            }
+        }
+        for (Object[] run : runs) {
+            Process process = (Process) run[3];
+            if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                fail("The writer of " + run[1] + "/" + run[2] + " did not finish.");
+            }
+            assertEquals("exit code of the writer of " + run[1] + "/" + run[2], 0, process.exitValue());
+        }
+        // a checkpoint can happen to cover the whole keys file, but not in all runs.
+        int tails = 0;
+        for (Object[] run : runs) {
+            File dir = new File((String) run[0]);
+            if (checkpointPosition(new File(dir, "checkpoint")) < new File(dir, "keys").length()) {
+                tails++;
+            }
+        }
+        assertTrue(tails > 0);
+        // the keys with a time to live of a second are expired now.
+        Thread.sleep(2000);
+        for (Object[] run : runs) {
+            String dir = (String) run[0];
+            StoreOptions options = options((IndexType) run[1], (Compression) run[2]);
+            for (int open = 0; open < 2; open++) {
+                KeyValueStore store = new KeyValueStore(dir, options);
+                try {
+                    assertRecovered(store);
+                } finally {
+                    store.close();
+                }
+            }
+        }
+    }
+
+    /*
+     * The writer run in the child JVM: writes the keys, waits for them to be
+     * checkpointed, writes the tail and halts.
+     */
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args[0]);
+        KeyValueStore store = new KeyValueStore(dir.getPath(),
+                options(IndexType.valueOf(args[1]), Compression.valueOf(args[2])));
+        for (int i = 0; i < 300; i++) {
+            store.add("k" + i, new JSONObject().put("i", i));
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (!new File(dir, "checkpoint").exists()) {
+            if (System.currentTimeMillis() > deadline) {
+                Runtime.getRuntime().halt(1);
+            }
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            store.delete("k" + i);
+        }
+        for (int i = 100; i < 150; i++) {
+            store.put("k" + i, new JSONObject().put("i", -i));
+        }
+        for (int i = 0; i < 20; i++) {
+            store.add("t" + i, new JSONObject().put("i", i), 3600);
+            store.add("e" + i, new JSONObject().put("i", i), 1);
+        }
+        // the deleted keys come back in the tail, some with a new value.
+        for (int i = 0; i < 20; i += 2) {
+            store.add("k" + i, new JSONObject().put("i", 1000 + i));
+        }
+        Runtime.getRuntime().halt(0);
+    }
+
+    /*
+     * The position in the keys file up to which the checkpoint has the keys.
+     */
+    private static long checkpointPosition(File checkpoint) throws Exception {
+        DataInputStream in = new DataInputStream(new FileInputStream(checkpoint));
+        try {
+            in.readInt();
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void assertRecovered(KeyValueStore store) throws Exception {
+        for (int i = 0; i < 300; i++) {
+            int expected = i < 20 && i % 2 == 0 ? 1000 + i : i >= 100 && i < 150 ? -i : i;
+            if (i >= 20 && i < 100 && i % 2 == 0) {
+                assertMissing(store, "k" + i);
+            } else {
+                assertEquals("k" + i, expected, store.get("k" + i).getInt("i"));
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, store.get("t" + i).getInt("i"));
+            assertMissing(store, "e" + i);
+        }
+    }
+
+    private static void assertMissing(KeyValueStore store, String key) throws Exception {
+        try {
+            store.get(key);
+            fail(key + " should not exist");
+        } catch (RuntimeException e) {
+            assertEquals("Key does not exist.", e.getMessage());
+        }
+    }
+
+}
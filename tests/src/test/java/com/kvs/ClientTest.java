@@ -0,0 +1,153 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.client.KeyValueClient;
+import com.kvs.protocol.Protocol;
+import com.kvs.server.KeyValueServer;
+
+/**
+ * A client talking to a server over a local connection.
+ */
+
+public class ClientTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private KeyValueStore store;
+    private KeyValueServer server;
+    private KeyValueClient client;
+
+    @Before
+    public void open() throws Exception {
+        store = new KeyValueStore(folder.newFolder().getPath());
+        server = new KeyValueServer(store, new InetSocketAddress("localhost", 0), 2);
+        client = new KeyValueClient("localhost", server.getPort());
+    }
+
+    @After
+    public void close() throws Exception {
+        client.close();
+        server.close();
+        store.close();
+    }
+
+    @Test
+    public void requestsAreAnswered() throws Exception {
+        client.add("a", new JSONObject().put("x", 1));
+        assertEquals(1, client.get("a").getInt("x"));
+        assertEquals(1, store.get("a").getInt("x"));
+        client.delete("a");
+        try {
+            client.get("a");
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Key does not exist.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void largeMultiGetIsSplit() throws Exception {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 40000; i++) {
+            keys.add(String.format("a-rather-long-key-%08d", i));
+        }
+        for (int i = 0; i < keys.size(); i += 1000) {
+            client.add(keys.get(i), ("v" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        Map<String, byte[]> values = client.multiGetBytes(keys);
+        assertEquals(40, values.size());
+        int i = 0;
+        for (Map.Entry<String, byte[]> value : values.entrySet()) {
+            assertEquals(keys.get(i), value.getKey());
+            assertEquals("v" + i, new String(value.getValue(), StandardCharsets.UTF_8));
+            i += 1000;
+        }
+    }
+
+    @Test
+    public void multiGetIsSplitByResponseSize() throws Exception {
+        // short keys, so only the largest possible response splits them.
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 40000; i++) {
+            keys.add("k" + i);
+        }
+        byte[] large = new byte[Protocol.MAX_VALUE_SIZE];
+        List<String> present = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i += 97) {
+            large[0] = (byte) i;
+            client.add(keys.get(i), large);
+            present.add(keys.get(i));
+        }
+        Map<String, byte[]> values = client.multiGetBytes(keys);
+        assertEquals(present, new ArrayList<>(values.keySet()));
+        for (String key : present) {
+            byte[] value = values.get(key);
+            assertEquals(Protocol.MAX_VALUE_SIZE, value.length);
+            assertEquals((byte) Integer.parseInt(key.substring(1)), value[0]);
+        }
+    }
+
+    @Test
+    public void badKeyCountFailsAlone() throws Exception {
+        Socket socket = new Socket("localhost", server.getPort());
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(Protocol.HEADER_SIZE + 4);
+            out.writeByte(Protocol.MULTI_GET);
+            out.writeInt(7);
+            out.writeInt(Integer.MAX_VALUE);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            in.readInt();
+            assertEquals(Protocol.ERROR, in.readByte());
+            assertEquals(7, in.readInt());
+            assertEquals("Invalid key count " + Integer.MAX_VALUE + ".", in.readUTF());
+        } finally {
+            socket.close();
+        }
+        // the server goes on serving, on every event loop.
+        for (int i = 0; i < 4; i++) {
+            KeyValueClient other = new KeyValueClient("localhost", server.getPort());
+            try {
+                other.add("k" + i, new JSONObject().put("x", i));
+                assertEquals(i, other.get("k" + i).getInt("x"));
+            } finally {
+                other.close();
+            }
+        }
+    }
+
+    @Test
+    public void oversizedRequestFailsAlone() throws Exception {
+        try {
+            client.add("big", new byte[2 * 1024 * 1024]);
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Request is larger than 1048576 bytes.", e.getMessage());
+        }
+        // the connection is still open.
+        client.add("small", new JSONObject().put("x", 1));
+        assertEquals(1, client.get("small").getInt("x"));
+    }
+
+}
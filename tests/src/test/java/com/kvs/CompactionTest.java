@@ -0,0 +1,130 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.store.ChangeRecord;
+import com.kvs.store.IndexType;
+import com.kvs.store.StoreOptions;
+
+/**
+ * Gets, scans and snapshot streams while the segments are compacted under
+ * them.
+ */
+
+public class CompactionTest {
+
+    private static final int KEYS = 3000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private KeyValueStore store;
+
+    @After
+    public void close() throws Exception {
+        store.close();
+    }
+
+    /*
+     * Opens a store with small segments holding the even keys, the odd ones
+     * having been deleted.
+     */
+    private void open(IndexType indexType) throws Exception {
+        store = new KeyValueStore(folder.newFolder().getPath(),
+                new StoreOptions().setIndexType(indexType).setSegmentSize(4096));
+        for (int i = 0; i < KEYS; i++) {
+            store.add(key(i), new JSONObject().put("i", i));
+        }
+        for (int i = 1; i < KEYS; i += 2) {
+            store.delete(key(i));
+        }
+    }
+
+    private static String key(int i) {
+        return String.format("k%05d", i);
+    }
+
+    @Test
+    public void scanGoesOnAfterCompaction() throws Exception {
+        open(IndexType.ORDERED);
+        Iterator<Map.Entry<String, JSONObject>> scan = store.scan(null, null).iterator();
+        int i = 0;
+        while (scan.hasNext()) {
+            if (i == 300) {
+                store.compact();
+            }
+            Map.Entry<String, JSONObject> entry = scan.next();
+            assertEquals(key(2 * i), entry.getKey());
+            assertEquals(2 * i, entry.getValue().getInt("i"));
+            i++;
+        }
+        assertEquals(KEYS / 2, i);
+    }
+
+    @Test
+    public void snapshotGoesOnAfterCompaction() throws Exception {
+        open(IndexType.PACKED);
+        Iterator<ChangeRecord> snapshot = store.snapshot().iterator();
+        int count = 0;
+        while (snapshot.hasNext()) {
+            if (count == 300) {
+                store.compact();
+            }
+            ChangeRecord record = snapshot.next();
+            int i = Integer.parseInt(record.getKey().substring(1));
+            assertEquals(0, i % 2);
+            assertEquals(i, new JSONObject(new String(record.getValue(), "UTF-8")).getInt("i"));
+            count++;
+        }
+        assertEquals(KEYS / 2, count);
+    }
+
+    @Test
+    public void getsDuringCompaction() throws Exception {
+        open(IndexType.HASH);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    for (int i = 0; i < KEYS; i += 2) {
+                        assertEquals(i, store.get(key(i)).getInt("i"));
+                    }
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        reader.start();
+        try {
+            for (int round = 0; round < 5; round++) {
+                // the odd keys come and go, so every compaction has work.
+                for (int i = 1; i < KEYS; i += 2) {
+                    store.add(key(i), new JSONObject().put("i", i));
+                }
+                for (int i = 1; i < KEYS; i += 2) {
+                    store.delete(key(i));
+                }
+                store.compact();
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+
+}
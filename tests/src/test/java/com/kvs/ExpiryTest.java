@@ -0,0 +1,86 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Keys written with a time to live.
+ */
+
+public class ExpiryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String dir;
+    private KeyValueStore store;
+
+    @Before
+    public void open() throws Exception {
+        dir = folder.newFolder().getPath();
+        store = new KeyValueStore(dir);
+    }
+
+    @After
+    public void close() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void keysExpire() throws Exception {
+        store.add("short", new JSONObject().put("x", 1), 1);
+        store.add("long", new JSONObject().put("x", 2), 3600);
+        store.add("forever", new JSONObject().put("x", 3));
+        assertEquals(1, store.get("short").getInt("x"));
+        Thread.sleep(2500);
+        assertMissing("short");
+        assertEquals(2, store.get("long").getInt("x"));
+        assertEquals(3, store.get("forever").getInt("x"));
+        // an expired key can be added again.
+        store.add("short", new JSONObject().put("x", 4));
+        assertEquals(4, store.get("short").getInt("x"));
+    }
+
+    @Test
+    public void overwriteKeepsTheNewTtl() throws Exception {
+        store.put("a", new JSONObject().put("x", 1), 1);
+        store.put("a", new JSONObject().put("x", 2));
+        store.add("b", new JSONObject().put("x", 1), 1);
+        store.delete("b");
+        store.add("b", new JSONObject().put("x", 2));
+        Thread.sleep(2500);
+        assertEquals(2, store.get("a").getInt("x"));
+        assertEquals(2, store.get("b").getInt("x"));
+    }
+
+    @Test
+    public void expiredKeysStayExpiredAfterReopen() throws Exception {
+        store.add("short", new JSONObject().put("x", 1), 1);
+        store.add("long", new JSONObject().put("x", 2), 3600);
+        Thread.sleep(2500);
+        store.close();
+        store = new KeyValueStore(dir);
+        assertMissing("short");
+        assertEquals(2, store.get("long").getInt("x"));
+        assertTrue(store.putIfAbsent("short", new JSONObject().put("x", 3), -1));
+    }
+
+    private void assertMissing(String key) throws Exception {
+        try {
+            store.get(key);
+            fail(key + " should not exist");
+        } catch (RuntimeException e) {
+            assertEquals("Key does not exist.", e.getMessage());
+        }
+    }
+
+}
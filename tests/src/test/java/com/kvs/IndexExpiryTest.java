@@ -0,0 +1,112 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.store.ChangeListener;
+import com.kvs.store.ChangeRecord;
+import com.kvs.store.Engine;
+import com.kvs.store.StoreOptions;
+
+/**
+ * The expired keys a store drops are reported to its listeners and leave the
+ * indexes.
+ */
+
+public class IndexExpiryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Collects the reported expirations.
+     */
+    private static class ExpiryListener implements ChangeListener {
+
+        private final Set<String> expired = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void onChanges(List<ChangeRecord> changes) {
+        }
+
+        @Override
+        public void onExpired(List<String> keys) {
+            expired.addAll(keys);
+        }
+    }
+
+    private static void fill(KeyValueStore store) throws Exception {
+        for (int i = 0; i < 20; i++) {
+            store.add("t" + i, new JSONObject().put("status", "new"), 1);
+            store.add("p" + i, new JSONObject().put("status", "new"));
+        }
+    }
+
+    private static List<String> found(KeyValueStore store) {
+        return store.findBy("status", "new").map(entry -> entry.getKey()).collect(Collectors.toList());
+    }
+
+    /*
+     * Waits up to a few seconds for the listener to have been told of at
+     * least the given number of keys.
+     */
+    private static void awaitExpired(ExpiryListener listener, int count) throws Exception {
+        for (int i = 0; i < 50 && listener.expired.size() < count; i++) {
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void expiredKeysAreReported() throws Exception {
+        KeyValueStore store = new KeyValueStore(folder.newFolder().getPath(), new StoreOptions().addIndex("status"));
+        try {
+            ExpiryListener listener = new ExpiryListener();
+            store.addChangeListener(listener);
+            fill(store);
+            assertEquals(40, found(store).size());
+            // written again without a ttl, so it does not expire.
+            store.put("t0", new JSONObject().put("status", "new"));
+            Thread.sleep(2000);
+            awaitExpired(listener, 19);
+            assertEquals(19, listener.expired.size());
+            assertFalse(listener.expired.contains("t0"));
+            assertEquals(21, found(store).size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void mergesReportExpiredKeys() throws Exception {
+        KeyValueStore store = new KeyValueStore(folder.newFolder().getPath(),
+                new StoreOptions().setEngine(Engine.LSM).setMemtableSize(256).addIndex("status"));
+        try {
+            ExpiryListener listener = new ExpiryListener();
+            store.addChangeListener(listener);
+            fill(store);
+            Thread.sleep(2000);
+            store.compact();
+            awaitExpired(listener, 1);
+            assertFalse(listener.expired.isEmpty());
+            for (String key : listener.expired) {
+                assertTrue(key, key.startsWith("t"));
+            }
+            assertEquals(20, found(store).size());
+        } finally {
+            store.close();
+        }
+    }
+
+}
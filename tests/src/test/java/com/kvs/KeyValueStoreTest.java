@@ -0,0 +1,115 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The basic contract of a store: adds, gets, deletes and reopening.
+ */
+
+public class KeyValueStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String dir;
+    private KeyValueStore store;
+
+    @Before
+    public void open() throws Exception {
+        dir = folder.newFolder().getPath();
+        store = new KeyValueStore(dir);
+    }
+
+    @After
+    public void close() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void addedValueIsRead() throws Exception {
+        store.add("a", new JSONObject().put("x", 1));
+        store.add("b", "bytes".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, store.get("a").getInt("x"));
+        assertEquals("bytes", new String(store.getBytes("b"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void duplicateAddFails() throws Exception {
+        store.add("a", new JSONObject().put("x", 1));
+        try {
+            store.add("a", new JSONObject().put("x", 2));
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Key already exists.", e.getMessage());
+        }
+        assertEquals(1, store.get("a").getInt("x"));
+    }
+
+    @Test
+    public void deletedKeyIsGone() throws Exception {
+        store.add("a", new JSONObject().put("x", 1));
+        store.delete("a");
+        assertMissing("a");
+        try {
+            store.delete("a");
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Key does not exist.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void putReplacesAndConditionsHold() throws Exception {
+        store.put("a", new JSONObject().put("x", 1));
+        store.put("a", new JSONObject().put("x", 2));
+        assertEquals(2, store.get("a").getInt("x"));
+        assertFalse(store.putIfAbsent("a", new JSONObject().put("x", 3), -1));
+        assertTrue(store.replace("a", new JSONObject().put("x", 4), -1));
+        assertFalse(store.replace("b", new JSONObject().put("x", 4), -1));
+        assertTrue(store.compareAndSet("a", new JSONObject().put("x", 4), new JSONObject().put("x", 5), -1));
+        assertFalse(store.compareAndSet("a", new JSONObject().put("x", 4), new JSONObject().put("x", 6), -1));
+        assertEquals(5, store.get("a").getInt("x"));
+    }
+
+    @Test
+    public void writesSurviveReopen() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            store.add("k" + i, new JSONObject().put("i", i));
+        }
+        for (int i = 0; i < 1000; i += 3) {
+            store.delete("k" + i);
+        }
+        store.close();
+        store = new KeyValueStore(dir);
+        for (int i = 0; i < 1000; i++) {
+            if (i % 3 == 0) {
+                assertMissing("k" + i);
+            } else {
+                assertEquals(i, store.get("k" + i).getInt("i"));
+            }
+        }
+    }
+
+    private void assertMissing(String key) throws Exception {
+        try {
+            store.get(key);
+            fail(key + " should not exist");
+        } catch (RuntimeException e) {
+            assertEquals("Key does not exist.", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Opening a store written in the old format, with a single values file and
+ * keys without a header.
+ */
+
+public class LegacyFormatTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void oldStoreIsMigrated() throws Exception {
+        File dir = folder.newFolder();
+        int now = (int) (System.currentTimeMillis() / 1000);
+        DataOutputStream values = new DataOutputStream(new FileOutputStream(new File(dir, "values")));
+        DataOutputStream keys = new DataOutputStream(new FileOutputStream(new File(dir, "keys")));
+        try {
+            int a = writeValue(values, new JSONObject().put("x", 1));
+            int b = writeValue(values, new JSONObject().put("x", 2));
+            int c = writeValue(values, new JSONObject().put("x", 3));
+            int d = writeValue(values, new JSONObject().put("x", 4));
+            writeKey(keys, "a", a, -1);
+            writeKey(keys, "b", b, now + 3600);
+            writeKey(keys, "c", c, -1);
+            writeKey(keys, "c", -1, -1);
+            writeKey(keys, "d", d, now - 3600);
+            // a torn last record.
+            keys.writeInt(0);
+            keys.writeInt(-1);
+        } finally {
+            values.close();
+            keys.close();
+        }
+
+        KeyValueStore store = new KeyValueStore(dir.getPath());
+        try {
+            assertFalse(new File(dir, "values").exists());
+            assertEquals(1, store.get("a").getInt("x"));
+            assertEquals(2, store.get("b").getInt("x"));
+            assertMissing(store, "c");
+            assertMissing(store, "d");
+            store.add("e", new JSONObject().put("x", 5));
+        } finally {
+            store.close();
+        }
+
+        store = new KeyValueStore(dir.getPath());
+        try {
+            assertEquals(1, store.get("a").getInt("x"));
+            assertEquals(5, store.get("e").getInt("x"));
+            assertTrue(store.putIfAbsent("c", new JSONObject().put("x", 6), -1));
+        } finally {
+            store.close();
+        }
+    }
+
+    /*
+     * Appends the value as an old record, its length and its bytes, and
+     * returns its offset.
+     */
+    private static int writeValue(DataOutputStream values, JSONObject value) throws IOException {
+        int offset = values.size();
+        byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        values.writeInt(bytes.length);
+        values.write(bytes);
+        return offset;
+    }
+
+    private static void writeKey(DataOutputStream keys, String key, int offset, int expiryTime) throws IOException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        keys.writeInt(offset);
+        keys.writeInt(expiryTime);
+        keys.writeInt(bytes.length);
+        keys.write(bytes);
+    }
+
+    private static void assertMissing(KeyValueStore store, String key) throws Exception {
+        try {
+            store.get(key);
+            fail(key + " should not exist");
+        } catch (RuntimeException e) {
+            assertEquals("Key does not exist.", e.getMessage());
+        }
+    }
+
+}
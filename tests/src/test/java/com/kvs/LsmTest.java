@@ -0,0 +1,150 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.store.Engine;
+import com.kvs.store.StoreOptions;
+
+/**
+ * The LSM engine: reads across the memtable and the merged tables, reopening
+ * and replaying the write-ahead logs.
+ */
+
+public class LsmTest {
+
+    private static final int KEYS = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static StoreOptions options() {
+        // small memtables, so that there are tables to merge.
+        return new StoreOptions().setEngine(Engine.LSM).setMemtableSize(16 * 1024);
+    }
+
+    private static String key(int i) {
+        return String.format("k%05d", i);
+    }
+
+    /*
+     * Adds the keys, overwrites every third and deletes every fifth.
+     */
+    private static void write(KeyValueStore store) throws Exception {
+        for (int i = 0; i < KEYS; i++) {
+            store.add(key(i), new JSONObject().put("i", i));
+        }
+        for (int i = 0; i < KEYS; i += 3) {
+            store.put(key(i), new JSONObject().put("i", -i));
+        }
+        for (int i = 0; i < KEYS; i += 5) {
+            store.delete(key(i));
+        }
+    }
+
+    private static void check(KeyValueStore store) throws Exception {
+        for (int i = 0; i < KEYS; i++) {
+            if (i % 5 == 0) {
+                try {
+                    store.get(key(i));
+                    fail(key(i) + " should not exist");
+                } catch (RuntimeException e) {
+                    assertEquals("Key does not exist.", e.getMessage());
+                }
+            } else {
+                assertEquals(i % 3 == 0 ? -i : i, store.get(key(i)).getInt("i"));
+            }
+        }
+        List<String> scanned = store.scan(null, null).map(Map.Entry::getKey).collect(Collectors.toList());
+        assertEquals(KEYS - KEYS / 5, scanned.size());
+        for (int i = 1; i < scanned.size(); i++) {
+            assertTrue(scanned.get(i - 1).compareTo(scanned.get(i)) < 0);
+        }
+    }
+
+    @Test
+    public void mergedTablesKeepTheNewestValues() throws Exception {
+        String dir = folder.newFolder().getPath();
+        KeyValueStore store = new KeyValueStore(dir, options());
+        try {
+            write(store);
+            check(store);
+            store.compact();
+            check(store);
+        } finally {
+            store.close();
+        }
+        store = new KeyValueStore(dir, options());
+        try {
+            check(store);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void tornLogTailIsDropped() throws Exception {
+        String dir = folder.newFolder().getPath();
+        KeyValueStore store = new KeyValueStore(dir, new StoreOptions().setEngine(Engine.LSM));
+        try {
+            write(store);
+        } finally {
+            store.close();
+        }
+        // the writes are only in the log, cut it in the middle of a frame.
+        File wal = lastLog(new File(dir));
+        FileOutputStream out = new FileOutputStream(wal, true);
+        try {
+            out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3, 4, 5 });
+        } finally {
+            out.close();
+        }
+
+        store = new KeyValueStore(dir, new StoreOptions());
+        try {
+            check(store);
+            store.delete(key(1));
+            store.add(key(0), new JSONObject().put("i", 0));
+        } finally {
+            store.close();
+        }
+        store = new KeyValueStore(dir, new StoreOptions());
+        try {
+            assertEquals(0, store.get(key(0)).getInt("i"));
+            try {
+                store.get(key(1));
+                fail();
+            } catch (RuntimeException e) {
+                assertEquals("Key does not exist.", e.getMessage());
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    private static File lastLog(File dir) {
+        File last = null;
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith("wal.") && (last == null
+                    || Integer.parseInt(file.getName().substring(4)) > Integer.parseInt(last.getName().substring(4)))) {
+                last = file;
+            }
+        }
+        assertTrue(last != null && last.length() > 0);
+        return last;
+    }
+
+}
@@ -0,0 +1,117 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.store.Compression;
+import com.kvs.store.StoreOptions;
+
+/**
+ * Gets through memory mappings of the segments, of values written just before
+ * to the active segment and of sealed segments.
+ */
+
+public class MemoryMappedTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static StoreOptions options() {
+        return new StoreOptions().setMemoryMapped(true).setSegmentSize(16 * 1024);
+    }
+
+    private static String value(int i) {
+        StringBuilder value = new StringBuilder("v" + i);
+        for (int j = 0; j < i % 50; j++) {
+            value.append('-').append(j);
+        }
+        return value.toString();
+    }
+
+    @Test
+    public void readsFollowWrites() throws Exception {
+        String dir = folder.newFolder().getPath();
+        KeyValueStore store = new KeyValueStore(dir, options());
+        try {
+            for (int i = 0; i < 2000; i++) {
+                store.add("k" + i, value(i).getBytes(StandardCharsets.UTF_8));
+                // read back right after the write, and an older one.
+                assertEquals(value(i), new String(store.getBytes("k" + i), StandardCharsets.UTF_8));
+                assertEquals(value(i / 2), new String(store.getBytes("k" + i / 2), StandardCharsets.UTF_8));
+            }
+            ByteBuffer target = ByteBuffer.allocate(1024);
+            int length = store.get("k1999", target);
+            assertEquals(value(1999), new String(target.array(), 0, length, StandardCharsets.UTF_8));
+        } finally {
+            store.close();
+        }
+        store = new KeyValueStore(dir, options());
+        try {
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(value(i), new String(store.getBytes("k" + i), StandardCharsets.UTF_8));
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void activeSegmentIsMapped() throws Exception {
+        // the default segment size, so everything stays in the active segment.
+        String dir = folder.newFolder().getPath();
+        StoreOptions options = new StoreOptions().setMemoryMapped(true);
+        KeyValueStore store = new KeyValueStore(dir, options);
+        try {
+            for (int i = 0; i < 3000; i++) {
+                store.add("k" + i, value(i).getBytes(StandardCharsets.UTF_8));
+                assertEquals(value(i), new String(store.getBytes("k" + i), StandardCharsets.UTF_8));
+                if (i % 7 == 0) {
+                    // an older value, from a mapping the reads have not grown yet.
+                    assertEquals(value(i / 3), new String(store.getBytes("k" + i / 3), StandardCharsets.UTF_8));
+                }
+            }
+            for (int i = 0; i < 3000; i++) {
+                assertEquals(value(i), new String(store.getBytes("k" + i), StandardCharsets.UTF_8));
+            }
+        } finally {
+            store.close();
+        }
+        assertEquals(1, new File(dir).list((d, name) -> name.startsWith("values.")).length);
+        // appends after a reopen go on in the same segment.
+        store = new KeyValueStore(dir, options);
+        try {
+            for (int i = 3000; i < 3500; i++) {
+                store.add("k" + i, value(i).getBytes(StandardCharsets.UTF_8));
+                assertEquals(value(i), new String(store.getBytes("k" + i), StandardCharsets.UTF_8));
+                assertEquals(value(i - 3000), new String(store.getBytes("k" + (i - 3000)), StandardCharsets.UTF_8));
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void compressedValuesAreRead() throws Exception {
+        KeyValueStore store = new KeyValueStore(folder.newFolder().getPath(),
+                options().setCompression(Compression.DEFLATE));
+        try {
+            for (int i = 0; i < 500; i++) {
+                store.add("k" + i, value(i).getBytes(StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < 500; i++) {
+                assertEquals(value(i), new String(store.getBytes("k" + i), StandardCharsets.UTF_8));
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.metrics.MetricsSnapshot;
+
+/**
+ * What the metrics of a store count.
+ */
+
+public class MetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private KeyValueStore store;
+
+    @Before
+    public void open() throws Exception {
+        store = new KeyValueStore(folder.newFolder().getPath());
+    }
+
+    @After
+    public void close() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void onlyAppliedWritesAreTimed() throws Exception {
+        store.add("a", new JSONObject().put("x", 1));
+        store.put("a", new JSONObject().put("x", 2));
+        // rejected and skipped.
+        try {
+            store.add("a", new JSONObject().put("x", 3));
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Key already exists.", e.getMessage());
+        }
+        assertFalse(store.putIfAbsent("a", new JSONObject().put("x", 4), -1));
+        assertFalse(store.replace("b", new JSONObject().put("x", 4), -1));
+        store.delete("a");
+        try {
+            store.delete("a");
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Key does not exist.", e.getMessage());
+        }
+        MetricsSnapshot metrics = store.getMetrics();
+        assertEquals(2, metrics.getAddLatency().getCount());
+        assertEquals(1, metrics.getDeleteLatency().getCount());
+        assertEquals(7, metrics.getQueueWait().getCount());
+    }
+
+}
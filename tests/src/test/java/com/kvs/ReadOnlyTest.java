@@ -0,0 +1,189 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.store.IndexType;
+import com.kvs.store.StoreOptions;
+
+/**
+ * A read-only store following the writes of the store writing the same
+ * directory: new keys, deletes, puts, compaction swapping the keys file and
+ * the writer reopening after a torn batch.
+ */
+
+public class ReadOnlyTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // what the reader should see, the value of "i" of every key.
+    private final Map<String, Integer> expected = new TreeMap<>();
+
+    private static StoreOptions options(boolean memoryMapped) {
+        return new StoreOptions().setMemoryMapped(memoryMapped).setSegmentSize(4096)
+                .setIndexType(IndexType.ORDERED);
+    }
+
+    private static StoreOptions readOnly(boolean memoryMapped) {
+        return options(memoryMapped).setReadOnly(true).setRefreshIntervalMillis(10);
+    }
+
+    @Test
+    public void readerFollowsWriter() throws Exception {
+        follow(false);
+    }
+
+    @Test
+    public void mappedReaderFollowsWriter() throws Exception {
+        follow(true);
+    }
+
+    @Test
+    public void readerGoesOnAfterTornBatch() throws Exception {
+        tornBatch(false);
+    }
+
+    @Test
+    public void mappedReaderGoesOnAfterTornBatch() throws Exception {
+        tornBatch(true);
+    }
+
+    private void follow(boolean memoryMapped) throws Exception {
+        String dir = folder.newFolder().getPath();
+        KeyValueStore writer = new KeyValueStore(dir, options(memoryMapped));
+        try {
+            add(writer, 0, 200);
+            KeyValueStore reader = new KeyValueStore(dir, readOnly(memoryMapped));
+            try {
+                assertConverges(reader);
+
+                add(writer, 200, 400);
+                assertConverges(reader);
+
+                for (int i = 0; i < 100; i += 2) {
+                    writer.delete(key(i));
+                    expected.remove(key(i));
+                }
+                for (int i = 1; i < 100; i += 2) {
+                    writer.put(key(i), new JSONObject().put("i", -i));
+                    expected.put(key(i), -i);
+                }
+                assertConverges(reader);
+
+                // swaps the keys file and deletes the segments it empties.
+                writer.compact();
+                add(writer, 400, 450);
+                assertConverges(reader);
+
+                try {
+                    reader.add("x", new JSONObject().put("i", 0));
+                    fail();
+                } catch (RuntimeException e) {
+                    assertEquals("The store is opened read-only.", e.getMessage());
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /*
+     * The writer dies in the middle of appending a key record, and reopens
+     * and goes on writing while the reader follows.
+     */
+    private void tornBatch(boolean memoryMapped) throws Exception {
+        String dir = folder.newFolder().getPath();
+        KeyValueStore writer = new KeyValueStore(dir, options(memoryMapped));
+        add(writer, 0, 100);
+        writer.close();
+        KeyValueStore reader = new KeyValueStore(dir, readOnly(memoryMapped));
+        try {
+            assertConverges(reader);
+            FileOutputStream keys = new FileOutputStream(new File(dir, "keys"), true);
+            try {
+                keys.write(new byte[] { 0, 0, 0, 1, 0, 0 });
+            } finally {
+                keys.close();
+            }
+            // the reader does not take the torn record for a key.
+            Thread.sleep(50);
+            assertConverges(reader);
+
+            writer = new KeyValueStore(dir, options(memoryMapped));
+            try {
+                add(writer, 100, 200);
+                writer.delete(key(0));
+                expected.remove(key(0));
+                assertConverges(reader);
+            } finally {
+                writer.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void add(KeyValueStore writer, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            writer.add(key(i), new JSONObject().put("i", i));
+            expected.put(key(i), i);
+        }
+    }
+
+    private static String key(int i) {
+        return String.format("k%04d", i);
+    }
+
+    /*
+     * Waits for the reader to see what is expected, by gets and by a scan.
+     */
+    private void assertConverges(KeyValueStore reader) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!matches(reader)) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("The reader did not catch up with the writer.");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private boolean matches(KeyValueStore reader) throws Exception {
+        for (int i = 0; i < 450; i++) {
+            if (!Objects.equals(expected.get(key(i)), valueOf(reader, key(i)))) {
+                return false;
+            }
+        }
+        Map<String, Integer> scanned = new TreeMap<>();
+        reader.scan(null, null).forEach(entry -> scanned.put(entry.getKey(), entry.getValue().getInt("i")));
+        return scanned.equals(expected);
+    }
+
+    private static Integer valueOf(KeyValueStore reader, String key) throws Exception {
+        try {
+            return reader.get(key).getInt("i");
+        } catch (RuntimeException e) {
+            if (!"Key does not exist.".equals(e.getMessage())) {
+                throw e;
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Opening a store whose keys file was cut off in the middle of a record, as
+ * a crash leaves it.
+ */
+
+public class RecoveryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tornKeysTailIsDropped() throws Exception {
+        String dir = folder.newFolder().getPath();
+        KeyValueStore store = new KeyValueStore(dir);
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.add("k" + i, new JSONObject().put("i", i));
+            }
+            store.delete("k0");
+        } finally {
+            store.close();
+        }
+        // the start of a key record whose write did not finish.
+        FileOutputStream keys = new FileOutputStream(new File(dir, "keys"), true);
+        try {
+            keys.write(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 });
+        } finally {
+            keys.close();
+        }
+
+        store = new KeyValueStore(dir);
+        try {
+            assertKeys(store, 100);
+            // written after the cut, so lost if the torn record stayed.
+            store.add("k100", new JSONObject().put("i", 100));
+        } finally {
+            store.close();
+        }
+        store = new KeyValueStore(dir);
+        try {
+            assertKeys(store, 101);
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void assertKeys(KeyValueStore store, int count) throws Exception {
+        try {
+            store.get("k0");
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Key does not exist.", e.getMessage());
+        }
+        for (int i = 1; i < count; i++) {
+            assertEquals(i, store.get("k" + i).getInt("i"));
+        }
+    }
+
+}
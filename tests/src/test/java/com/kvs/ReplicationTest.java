@@ -0,0 +1,185 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.replication.ReplicationFollower;
+import com.kvs.replication.ReplicationLeader;
+
+/**
+ * A follower that loses its connection resumes from the leader's backlog if
+ * the backlog still has the changes it missed, and loads a new snapshot
+ * otherwise.
+ */
+
+public class ReplicationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private KeyValueStore store;
+    private ReplicationLeader leader;
+    private Proxy proxy;
+    private ReplicationFollower follower;
+    private File followerDir;
+
+    /**
+     * Forwards the connections of the follower to the leader, so that the
+     * test can cut them.
+     */
+    private static class Proxy implements Runnable {
+
+        private final ServerSocket server = new ServerSocket();
+        private final int target;
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+        private Proxy(int target) throws IOException {
+            this.target = target;
+            server.bind(new InetSocketAddress("localhost", 0));
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket client = server.accept();
+                    Socket upstream = new Socket("localhost", target);
+                    sockets.add(client);
+                    sockets.add(upstream);
+                    pump(client, upstream);
+                    pump(upstream, client);
+                }
+            } catch (IOException e) {
+                // closed.
+            }
+        }
+
+        private static void pump(Socket from, Socket to) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                } catch (IOException e) {
+                    // cut.
+                }
+                cut(from);
+                cut(to);
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void cut(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway.
+            }
+        }
+
+        private void cutAll() {
+            for (Socket socket : sockets) {
+                cut(socket);
+            }
+            sockets.clear();
+        }
+
+        private void close() throws IOException {
+            server.close();
+            cutAll();
+        }
+    }
+
+    private void open(long backlogBytes) throws Exception {
+        store = new KeyValueStore(folder.newFolder().getPath());
+        for (int i = 0; i < 100; i++) {
+            store.add("k" + i, new JSONObject().put("i", i));
+        }
+        leader = new ReplicationLeader(store, new InetSocketAddress("localhost", 0), backlogBytes);
+        proxy = new Proxy(leader.getPort());
+        followerDir = folder.newFolder();
+        follower = new ReplicationFollower(followerDir.getPath(), "localhost", proxy.server.getLocalPort());
+        await(() -> follower.isReady() && follower.getAppliedSequence() == leader.getSequence());
+        assertTrue(new File(followerDir, "replica-0").isDirectory());
+    }
+
+    @After
+    public void close() throws Exception {
+        follower.close();
+        proxy.close();
+        leader.close();
+        store.close();
+    }
+
+    /*
+     * Changes while the follower is cut off, then waits for it to have them.
+     * They are written as one batch, before the follower reconnects.
+     */
+    private void writeWhileCut() throws Exception {
+        proxy.cutAll();
+        Map<String, JSONObject> entries = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("n" + i, new JSONObject().put("i", i).put("pad", "0123456789012345678901234567890123456789"));
+        }
+        store.multiAdd(entries, -1);
+        await(() -> follower.getAppliedSequence() == leader.getSequence());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, follower.get("k" + i).getInt("i"));
+            assertEquals(i, follower.get("n" + i).getInt("i"));
+        }
+    }
+
+    @Test
+    public void followerResumesFromTheBacklog() throws Exception {
+        open(ReplicationLeader.DEFAULT_BACKLOG_BYTES);
+        writeWhileCut();
+        // the same copy, no second snapshot.
+        assertTrue(new File(followerDir, "replica-0").isDirectory());
+        assertFalse(new File(followerDir, "replica-1").exists());
+    }
+
+    @Test
+    public void followerBeyondTheBacklogLoadsASnapshot() throws Exception {
+        open(1024);
+        writeWhileCut();
+        assertTrue(new File(followerDir, "replica-1").isDirectory());
+        assertFalse(new File(followerDir, "replica-0").exists());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+}
@@ -0,0 +1,118 @@
+// $Id$
+package com.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kvs.store.Engine;
+import com.kvs.store.StoreOptions;
+
+/**
+ * Snapshots taken while the store is written, and the stores opened on them.
+ */
+
+public class SnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /*
+     * Snapshots the store while a thread keeps adding keys, then deletes and
+     * compacts everything in the store and checks that the snapshot has every
+     * key added before it was taken.
+     */
+    private void snapshotWhileWriting(StoreOptions options) throws Exception {
+        KeyValueStore store = new KeyValueStore(folder.newFolder().getPath(), options);
+        File target = new File(folder.getRoot(), "snapshot");
+        int before;
+        try {
+            for (int i = 0; i < 1000; i++) {
+                store.add("k" + i, new JSONObject().put("i", i));
+            }
+            AtomicInteger written = new AtomicInteger(1000);
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread writer = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        int i = written.get();
+                        store.add("k" + i, new JSONObject().put("i", i));
+                        written.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            writer.start();
+            Thread.sleep(100);
+            before = written.get();
+            store.snapshot(target.getPath());
+            Thread.sleep(100);
+            done.set(true);
+            writer.join();
+            assertNull(failure.get());
+            for (int i = 0; i < written.get(); i++) {
+                store.delete("k" + i);
+            }
+            store.compact();
+        } finally {
+            store.close();
+        }
+
+        KeyValueStore restored = new KeyValueStore(target.getPath());
+        try {
+            for (int i = 0; i < before; i++) {
+                assertEquals(i, restored.get("k" + i).getInt("i"));
+            }
+            restored.add("after", new JSONObject().put("i", -1));
+            assertEquals(-1, restored.get("after").getInt("i"));
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Test
+    public void logStoreSnapshot() throws Exception {
+        snapshotWhileWriting(new StoreOptions().setSegmentSize(16 * 1024));
+    }
+
+    @Test
+    public void partitionedStoreSnapshot() throws Exception {
+        snapshotWhileWriting(new StoreOptions().setPartitions(4).setSegmentSize(16 * 1024));
+    }
+
+    @Test
+    public void lsmStoreSnapshot() throws Exception {
+        snapshotWhileWriting(new StoreOptions().setEngine(Engine.LSM).setMemtableSize(16 * 1024));
+    }
+
+    @Test
+    public void snapshotNeedsAnEmptyTarget() throws Exception {
+        KeyValueStore store = new KeyValueStore(folder.newFolder().getPath());
+        try {
+            File target = folder.newFolder();
+            assertTrue(new File(target, "other").createNewFile());
+            try {
+                store.snapshot(target.getPath());
+                fail();
+            } catch (RuntimeException e) {
+                assertEquals(target.getPath() + " is not empty.", e.getMessage());
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+}
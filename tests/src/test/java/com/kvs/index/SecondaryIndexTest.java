@@ -0,0 +1,53 @@
+// $Id$
+package com.kvs.index;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.kvs.store.ChangeRecord;
+import com.kvs.store.ExpiryClock;
+
+/**
+ * Lookups of a secondary index as it follows the changes of a store.
+ */
+
+public class SecondaryIndexTest {
+
+    private static ChangeRecord add(String key, String json, int expiryTime) {
+        return ChangeRecord.add(key, json.getBytes(StandardCharsets.UTF_8), expiryTime);
+    }
+
+    @Test
+    public void changesAreIndexed() {
+        SecondaryIndex index = new SecondaryIndex(Arrays.asList("status", "address.city"));
+        index.onChanges(Arrays.asList(add("a", "{\"status\":\"new\",\"address\":{\"city\":\"Oslo\"}}", -1),
+                add("b", "{\"status\":\"new\"}", -1), add("c", "{\"status\":1}", -1), add("d", "not json", -1)));
+        assertEquals(Arrays.asList("a", "b"), index.keys("status", "new"));
+        assertEquals(Arrays.asList("a"), index.keys("address.city", "Oslo"));
+        // numbers by their decimal value.
+        assertEquals(Arrays.asList("c"), index.keys("status", 1.0));
+        index.onChanges(Arrays.asList(add("a", "{\"status\":\"done\"}", -1), ChangeRecord.delete("b")));
+        assertEquals(Collections.emptyList(), index.keys("status", "new"));
+        assertEquals(Arrays.asList("a"), index.keys("status", "done"));
+        assertEquals(Collections.emptyList(), index.keys("address.city", "Oslo"));
+    }
+
+    @Test
+    public void expiredKeysLeaveTheIndex() {
+        SecondaryIndex index = new SecondaryIndex(Arrays.asList("status"));
+        int past = ExpiryClock.currentTime() - 10;
+        index.onChanges(Arrays.asList(add("a", "{\"status\":\"new\"}", past), add("b", "{\"status\":\"new\"}", past),
+                add("c", "{\"status\":\"new\"}", -1)));
+        assertEquals(Arrays.asList("c"), index.keys("status", "new"));
+        // b was written again before its expiry was reported.
+        index.onChanges(Arrays.asList(add("b", "{\"status\":\"new\"}", -1)));
+        index.onExpired(Arrays.asList("a", "b"));
+        assertEquals(Arrays.asList("b", "c"), index.keys("status", "new"));
+    }
+
+}
@@ -0,0 +1,69 @@
+// $Id$
+package com.kvs.store;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The keys handed out by the expiry wheel, and the entries it keeps.
+ */
+
+public class ExpiryWheelTest {
+
+    private static Key key(String name, int expiryTime) {
+        return new Key(name, 0, 0, 4, expiryTime);
+    }
+
+    private static List<String> advance(ExpiryWheel wheel, int now) {
+        List<String> expired = new ArrayList<>();
+        wheel.advance(now, key -> expired.add(key.getKey()));
+        return expired;
+    }
+
+    @Test
+    public void keysAreHandedOutOnceDue() {
+        ExpiryWheel wheel = new ExpiryWheel(1000);
+        wheel.add(key("a", 1005));
+        wheel.add(key("b", 1010));
+        wheel.add(key("c", -1));
+        // a turn of the wheel later.
+        wheel.add(key("d", 1000 + 3600 + 5));
+        assertEquals(3, wheel.size());
+        assertEquals(0, advance(wheel, 1005).size());
+        assertEquals(1, advance(wheel, 1006).size());
+        assertEquals("b", advance(wheel, 1100).get(0));
+        assertEquals(0, advance(wheel, 1000 + 3600 + 5).size());
+        assertEquals("d", advance(wheel, 1000 + 3600 + 6).get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void overwrittenAndDeletedKeysLeaveNoEntry() {
+        ExpiryWheel wheel = new ExpiryWheel(1000);
+        for (int i = 0; i < 100; i++) {
+            wheel.add(key("a", 1010 + i));
+        }
+        wheel.add(key("b", 1010));
+        wheel.add(key("b", -1));
+        wheel.add(key("c", 1010));
+        wheel.remove("c");
+        assertEquals(1, wheel.size());
+        assertEquals(0, advance(wheel, 1050).size());
+        List<String> expired = advance(wheel, 1200);
+        assertEquals(1, expired.size());
+        assertEquals("a", expired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void overdueKeyIsHandedOutNext() {
+        ExpiryWheel wheel = new ExpiryWheel(1000);
+        wheel.add(key("a", 900));
+        assertEquals("a", advance(wheel, 1001).get(0));
+    }
+
+}
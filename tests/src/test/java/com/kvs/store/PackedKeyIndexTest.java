@@ -0,0 +1,84 @@
+// $Id$
+package com.kvs.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Lookups, changes and iteration of the packed key index across rehashes.
+ */
+
+public class PackedKeyIndexTest {
+
+    private static Key key(int i) {
+        return new Key("k" + i + "é", i % 7, i * 100L, 10 + i, -1);
+    }
+
+    @Test
+    public void keysAreFound() {
+        PackedKeyIndex index = new PackedKeyIndex();
+        for (int i = 0; i < 10000; i++) {
+            index.put(key(i));
+        }
+        assertEquals(10000, index.size());
+        KeyLocation location = new KeyLocation();
+        for (int i = 0; i < 10000; i++) {
+            Key found = index.get(key(i).getKey());
+            assertTrue(found.isSameRecord(key(i)));
+            assertEquals(10 + i, found.getSize());
+            assertTrue(index.find(key(i).getKey(), location));
+            assertEquals(i % 7, location.getSegment());
+            assertEquals(i * 100L, location.getOffset());
+            assertEquals(10 + i, location.getSize());
+            assertFalse(location.isExpired());
+        }
+        assertNull(index.get("missing"));
+        assertFalse(index.find("missing", location));
+    }
+
+    @Test
+    public void removedKeysAreGone() {
+        PackedKeyIndex index = new PackedKeyIndex();
+        for (int i = 0; i < 1000; i++) {
+            index.put(key(i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            index.remove(key(i).getKey());
+        }
+        // only removed if it is still the same record.
+        assertFalse(index.remove(new Key(key(1).getKey(), 99, 0, 1, -1)));
+        assertTrue(index.remove(key(3)));
+        // enough new keys to rehash over the deleted slots.
+        for (int i = 1000; i < 3000; i++) {
+            index.put(key(i));
+        }
+        KeyLocation location = new KeyLocation();
+        for (int i = 0; i < 3000; i++) {
+            boolean live = i >= 1000 || i % 2 == 1 && i != 3;
+            assertEquals(live, index.find(key(i).getKey(), location));
+        }
+        Set<String> iterated = new HashSet<>();
+        for (Key sKey : index) {
+            iterated.add(sKey.getKey());
+        }
+        assertEquals(index.size(), iterated.size());
+        assertEquals(2499, iterated.size());
+    }
+
+    @Test
+    public void expiryIsCopied() {
+        PackedKeyIndex index = new PackedKeyIndex();
+        index.put(new Key("a", 0, 0, 4, ExpiryClock.currentTime() - 10));
+        KeyLocation location = new KeyLocation();
+        assertTrue(index.find("a", location));
+        assertTrue(location.isExpired());
+    }
+
+}